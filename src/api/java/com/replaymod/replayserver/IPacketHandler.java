@@ -2,6 +2,8 @@ package com.replaymod.replayserver;
 
 import org.spacehq.packetlib.packet.Packet;
 
+import java.util.List;
+
 /**
  * Handles packets received from users.
  */
@@ -14,4 +16,21 @@ public interface IPacketHandler {
      * @param packet The packet
      */
     void handleMessage(IUser user, Packet packet);
+
+    /**
+     * Handle all packets received from a user since the last call, in the order they have been received.
+     * By default, calls {@link #handleMessage(IUser, Packet)} for each packet.
+     *
+     * Each handler has a time budget per tick of the user. If a call takes longer, the handler is skipped for as long
+     * as it exceeded its budget by, and the packets received in the meantime are passed to it as one batch afterwards.
+     * Only the most recent packets are kept for a skipped handler, older ones are dropped.
+     * Handlers are called on the worker of the user, which cannot play back the replay during the call, so they must
+     * not block; anything slow has to be moved to another thread.
+     * @param packets The packets, the list must not be retained or modified
+     */
+    default void handleMessages(IUser user, List<Packet> packets) {
+        for (Packet packet : packets) {
+            handleMessage(user, packet);
+        }
+    }
 }
@@ -1,7 +1,11 @@
 package com.replaymod.replayserver;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.replaymod.replaystudio.replay.ReplayFile;
 
+import java.io.File;
+
 /**
  * Given a unique key (or name), instances of this interface provide the replay associated with that id.
  */
@@ -10,9 +14,34 @@ public interface IReplayDatabase {
      * Returns a replay file given its unique id.
      * The returned replay file may be readonly and must support all methods until {@link ReplayFile#close()} is called.
      * If the replay file cannot be found, {@code null} shall be returned and the user shall be kicked.
+     * The server may also open replay files on its own, e.g. to load caches shared by all users, in which case the
+     * user is {@code null} and nobody is kicked.
      * @param id Unique id of the replay file
-     * @param user The connecting user
+     * @param user The connecting user or {@code null}
      * @return The replay file
      */
     ReplayFile getReplayFile(IUser user, String id);
+
+    /**
+     * Asynchronously returns a replay file given its unique id, see {@link #getReplayFile(IUser, String)}.
+     * The default implementation calls {@link #getReplayFile(IUser, String)} on the specified executor. Implementations
+     * which can provide replay files without blocking should override this method.
+     * @param user The connecting user
+     * @param id Unique id of the replay file
+     * @param ioExecutor Bounded executor to perform blocking I/O on, may reject tasks if it is overloaded
+     * @return Future for the replay file, resolved to {@code null} if it cannot be found
+     */
+    default ListenableFuture<ReplayFile> getReplayFileAsync(IUser user, String id,
+                                                            ListeningExecutorService ioExecutor) {
+        return ioExecutor.submit(() -> getReplayFile(user, id));
+    }
+
+    /**
+     * Returns the file in which the seek index of the replay with the given id shall be stored.
+     * @param id Unique id of the replay file
+     * @return The file or {@code null} if seek indices for this replay shall not be persisted
+     */
+    default File getIndexFile(String id) {
+        return null;
+    }
 }
@@ -0,0 +1,31 @@
+package com.replaymod.replayserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A scheduler which runs each user in its own virtual thread, requires Java 21.
+ * Like {@link ThreadPerUserScheduler}, the thread is parked between calls to {@link ReplayUser#tick()} and unparked to
+ * be woken up, but parked and blocked virtual threads do not occupy an OS thread.
+ * Note that virtual threads blocking while holding a monitor (e.g. of a {@link PlaybackGroup}) still pin their carrier
+ * thread.
+ */
+public class VirtualThreadScheduler implements PlaybackScheduler {
+    private final ExecutorService threadPool = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ReplayUser-", 0).factory());
+
+    @Override
+    public void start(ReplayUser user) {
+        threadPool.submit(user);
+    }
+
+    @Override
+    public void wakeup(ReplayUser user) {
+        user.unparkWorkerThread();
+    }
+
+    @Override
+    public void shutdown() {
+        threadPool.shutdownNow();
+    }
+}
@@ -0,0 +1,30 @@
+package com.replaymod.replayserver.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Resolves the {@code replay} parameter of benchmarks.
+ */
+public class BenchmarkReplays {
+    private BenchmarkReplays() {
+    }
+
+    /**
+     * Returns the replay file for the specified parameter.
+     * @param replay Name of a {@link SyntheticReplay} (case insensitive) or path to a replay file
+     * @return The replay file
+     */
+    public static File get(String replay) throws IOException {
+        for (SyntheticReplay syntheticReplay : SyntheticReplay.values()) {
+            if (syntheticReplay.name().equalsIgnoreCase(replay)) {
+                return syntheticReplay.getFile(false);
+            }
+        }
+        File file = new File(replay);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("No such replay: " + replay);
+        }
+        return file;
+    }
+}
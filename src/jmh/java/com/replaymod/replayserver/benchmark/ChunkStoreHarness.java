@@ -0,0 +1,68 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.io.ChunkStore;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the timelines of a set of replays with and without a shared {@link ChunkStore} and reports how much memory
+ * the store saves. Each replay is loaded twice, like two sessions whose timelines have been evicted in between.
+ *
+ * Usage: {@code ChunkStoreHarness [replay...]}, see {@link BenchmarkReplays#get(String)}, defaults to all synthetic
+ * replays.
+ */
+public class ChunkStoreHarness {
+    public static void main(String[] args) throws Exception {
+        List<File> files = new ArrayList<>();
+        if (args.length == 0) {
+            for (SyntheticReplay replay : SyntheticReplay.values()) {
+                files.add(replay.getFile(false));
+            }
+        } else {
+            for (String arg : args) {
+                files.add(BenchmarkReplays.get(arg));
+            }
+        }
+
+        PacketFilter filter = PacketFilter.createDefault();
+        System.out.println("store  timelines (bytes)  chunk store (bytes)  total (bytes)");
+        long withoutStore = 0;
+        for (ChunkStore store : new ChunkStore[]{null, new ChunkStore()}) {
+            long timelines = 0;
+            for (int i = 0; i < 2; i++) {
+                for (File file : files) {
+                    timelines += read(file, filter, store).getByteSize();
+                }
+            }
+            long chunks = store != null ? store.getSize() : 0;
+            System.out.printf("%-5s  %17d  %19d  %13d%n", store != null, timelines, chunks, timelines + chunks);
+            if (store == null) {
+                withoutStore = timelines;
+            } else {
+                System.out.printf("Saved: %d bytes (%.1f%%)%n", withoutStore - timelines - chunks,
+                        100.0 * (withoutStore - timelines - chunks) / withoutStore);
+            }
+        }
+    }
+
+    private static PacketTimeline read(File file, PacketFilter filter, ChunkStore store) throws Exception {
+        ReplayStudio studio = new ReplayStudio();
+        studio.setWrappingEnabled(false);
+        ReplayFile replayFile = new ZipReplayFile(studio, file);
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            return PacketTimeline.read(in, filter, true, true, ReplayServer.COMPRESSION_THRESHOLD,
+                    Integer.MAX_VALUE, store);
+        } finally {
+            replayFile.close();
+        }
+    }
+}
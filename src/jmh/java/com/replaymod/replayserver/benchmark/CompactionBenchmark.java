@@ -0,0 +1,72 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.index.ReplayState;
+import com.replaymod.replayserver.io.PacketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to fold all packets up to a point in the replay into a {@link ReplayState}, as done
+ * for compacted jumps. The number of bytes sent with and without compaction is printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompactionBenchmark {
+    /**
+     * Synthetic replay or path to a replay file, see {@link BenchmarkReplays#get(String)}.
+     */
+    @Param("small")
+    public String replay;
+
+    /**
+     * Point in the replay to jump to, as a fraction of its duration.
+     */
+    @Param({"0.25", "1"})
+    public double position;
+
+    private Packet[] packets;
+
+    @Setup
+    public void setup() throws IOException {
+        PacketCodec codec = PacketCodec.getInstance();
+        RecordedPackets recorded = RecordedPackets.load(BenchmarkReplays.get(replay));
+        int target = (int) (recorded.getTime(recorded.size() - 1) * position);
+        int count = 0;
+        long rawBytes = 0;
+        while (count < recorded.size() && recorded.getTime(count) <= target) {
+            rawBytes += recorded.getPacket(count++).length;
+        }
+        packets = new Packet[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = codec.decode(Unpooled.wrappedBuffer(recorded.getPacket(i)));
+        }
+
+        List<Packet> compacted = compact();
+        ByteBuf buf = Unpooled.buffer();
+        for (Packet packet : compacted) {
+            codec.encode(packet, buf);
+        }
+        System.out.println();
+        System.out.println("Jump to " + target + "ms: " + count + " packets (" + rawBytes + " bytes), compacted to "
+                + compacted.size() + " packets (" + buf.readableBytes() + " bytes)");
+    }
+
+    @Benchmark
+    public List<Packet> compact() {
+        ReplayState state = new ReplayState();
+        for (Packet packet : packets) {
+            state.update(packet);
+        }
+        return state.getPackets();
+    }
+}
@@ -0,0 +1,114 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import com.replaymod.replayserver.io.AdaptiveCompression;
+import com.replaymod.replayserver.io.AdaptiveCompression.Profile;
+import com.replaymod.replayserver.io.DeflaterPool;
+import com.replaymod.replayserver.io.PacketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses all packets of a replay with each {@link Profile} and reports CPU time per MB sent and bytes on the wire,
+ * then estimates for several link profiles how long sending the whole replay takes with each compression profile and
+ * which one {@link AdaptiveCompression} would pick.
+ * A link is considered unwritable for the fraction of time its bandwidth is exceeded when the replay is played at
+ * normal speed with the default profile.
+ *
+ * Usage: {@code CompressionHarness [replay] [iterations]}, see {@link BenchmarkReplays#get(String)}.
+ */
+public class CompressionHarness {
+    /**
+     * Name, round trip time in milliseconds and bandwidth in bytes per second of each link profile.
+     */
+    private static final Object[][] LINKS = {
+            {"loopback", 0L, 1_000_000_000L},
+            {"lan", 1L, 125_000_000L},
+            {"broadband", 30L, 2_500_000L},
+            {"mobile", 80L, 250_000L},
+    };
+
+    public static void main(String[] args) throws Exception {
+        RecordedPackets recorded = RecordedPackets.load(BenchmarkReplays.get(args.length > 0 ? args[0] : "MEDIUM"));
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int threshold = ReplayServer.COMPRESSION_THRESHOLD;
+        double duration = recorded.getTime(recorded.size() - 1) / 1000.0;
+
+        long inputBytes = 0;
+        for (int i = 0; i < recorded.size(); i++) {
+            inputBytes += recorded.getPacket(i).length;
+        }
+
+        System.out.println("profile      threshold  level  wire (bytes)  ratio  cpu (ms/MB)");
+        Map<Profile, long[]> results = new EnumMap<>(Profile.class);
+        for (Profile profile : Profile.values()) {
+            // The first iteration is warmup
+            long[] result = null;
+            for (int i = 0; i <= iterations; i++) {
+                long[] run = compress(recorded, profile.getThreshold(threshold), profile.getLevel());
+                if (i > 0) {
+                    result = result == null ? run : new long[]{run[0], Math.min(result[1], run[1])};
+                }
+            }
+            results.put(profile, result);
+            System.out.printf("%-11s  %9d  %5d  %12d  %5.2f  %11.2f%n", profile, profile.getThreshold(threshold),
+                    profile.getLevel(), result[0], (double) result[0] / inputBytes, cpuPerMegabyte(result));
+        }
+
+        System.out.println();
+        System.out.println("link       rtt (ms)  bandwidth (bytes/s)  chosen       send time per profile (s)");
+        for (Object[] link : LINKS) {
+            long rtt = (Long) link[1];
+            long bandwidth = (Long) link[2];
+            double rate = results.get(Profile.DEFAULT)[0] / duration;
+            double blocked = Math.max(0, 1 - bandwidth / rate);
+            Profile chosen = AdaptiveCompression.choose(rtt, blocked);
+            StringBuilder times = new StringBuilder();
+            for (Profile profile : Profile.values()) {
+                long[] result = results.get(profile);
+                // CPU and network work in parallel, whichever is slower determines the time
+                double seconds = Math.max((double) result[0] / bandwidth, result[1] / 1e9);
+                times.append(String.format("%s %.2f  ", profile, seconds));
+            }
+            System.out.printf("%-9s  %8d  %19d  %-11s  %s%n", link[0], rtt, bandwidth, chosen, times);
+        }
+    }
+
+    /**
+     * Compresses all packets once.
+     * @return Bytes on the wire (including length prefixes) and CPU time in nanoseconds
+     */
+    private static long[] compress(RecordedPackets recorded, int threshold, int level) {
+        PacketCodec codec = PacketCodec.getInstance();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ByteBuf out = Unpooled.buffer();
+        long wireBytes = 0;
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < recorded.size(); i++) {
+            ByteBuf packet = Unpooled.wrappedBuffer(recorded.getPacket(i));
+            out.clear();
+            if (packet.readableBytes() < threshold) {
+                codec.compress(packet, threshold, null, out);
+            } else {
+                Deflater deflater = DeflaterPool.acquire(level);
+                codec.compress(packet, threshold, deflater, out);
+                DeflaterPool.release(deflater);
+            }
+            int length = out.readableBytes();
+            // Length prefix added by the sizer
+            wireBytes += length + (32 - Integer.numberOfLeadingZeros(length) + 6) / 7;
+        }
+        return new long[]{wireBytes, threads.getCurrentThreadCpuTime() - start};
+    }
+
+    private static double cpuPerMegabyte(long[] result) {
+        return TimeUnit.NANOSECONDS.toMicros(result[1]) / 1000.0 / (result[0] / 1e6);
+    }
+}
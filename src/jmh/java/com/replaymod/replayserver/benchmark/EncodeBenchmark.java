@@ -0,0 +1,86 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Measures packets per second through encoding and compression at different compression thresholds, as done for
+ * every packet and user unless packets are pre-encoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncodeBenchmark {
+    /**
+     * Synthetic replay or path to a replay file, see {@link BenchmarkReplays#get(String)}.
+     */
+    @Param("small")
+    public String replay;
+
+    /**
+     * Compression threshold, negative to disable compression.
+     */
+    @Param({"-1", "100", "256"})
+    public int threshold;
+
+    private final PacketCodec codec = PacketCodec.getInstance();
+    private final Deflater deflater = new Deflater();
+    private final ByteBuf encoded = Unpooled.buffer();
+    private final ByteBuf framed = Unpooled.buffer();
+    private RecordedPackets recorded;
+    private Packet[] packets;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        recorded = RecordedPackets.load(BenchmarkReplays.get(replay));
+        packets = new Packet[recorded.size()];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = codec.decode(Unpooled.wrappedBuffer(recorded.getPacket(i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflater.end();
+    }
+
+    private int nextIndex() {
+        if (index == packets.length) {
+            index = 0;
+        }
+        return index++;
+    }
+
+    /**
+     * Encodes and frames a decoded packet, the regular path through the packet codec.
+     */
+    @Benchmark
+    public int encodeAndFrame() throws IOException {
+        encoded.clear();
+        codec.encode(packets[nextIndex()], encoded);
+        framed.clear();
+        codec.frame(encoded, threshold, deflater, framed);
+        return framed.readableBytes();
+    }
+
+    /**
+     * Frames a packet which has not been decoded, the path of raw packets.
+     */
+    @Benchmark
+    public int frameRaw() {
+        framed.clear();
+        codec.frame(Unpooled.wrappedBuffer(recorded.getPacket(nextIndex())), threshold, deflater, framed);
+        return framed.readableBytes();
+    }
+}
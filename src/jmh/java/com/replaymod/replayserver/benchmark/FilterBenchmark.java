@@ -0,0 +1,126 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.google.common.collect.Sets;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
+import org.spacehq.mc.protocol.packet.ingame.server.*;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.*;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerCloseWindowPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerOpenWindowPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerSetSlotPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerWindowItemsPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerNotifyClientPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerOpenTileEntityEditorPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures packets per second through the packet filter, including decoding, as done when loading a replay.
+ * Compares the id-keyed {@link PacketFilter} against the previous class-keyed set and instanceof chain, with and
+ * without lazy decoding.
+ *
+ * A real replay can be used with {@code -PjmhArgs="FilterBenchmark -p replay=/path/to/replay.mcpr"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilterBenchmark {
+    private static final Set<Class> BAD_PACKETS = Sets.newHashSet(
+            ServerUpdateHealthPacket.class,
+            ServerOpenWindowPacket.class,
+            ServerCloseWindowPacket.class,
+            ServerSetSlotPacket.class,
+            ServerWindowItemsPacket.class,
+            ServerOpenTileEntityEditorPacket.class,
+            ServerStatisticsPacket.class,
+            ServerSetExperiencePacket.class,
+            ServerUpdateHealthPacket.class,
+            ServerChangeHeldItemPacket.class,
+            ServerSwitchCameraPacket.class,
+            ServerPlayerAbilitiesPacket.class,
+            ServerTitlePacket.class
+    );
+
+    /**
+     * Synthetic replay or path to a replay file, see {@link BenchmarkReplays#get(String)}.
+     */
+    @Param("small")
+    public String replay;
+
+    private final PacketCodec codec = PacketCodec.getInstance();
+    private final PacketFilter filter = PacketFilter.createDefault();
+    private RecordedPackets packets;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        packets = RecordedPackets.load(BenchmarkReplays.get(replay));
+    }
+
+    private ByteBuf nextPacket() {
+        if (index == packets.size()) {
+            index = 0;
+        }
+        return Unpooled.wrappedBuffer(packets.getPacket(index++));
+    }
+
+    @Benchmark
+    public Packet classFilter() throws IOException {
+        Packet packet = codec.decode(nextPacket());
+        if (BAD_PACKETS.contains(packet.getClass())) {
+            return null;
+        }
+        if (packet instanceof ServerJoinGamePacket) {
+            ServerJoinGamePacket p = (ServerJoinGamePacket) packet;
+            packet = new ServerJoinGamePacket(-1789435, p.getHardcore(), GameMode.SPECTATOR, p.getDimension(),
+                    p.getDifficulty(), p.getMaxPlayers(), p.getWorldType(), p.getReducedDebugInfo());
+        }
+        if (packet instanceof ServerRespawnPacket) {
+            ServerRespawnPacket p = (ServerRespawnPacket) packet;
+            packet = new ServerRespawnPacket(p.getDimension(), p.getDifficulty(), GameMode.SPECTATOR, p.getWorldType());
+        }
+        if (packet instanceof ServerNotifyClientPacket) {
+            switch (((ServerNotifyClientPacket) packet).getNotification()) {
+                case START_RAIN:
+                case STOP_RAIN:
+                case RAIN_STRENGTH:
+                case THUNDER_STRENGTH:
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return packet;
+    }
+
+    @Benchmark
+    public Packet idFilter() throws IOException {
+        ByteBuf buf = nextPacket();
+        int id = codec.peekId(buf);
+        if (filter.isDropped(id)) {
+            return null;
+        }
+        return filter.apply(id, codec.decode(buf));
+    }
+
+    @Benchmark
+    public Packet lazyIdFilter() throws IOException {
+        ByteBuf buf = nextPacket();
+        int id = codec.peekId(buf);
+        if (filter.isDropped(id)) {
+            return null;
+        }
+        return filter.apply(id, filter.isRewritten(id) ? codec.decode(buf) : new RawPacket(id, buf));
+    }
+}
@@ -0,0 +1,103 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import org.spacehq.mc.protocol.MinecraftProtocol;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.packetlib.Client;
+import org.spacehq.packetlib.event.session.PacketReceivedEvent;
+import org.spacehq.packetlib.event.session.SessionAdapter;
+import org.spacehq.packetlib.tcp.TcpSessionFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory used per idle viewer with a given scheduler.
+ * A number of users is connected to a replay whose packets are spread over ten minutes, so they spend most of their
+ * time waiting for the next packet. Heap usage and the number of platform threads are compared before and after.
+ * The clients run in the same process, their share is the same for all schedulers.
+ *
+ * Usage: {@code IdleViewerMemory [scheduler class] [viewers]}, e.g.
+ * {@code com.replaymod.replayserver.VirtualThreadScheduler 1000} (requires Java 21).
+ */
+public class IdleViewerMemory {
+    public static void main(String[] args) throws Exception {
+        String scheduler = args.length > 0 ? args[0] : "com.replaymod.replayserver.ThreadPerUserScheduler";
+        int viewers = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        File file = SyntheticReplay.MEDIUM.getFile(false);
+        System.setProperty("filereplaydatabase.folder", file.getParent());
+        System.setProperty("fixedreplayselector.id", file.getName());
+        System.setProperty("replayserver.scheduler", scheduler);
+        // All viewers should be admitted right away
+        System.setProperty("admission.burst", String.valueOf(viewers));
+        System.setProperty("admission.maxopens", String.valueOf(viewers));
+        System.setProperty("admission.maxsessions", String.valueOf(viewers));
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ReplayServer server = new ReplayServer("localhost", port, MinecraftProtocol.class, new TcpSessionFactory());
+        server.bind();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        settle();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount();
+
+        CountDownLatch joined = new CountDownLatch(viewers);
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < viewers; i++) {
+                Client client = new Client("localhost", port, new MinecraftProtocol("Viewer" + i),
+                        new TcpSessionFactory());
+                client.getSession().addListener(new SessionAdapter() {
+                    @Override
+                    public void packetReceived(PacketReceivedEvent event) {
+                        if (event.getPacket() instanceof ServerJoinGamePacket) {
+                            joined.countDown();
+                        }
+                    }
+                });
+                clients.add(client);
+                client.getSession().connect();
+            }
+            if (!joined.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Not all viewers have joined");
+            }
+
+            settle();
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+            int threadsAfter = threads.getThreadCount();
+            System.out.println("Scheduler: " + scheduler);
+            System.out.println("Viewers: " + viewers);
+            System.out.println("Heap per viewer: " + (heapAfter - heapBefore) / viewers + " bytes");
+            System.out.printf("Platform threads per viewer: %.2f (%d total)%n",
+                    (double) (threadsAfter - threadsBefore) / viewers, threadsAfter);
+        } finally {
+            for (Client client : clients) {
+                client.getSession().disconnect("Finished");
+            }
+            server.close();
+        }
+    }
+
+    /**
+     * Waits for the initial burst of packets to be sent and collects garbage.
+     */
+    private static void settle() throws InterruptedException {
+        Thread.sleep(5000);
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(500);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.PacketOutput;
+import com.replaymod.replayserver.ReplaySession;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.selectors.TailReplayDatabase;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a replay at the rate it has been recorded (optionally sped up), like a recorder would, while several viewers
+ * follow it through the {@link TailReplayDatabase}. Reports how far each viewer falls behind the recorder in addition
+ * to the configured delay, and how often viewers are processed, which should be roughly once per tick of the replay
+ * rather than once per polling interval.
+ *
+ * Usage: {@code LiveTailHarness [replay] [viewers] [delay in ms] [speed]}, see {@link BenchmarkReplays#get(String)}.
+ */
+public class LiveTailHarness {
+    public static void main(String[] args) throws Exception {
+        RecordedPackets recorded = RecordedPackets.load(BenchmarkReplays.get(args.length > 0 ? args[0] : "SMALL"));
+        int viewerCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        // Read once when the session class is initialized
+        System.setProperty("replaysession.livedelay", Integer.toString(delay));
+
+        File folder = Files.createTempDirectory("replayserver-live").toFile();
+        System.setProperty("tailreplaydatabase.folder", folder.getPath());
+        File file = new File(folder, "harness.tmcpr");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        Writer writer = new Writer(recorded, out, speed);
+        // Some time has been recorded before anyone joins
+        writer.writeUntil(delay * 2, false);
+
+        TailReplayDatabase database = new TailReplayDatabase();
+        PacketFilter filter = PacketFilter.createDefault();
+        List<Viewer> viewers = new ArrayList<>();
+        for (int i = 0; i < viewerCount; i++) {
+            ReplayFile replayFile = database.getReplayFile(null, "harness");
+            Viewer viewer = new Viewer(writer, delay);
+            viewer.session = new ReplaySession(null, viewer, filter, replayFile, null, null, null);
+            viewer.session.setSpeed(speed);
+            viewer.thread = new Thread(viewer, "Viewer-" + i);
+            viewer.session.setWakeup(() -> LockSupport.unpark(viewer.thread));
+            viewers.add(viewer);
+        }
+        viewers.forEach(viewer -> viewer.thread.start());
+
+        long start = System.nanoTime();
+        writer.writeUntil(recorded.getTime(recorded.size() - 1), true);
+        out.close();
+        // Give viewers time to catch up with the delay before stopping them
+        Thread.sleep(delay + 500);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Viewer viewer : viewers) {
+            viewer.thread.interrupt();
+            viewer.thread.join();
+            viewer.session.close();
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        folder.deleteOnExit();
+
+        System.out.println("viewer  lag beyond delay mean/p99/max (ms)  processed per second  packets");
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer viewer = viewers.get(i);
+            System.out.printf("%6d  %34s  %20.1f  %7d%n", i, stats(viewer.lag.toLongArray()),
+                    viewer.processed / seconds, viewer.packets);
+        }
+    }
+
+    private static String stats(long[] values) {
+        if (values.length == 0) {
+            return "-";
+        }
+        Arrays.sort(values);
+        double mean = Arrays.stream(values).average().orElse(0);
+        return String.format("%.1f/%d/%d", mean, values[(int) (values.length * 0.99)], values[values.length - 1]);
+    }
+
+    /**
+     * Appends packets to the stream once they are due, flushing after each tick like a recorder.
+     */
+    private static class Writer {
+        private final RecordedPackets recorded;
+        private final DataOutputStream out;
+        private final double speed;
+        private int next;
+        /**
+         * Replay time of the last packet which has been flushed.
+         */
+        private volatile int writtenTime;
+
+        private Writer(RecordedPackets recorded, DataOutputStream out, double speed) {
+            this.recorded = recorded;
+            this.out = out;
+            this.speed = speed;
+        }
+
+        /**
+         * Writes all packets up to the specified time.
+         * @param time Replay time in milliseconds
+         * @param paced Whether to wait until each tick is due, otherwise the packets are written at once as if they
+         *              had been recorded before
+         */
+        private void writeUntil(int time, boolean paced) throws Exception {
+            long start = System.nanoTime() - (long) (writtenTime * TimeUnit.MILLISECONDS.toNanos(1) / speed);
+            while (next < recorded.size() && recorded.getTime(next) <= time) {
+                int tick = recorded.getTime(next);
+                long due = start + (long) (tick * TimeUnit.MILLISECONDS.toNanos(1) / speed);
+                long wait = due - System.nanoTime();
+                if (paced && wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                while (next < recorded.size() && recorded.getTime(next) == tick) {
+                    byte[] packet = recorded.getPacket(next++);
+                    out.writeInt(tick);
+                    out.writeInt(packet.length);
+                    out.write(packet);
+                }
+                out.flush();
+                writtenTime = tick;
+            }
+        }
+    }
+
+    /**
+     * A viewer following the recording on its own thread, parked until its session is due or woken up.
+     */
+    private static class Viewer implements Runnable, PacketOutput {
+        private final Writer writer;
+        private final int delay;
+        private final LongArrayList lag = new LongArrayList();
+        private ReplaySession session;
+        private Thread thread;
+        private long processed;
+        private long packets;
+
+        private Viewer(Writer writer, int delay) {
+            this.writer = writer;
+            this.delay = delay;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    long sleep = session.process(System.nanoTime());
+                    processed++;
+                    lag.add(writer.writtenTime - session.getTime() - delay);
+                    LockSupport.parkNanos(this, sleep > 0 ? sleep : TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void write(Packet packet) {
+            packets++;
+        }
+
+        @Override
+        public void writeEncoded(Packet packet, ByteBuf encoded) {
+            packets++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public int getCompressionThreshold() {
+            return -1;
+        }
+    }
+}
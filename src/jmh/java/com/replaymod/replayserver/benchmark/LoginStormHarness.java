@@ -0,0 +1,130 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.PacketOutput;
+import com.replaymod.replayserver.ReplaySession;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.index.JoinSnapshot;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.PacketTimelineCache;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import io.netty.buffer.ByteBuf;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts many sessions of the same replay at once, with and without its {@link JoinSnapshot}, and reports the time
+ * to first frame of each one, i.e. until the client would leave the dirt screen.
+ * Sessions are played against a virtual clock, so the replay time it takes is reported separately from the CPU time
+ * spent in {@link ReplaySession#process(long)}.
+ *
+ * Usage: {@code LoginStormHarness [replay] [sessions]}, see {@link BenchmarkReplays#get(String)}.
+ */
+public class LoginStormHarness {
+    private static final int POSITION_ID = PacketCodec.getInstance().getId(ServerPlayerPositionRotationPacket.class);
+
+    public static void main(String[] args) throws Exception {
+        File file = BenchmarkReplays.get(args.length > 0 ? args[0] : "MEDIUM");
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        PacketFilter filter = PacketFilter.createDefault();
+
+        System.out.println("snapshot  replay time mean/p99/max (ms)  cpu time mean/p99/max (us)  packets per join");
+        for (boolean snapshot : new boolean[]{false, true}) {
+            System.setProperty("timelinecache.joinsnapshot", snapshot ? "10000" : "0");
+            PacketTimelineCache timelineCache = new PacketTimelineCache(filter, true, true, -1);
+            PacketTimelineCache.Reference reference = timelineCache.acquire(file.getName(), () -> open(file));
+            while (reference.getIfLoaded() == null) {
+                Thread.sleep(10);
+            }
+            if (snapshot && reference.getJoinSnapshot() == null) {
+                System.out.println("Replay has no join snapshot");
+                break;
+            }
+
+            long[] replayTimes = new long[sessions];
+            long[] cpuTimes = new long[sessions];
+            long packets = 0;
+            for (int i = 0; i < sessions; i++) {
+                Join join = new Join();
+                ZipReplayFile replayFile = open(file);
+                ReplaySession session = new ReplaySession(null, join, filter, replayFile, null,
+                        timelineCache.acquire(file.getName(), () -> open(file)), null, () -> join.now);
+                long sleep;
+                do {
+                    long start = System.nanoTime();
+                    sleep = session.process(join.now);
+                    cpuTimes[i] += System.nanoTime() - start;
+                    join.now += sleep;
+                } while (!join.loaded && sleep > 0);
+                session.close();
+                replayTimes[i] = TimeUnit.NANOSECONDS.toMillis(join.loadedTime);
+                cpuTimes[i] = TimeUnit.NANOSECONDS.toMicros(cpuTimes[i]);
+                packets += join.packets;
+            }
+            reference.release();
+            System.out.printf("%-8s  %29s  %26s  %16d%n", snapshot, stats(replayTimes), stats(cpuTimes),
+                    packets / sessions);
+        }
+        System.clearProperty("timelinecache.joinsnapshot");
+    }
+
+    private static ZipReplayFile open(File file) throws Exception {
+        ReplayStudio studio = new ReplayStudio();
+        studio.setWrappingEnabled(false);
+        return new ZipReplayFile(studio, file);
+    }
+
+    private static String stats(long[] values) {
+        Arrays.sort(values);
+        double mean = Arrays.stream(values).average().orElse(0);
+        return String.format("%.1f/%d/%d", mean, values[(int) (values.length * 0.99)], values[values.length - 1]);
+    }
+
+    /**
+     * A single joining user, recording when the world has been loaded.
+     */
+    private static class Join implements PacketOutput {
+        private long now;
+        private boolean loaded;
+        private long loadedTime;
+        private long packets;
+
+        private void sent(Packet packet) {
+            packets++;
+            int id = packet instanceof RawPacket ? ((RawPacket) packet).getId() : -1;
+            if (!loaded && (id == POSITION_ID || packet instanceof ServerPlayerPositionRotationPacket)) {
+                loaded = true;
+                loadedTime = now;
+            }
+        }
+
+        @Override
+        public void write(Packet packet) {
+            sent(packet);
+        }
+
+        @Override
+        public void writeEncoded(Packet packet, ByteBuf encoded) {
+            sent(packet);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public int getCompressionThreshold() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import org.openjdk.jmh.annotations.*;
+import org.spacehq.mc.protocol.MinecraftProtocol;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerChatPacket;
+import org.spacehq.packetlib.Client;
+import org.spacehq.packetlib.event.session.PacketReceivedEvent;
+import org.spacehq.packetlib.event.session.SessionAdapter;
+import org.spacehq.packetlib.tcp.TcpSessionFactory;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to stream a whole replay to a number of simultaneous users, end to end over loopback.
+ * A synthetic replay with all packets due immediately is used, so its duration does not matter. Note that the
+ * clients run in the same process and have to decode all packets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackBenchmark {
+    /**
+     * The synthetic replay.
+     */
+    @Param("SMALL")
+    public SyntheticReplay replay;
+
+    /**
+     * Number of simultaneous users.
+     */
+    @Param({"1", "10", "50"})
+    public int sessions;
+
+    private ReplayServer server;
+    private int port;
+
+    @Setup
+    public void setup() throws Exception {
+        File file = replay.getFile(true);
+        System.setProperty("filereplaydatabase.folder", file.getParent());
+        System.setProperty("fixedreplayselector.id", file.getName());
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new ReplayServer("localhost", port, MinecraftProtocol.class, new TcpSessionFactory());
+        server.bind();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void streamReplay() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(sessions);
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                Client client = new Client("localhost", port, new MinecraftProtocol("Benchmark" + i),
+                        new TcpSessionFactory());
+                client.getSession().addListener(new SessionAdapter() {
+                    @Override
+                    public void packetReceived(PacketReceivedEvent event) {
+                        if (event.getPacket() instanceof ServerChatPacket) {
+                            String text = ((ServerChatPacket) event.getPacket()).getMessage().getFullText();
+                            if (SyntheticReplay.END_MESSAGE.equals(text)) {
+                                finished.countDown();
+                            }
+                        }
+                    }
+                });
+                clients.add(client);
+                client.getSession().connect();
+            }
+            if (!finished.await(10, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Replay has not been fully received");
+            }
+        } finally {
+            for (Client client : clients) {
+                client.getSession().disconnect("Finished");
+            }
+        }
+    }
+}
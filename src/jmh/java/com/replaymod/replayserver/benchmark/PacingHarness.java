@@ -0,0 +1,143 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.PacketOutput;
+import com.replaymod.replayserver.ReplaySession;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replayserver.io.PacketTimelineCache;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a replay against a virtual clock at speeds from 0.25x to 16x, with and without pacing, and reports how
+ * evenly packets are sent.
+ * Jitter is the difference between the time a packet is sent and the time it is due according to its timestamp.
+ * Burst size is the number of packets sent by a single call to {@link ReplaySession#process(long)}.
+ * Wakeups are rounded up to the scheduler quantum like {@link com.replaymod.replayserver.SharedPoolScheduler} does.
+ *
+ * Usage: {@code PacingHarness [replay] [quantum in microseconds]}, see {@link BenchmarkReplays#get(String)}.
+ */
+public class PacingHarness {
+    private static final double[] SPEEDS = {0.25, 0.5, 1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        File file = BenchmarkReplays.get(args.length > 0 ? args[0] : "SMALL");
+        long quantum = TimeUnit.MICROSECONDS.toNanos(args.length > 1 ? Long.parseLong(args[1]) : 1000);
+
+        PacketFilter filter = PacketFilter.createDefault();
+        PacketTimelineCache timelineCache = new PacketTimelineCache(filter, true, false, -1);
+        PacketTimelineCache.Reference reference = timelineCache.acquire(file.getName(), () -> open(file));
+        PacketTimeline timeline;
+        while ((timeline = reference.getIfLoaded()) == null) {
+            Thread.sleep(10);
+        }
+        // Timestamps of all packets which are sent, in order
+        IntArrayList times = new IntArrayList();
+        for (int i = 0; i < timeline.size(); i++) {
+            PacketData packet = timeline.get(i);
+            if (packet != null) {
+                times.add((int) packet.getTime());
+            }
+        }
+
+        System.out.println("speed  pacing  jitter mean/p99/max (us)   burst mean/p99/max (packets)");
+        for (double speed : SPEEDS) {
+            for (boolean pacing : new boolean[]{false, true}) {
+                Run run = new Run(quantum);
+                ZipReplayFile replayFile = open(file);
+                ReplaySession session = new ReplaySession(null, run, filter, replayFile, null,
+                        timelineCache.acquire(file.getName(), () -> open(file)), null, () -> run.now);
+                session.setSpeed(speed);
+                session.setPacing(pacing);
+                run.play(session);
+                session.close();
+
+                long[] jitter = new long[run.sendTimes.size()];
+                for (int i = 0; i < jitter.length; i++) {
+                    long due = (long) (times.getInt(i) * TimeUnit.MILLISECONDS.toNanos(1) / speed);
+                    jitter[i] = TimeUnit.NANOSECONDS.toMicros(Math.abs(run.sendTimes.getLong(i) - due));
+                }
+                long[] bursts = run.bursts.toLongArray();
+                System.out.printf("%5.2f  %-6s  %s   %s%n", speed, pacing, stats(jitter), stats(bursts));
+            }
+        }
+        reference.release();
+    }
+
+    private static ZipReplayFile open(File file) throws Exception {
+        ReplayStudio studio = new ReplayStudio();
+        studio.setWrappingEnabled(false);
+        return new ZipReplayFile(studio, file);
+    }
+
+    private static String stats(long[] values) {
+        if (values.length == 0) {
+            return "-";
+        }
+        Arrays.sort(values);
+        double mean = Arrays.stream(values).average().orElse(0);
+        return String.format("%.1f/%d/%d", mean, values[(int) (values.length * 0.99)], values[values.length - 1]);
+    }
+
+    /**
+     * A single playback, recording when each packet has been sent.
+     */
+    private static class Run implements PacketOutput {
+        private final long quantum;
+        private final LongArrayList sendTimes = new LongArrayList();
+        private final LongArrayList bursts = new LongArrayList();
+        private long now;
+
+        private Run(long quantum) {
+            this.quantum = quantum;
+        }
+
+        private void play(ReplaySession session) throws Exception {
+            long sleep;
+            do {
+                int sent = sendTimes.size();
+                sleep = session.process(now);
+                if (sendTimes.size() > sent) {
+                    bursts.add(sendTimes.size() - sent);
+                }
+                now += sleep;
+                if (quantum > 1) {
+                    now += Math.floorMod(-now, quantum);
+                }
+            } while (sleep > 0);
+        }
+
+        @Override
+        public void write(Packet packet) {
+            sendTimes.add(now);
+        }
+
+        @Override
+        public void writeEncoded(Packet packet, ByteBuf encoded) {
+            sendTimes.add(now);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public int getCompressionThreshold() {
+            return -1;
+        }
+    }
+}
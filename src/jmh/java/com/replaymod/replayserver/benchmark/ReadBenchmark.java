@@ -0,0 +1,110 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to read all packets of a replay from a {@link ZipReplayFile}: fully decoded by
+ * ReplayStudio, as raw frames only and into a {@link PacketTimeline} in its different modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+    /**
+     * Synthetic replay or path to a replay file, see {@link BenchmarkReplays#get(String)}.
+     */
+    @Param("small")
+    public String replay;
+
+    private final PacketFilter filter = PacketFilter.createDefault();
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = BenchmarkReplays.get(replay);
+    }
+
+    private ReplayFile open() throws IOException {
+        ReplayStudio studio = new ReplayStudio();
+        studio.setWrappingEnabled(false);
+        return new ZipReplayFile(studio, file);
+    }
+
+    @Benchmark
+    public int decodeAll() throws IOException {
+        ReplayFile replayFile = open();
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            int count = 0;
+            while (in.readPacket() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            replayFile.close();
+        }
+    }
+
+    @Benchmark
+    public int rawFrames() throws IOException {
+        ReplayFile replayFile = open();
+        try (DataInputStream in = new DataInputStream(replayFile.getPacketData())) {
+            int count = 0;
+            byte[] buf = new byte[4096];
+            while (true) {
+                try {
+                    in.readInt();
+                } catch (EOFException e) {
+                    return count;
+                }
+                int length = in.readInt();
+                if (buf.length < length) {
+                    buf = new byte[length];
+                }
+                in.readFully(buf, 0, length);
+                count++;
+            }
+        } finally {
+            replayFile.close();
+        }
+    }
+
+    @Benchmark
+    public PacketTimeline timeline() throws IOException {
+        return readTimeline(false, false);
+    }
+
+    @Benchmark
+    public PacketTimeline lazyTimeline() throws IOException {
+        return readTimeline(true, false);
+    }
+
+    @Benchmark
+    public PacketTimeline preEncodedTimeline() throws IOException {
+        return readTimeline(true, true);
+    }
+
+    private PacketTimeline readTimeline(boolean lazy, boolean preEncode) throws IOException {
+        ReplayFile replayFile = open();
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            return PacketTimeline.read(in, filter, lazy, preEncode, ReplayServer.COMPRESSION_THRESHOLD);
+        } finally {
+            replayFile.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The raw packets of a replay, loaded into memory so benchmarks do not measure file access.
+ */
+public class RecordedPackets {
+    private final int[] times;
+    private final byte[][] packets;
+
+    private RecordedPackets(int[] times, byte[][] packets) {
+        this.times = times;
+        this.packets = packets;
+    }
+
+    public int size() {
+        return packets.length;
+    }
+
+    public int getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Returns the packet id and payload of the packet at the specified index.
+     * @param index Index of the packet
+     * @return The raw packet
+     */
+    public byte[] getPacket(int index) {
+        return packets[index];
+    }
+
+    /**
+     * Loads all packets of the specified replay file.
+     * @param file The replay file (.mcpr)
+     * @return The packets
+     */
+    public static RecordedPackets load(File file) throws IOException {
+        ReplayStudio studio = new ReplayStudio();
+        studio.setWrappingEnabled(false);
+        ReplayFile replayFile = new ZipReplayFile(studio, file);
+        try (ReplayInputStream replayIn = replayFile.getPacketData()) {
+            DataInputStream in = new DataInputStream(replayIn);
+            List<Integer> times = new ArrayList<>();
+            List<byte[]> packets = new ArrayList<>();
+            while (true) {
+                try {
+                    times.add(in.readInt());
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] packet = new byte[in.readInt()];
+                in.readFully(packet);
+                packets.add(packet);
+            }
+            return new RecordedPackets(times.stream().mapToInt(Integer::intValue).toArray(),
+                    packets.toArray(new byte[packets.size()][]));
+        } finally {
+            replayFile.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.ReplayServer;
+import com.replaymod.replayserver.selectors.LibraryReplaySelector;
+import com.replaymod.replayserver.shard.ShardFront;
+import org.spacehq.mc.protocol.MinecraftProtocol;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.packetlib.Client;
+import org.spacehq.packetlib.event.session.PacketReceivedEvent;
+import org.spacehq.packetlib.event.session.SessionAdapter;
+import org.spacehq.packetlib.tcp.TcpSessionFactory;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts several replay servers and a {@link ShardFront} on loopback and connects clients to the front, a few replays
+ * being watched by most of them. Once all clients have been handed over, reports how many users and replays each node
+ * has, how many nodes each replay has been loaded on and how long the hand over took.
+ * Hot replays should be spread over a few nodes, all others should be loaded on exactly one.
+ *
+ * Usage: {@code ShardHarness [replay] [nodes] [replays] [clients] [hot viewers]}, see
+ * {@link BenchmarkReplays#get(String)}. Every replay is a copy of the same file.
+ */
+public class ShardHarness {
+    /**
+     * Number of clients connecting per second, slow enough for the front to see the load of the nodes growing.
+     */
+    private static final int CONNECT_RATE = 200;
+
+    public static void main(String[] args) throws Exception {
+        File file = BenchmarkReplays.get(args.length > 0 ? args[0] : "SMALL");
+        int nodeCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int replayCount = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int clientCount = args.length > 3 ? Integer.parseInt(args[3]) : 400;
+        int hotViewers = args.length > 4 ? Integer.parseInt(args[4]) : 40;
+
+        File folder = Files.createTempDirectory("replayserver-shard").toFile();
+        for (int i = 0; i < replayCount; i++) {
+            Files.copy(file.toPath(), new File(folder, "r" + i + ".mcpr").toPath());
+        }
+        System.setProperty("filereplaydatabase.folder", folder.getPath());
+        System.setProperty("replayserver.selector", LibraryReplaySelector.class.getName());
+        System.setProperty("admission.rate", Integer.toString(CONNECT_RATE * 2));
+        System.setProperty("admission.burst", Integer.toString(CONNECT_RATE * 2));
+        System.setProperty("admission.maxsessions", Integer.toString(clientCount));
+        System.setProperty("shard.hotviewers", Integer.toString(hotViewers));
+        System.setProperty("shard.pollinterval", "200");
+
+        List<ReplayServer> nodes = new ArrayList<>();
+        List<String> specs = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            int port = freePort();
+            int loadPort = freePort();
+            System.setProperty("metrics.port", Integer.toString(loadPort));
+            ReplayServer node = new ReplayServer("localhost", port, MinecraftProtocol.class, new TcpSessionFactory());
+            node.bind();
+            nodes.add(node);
+            specs.add("localhost:" + port + ":" + loadPort);
+        }
+        System.clearProperty("metrics.port");
+        System.setProperty("shard.nodes", String.join(",", specs));
+        int frontPort = freePort();
+        ShardFront front = new ShardFront("localhost", frontPort, MinecraftProtocol.class, new TcpSessionFactory());
+        front.bind();
+
+        Random random = new Random(0);
+        CountDownLatch joined = new CountDownLatch(clientCount);
+        long[] handOverTimes = new long[clientCount];
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < clientCount; i++) {
+                // Skewed towards the first replays
+                String name = "r" + (int) (replayCount * Math.pow(random.nextDouble(), 3));
+                Client client = new Client("localhost", frontPort, new MinecraftProtocol(name),
+                        new TcpSessionFactory());
+                int index = i;
+                long start = System.nanoTime();
+                client.getSession().addListener(new SessionAdapter() {
+                    @Override
+                    public void packetReceived(PacketReceivedEvent event) {
+                        if (event.getPacket() instanceof ServerJoinGamePacket && handOverTimes[index] == 0) {
+                            handOverTimes[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                            joined.countDown();
+                        }
+                    }
+                });
+                clients.add(client);
+                client.getSession().connect();
+                Thread.sleep(1000 / CONNECT_RATE);
+            }
+            if (!joined.await(1, TimeUnit.MINUTES)) {
+                System.out.println((clientCount - joined.getCount()) + " of " + clientCount + " clients joined");
+            }
+
+            System.out.println("node             users  replays");
+            Map<String, Integer> viewers = new HashMap<>();
+            Map<String, Integer> copies = new HashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                Map<String, Integer> replays = nodes.get(i).getShardLoad().getReplays();
+                replays.forEach((id, count) -> {
+                    viewers.merge(id, count, Integer::sum);
+                    copies.merge(id, 1, Integer::sum);
+                });
+                System.out.printf("%-15s  %5d  %7d%n", specs.get(i).substring(0, specs.get(i).lastIndexOf(':')),
+                        nodes.get(i).getShardLoad().getSessions(), replays.size());
+            }
+
+            System.out.println();
+            System.out.println("replay  users  nodes");
+            viewers.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                    .limit(10)
+                    .forEach(e -> System.out.printf("%-6s  %5d  %5d%n", e.getKey().replace(".mcpr", ""),
+                            e.getValue(), copies.get(e.getKey())));
+            System.out.printf("%nreplays loaded on %.2f nodes on average%n",
+                    copies.values().stream().mapToInt(Integer::intValue).average().orElse(0));
+            System.out.println("hand over time mean/p99/max (ms): " + stats(handOverTimes));
+        } finally {
+            for (Client client : clients) {
+                client.getSession().disconnect("Finished");
+            }
+            front.close();
+            nodes.forEach(ReplayServer::close);
+            for (File replay : folder.listFiles()) {
+                replay.deleteOnExit();
+            }
+            folder.deleteOnExit();
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String stats(long[] values) {
+        values = Arrays.stream(values).filter(value -> value > 0).sorted().toArray();
+        if (values.length == 0) {
+            return "-";
+        }
+        double mean = Arrays.stream(values).average().orElse(0);
+        return String.format("%.1f/%d/%d", mean, values[(int) (values.length * 0.99)], values[values.length - 1]);
+    }
+}
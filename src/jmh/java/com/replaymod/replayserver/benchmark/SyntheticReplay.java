@@ -0,0 +1,169 @@
+package com.replaymod.replayserver.benchmark;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.spacehq.mc.protocol.data.game.Chunk;
+import org.spacehq.mc.protocol.data.game.EntityMetadata;
+import org.spacehq.mc.protocol.data.game.NibbleArray3d;
+import org.spacehq.mc.protocol.data.game.Position;
+import org.spacehq.mc.protocol.data.game.ShortArray3d;
+import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
+import org.spacehq.mc.protocol.data.game.values.setting.Difficulty;
+import org.spacehq.mc.protocol.data.game.values.world.WorldType;
+import org.spacehq.mc.protocol.data.game.values.world.block.BlockChangeRecord;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerChatPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.ServerEntityPositionRotationPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.spawn.ServerSpawnPlayerPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerBlockChangePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerChunkDataPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerUpdateTimePacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates replays of different sizes, so benchmarks do not depend on private replay files.
+ * Each replay starts with a square of loaded chunks and a number of players, which then move around every tick while
+ * some blocks change. The last packet is a chat message {@link #END_MESSAGE}.
+ * Replays are deterministic and generated once per temporary directory.
+ */
+public enum SyntheticReplay {
+    SMALL(60, 4, 20),
+    MEDIUM(600, 8, 100),
+    HUGE(1800, 12, 200);
+
+    /**
+     * Text of the chat message sent at the very end of each synthetic replay.
+     */
+    public static final String END_MESSAGE = "end of replay";
+
+    private static final int TICK = 50;
+
+    private final int duration;
+    private final int radius;
+    private final int players;
+
+    /**
+     * @param duration Duration in seconds
+     * @param radius Radius of the square of loaded chunks, in chunks
+     * @param players Number of players moving around
+     */
+    SyntheticReplay(int duration, int radius, int players) {
+        this.duration = duration;
+        this.radius = radius;
+        this.players = players;
+    }
+
+    /**
+     * Returns the file of this replay, generating it if necessary.
+     * @param burst Whether all packets should have a timestamp of 0, so the whole replay is due immediately
+     * @return The replay file
+     */
+    public synchronized File getFile(boolean burst) throws IOException {
+        String name = "replayserver-" + name().toLowerCase() + (burst ? "-burst" : "") + ".mcpr";
+        File file = new File(System.getProperty("java.io.tmpdir"), name);
+        if (!file.exists()) {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            write(tmpFile, burst);
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+        }
+        return file;
+    }
+
+    private void write(File file, boolean burst) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("metaData.json"));
+            zip.write(("{\"singleplayer\":false,\"serverName\":\"synthetic\",\"duration\":" + duration * 1000
+                    + ",\"date\":0,\"mcversion\":\"1.8\",\"fileFormat\":\"MCPR\",\"fileFormatVersion\":1"
+                    + ",\"generator\":\"ReplayServer benchmark\",\"players\":[]}").getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("recording.tmcpr"));
+            Writer out = new Writer(new DataOutputStream(zip), burst);
+            writePackets(out);
+            out.out.flush();
+            zip.closeEntry();
+        }
+    }
+
+    private void writePackets(Writer out) throws IOException {
+        Random random = new Random(0);
+        out.write(0, new ServerJoinGamePacket(1, false, GameMode.SURVIVAL, 0, Difficulty.NORMAL, 20,
+                WorldType.DEFAULT, false));
+        for (int x = -radius; x <= radius; x++) {
+            for (int z = -radius; z <= radius; z++) {
+                out.write(0, createChunk(x, z, random));
+            }
+        }
+        out.write(0, new ServerPlayerPositionRotationPacket(0, 80, 0, 0, 0));
+        for (int i = 0; i < players; i++) {
+            out.write(0, new ServerSpawnPlayerPacket(100 + i, new UUID(0, i), random.nextInt(64) - 32, 65,
+                    random.nextInt(64) - 32, 0, 0, 0, new EntityMetadata[0]));
+        }
+
+        int range = radius * 16;
+        for (int time = TICK; time < duration * 1000; time += TICK) {
+            for (int i = 0; i < players; i++) {
+                out.write(time, new ServerEntityPositionRotationPacket(100 + i, random.nextDouble() - 0.5, 0,
+                        random.nextDouble() - 0.5, random.nextFloat() * 360, 0, true));
+            }
+            for (int i = 0; i < 2; i++) {
+                Position pos = new Position(random.nextInt(2 * range) - range, 64, random.nextInt(2 * range) - range);
+                out.write(time, new ServerBlockChangePacket(new BlockChangeRecord(pos, random.nextInt(16) << 4)));
+            }
+            if (time % 1000 == 0) {
+                out.write(time, new ServerUpdateTimePacket(time / TICK, time / TICK));
+            }
+        }
+        out.write(duration * 1000, new ServerChatPacket(END_MESSAGE));
+    }
+
+    private static Packet createChunk(int x, int z, Random random) {
+        Chunk[] sections = new Chunk[16];
+        for (int i = 0; i < 4; i++) {
+            ShortArray3d blocks = new ShortArray3d(4096);
+            for (int bx = 0; bx < 16; bx++) {
+                for (int by = 0; by < 16; by++) {
+                    for (int bz = 0; bz < 16; bz++) {
+                        blocks.set(bx, by, bz, (1 + random.nextInt(4)) << 4);
+                    }
+                }
+            }
+            sections[i] = new Chunk(blocks, new NibbleArray3d(4096), new NibbleArray3d(4096));
+        }
+        return new ServerChunkDataPacket(x, z, sections, new byte[256]);
+    }
+
+    private static class Writer {
+        private final PacketCodec codec = PacketCodec.getInstance();
+        private final ByteBuf buf = Unpooled.buffer();
+        private final DataOutputStream out;
+        private final boolean burst;
+
+        private Writer(DataOutputStream out, boolean burst) {
+            this.out = out;
+            this.burst = burst;
+        }
+
+        private void write(int time, Packet packet) throws IOException {
+            buf.clear();
+            codec.encode(packet, buf);
+            out.writeInt(burst ? 0 : time);
+            out.writeInt(buf.readableBytes());
+            buf.readBytes(out, buf.readableBytes());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.replaymod.replayserver;
+
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import org.spacehq.mc.protocol.data.game.values.MessageType;
+import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
+import org.spacehq.mc.protocol.data.game.values.setting.Difficulty;
+import org.spacehq.mc.protocol.data.game.values.world.WorldType;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Decides which connections are accepted and when logged in users may start watching their replay.
+ *
+ * New connections are rate limited by a token bucket refilling at {@code admission.rate} connections per second
+ * (default 20) up to {@code admission.burst} connections (default 50). Connections exceeding the rate are rejected.
+ *
+ * Logged in users are admitted once fewer than {@code admission.maxsessions} users (default 1000) are watching, fewer
+ * than {@code admission.maxopens} users (default 8) are waiting for their replay to be opened and the server has
+ * enough headroom: at least {@code admission.minfreememory} (default 0.15) of the maximum heap size has to be free
+ * after the last garbage collection and the system load per processor must not exceed {@code admission.maxload}
+ * (default 0.9). All other users are queued, up to {@code admission.maxqueue} users (default 500), and are shown their
+ * position in the queue while waiting in an empty world.
+ */
+public class AdmissionController {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+    private static final Counter REJECTED = Metrics.counter("replayserver_connections_rejected_total",
+            "Number of connections rejected because the connection rate limit was exceeded or the queue was full");
+
+    /**
+     * Interval in milliseconds in which queued users are admitted if possible and informed about their position.
+     */
+    private static final long QUEUE_UPDATE_INTERVAL = 1000;
+
+    private final double rate = Double.parseDouble(System.getProperty("admission.rate", "20"));
+    private final double burst = Double.parseDouble(System.getProperty("admission.burst", "50"));
+    private final int maxSessions = Integer.getInteger("admission.maxsessions", 1000);
+    private final int maxOpens = Integer.getInteger("admission.maxopens", 8);
+    private final int maxQueue = Integer.getInteger("admission.maxqueue", 500);
+    private final double minFreeMemory = Double.parseDouble(System.getProperty("admission.minfreememory", "0.15"));
+    private final double maxLoad = Double.parseDouble(System.getProperty("admission.maxload", "0.9"));
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Admission");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Tokens currently in the bucket. Guarded by {@code this}.
+     */
+    private double tokens = burst;
+    /**
+     * Time in nanoseconds at which {@link #tokens} was last refilled. Guarded by {@code this}.
+     */
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Queued users in order of arrival and the task admitting them. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<ReplayUser, Runnable> queue = new LinkedHashMap<>();
+    /**
+     * Admitted users whose replay is still being opened. Guarded by {@code this}.
+     */
+    private final Set<ReplayUser> opening = new HashSet<>();
+    /**
+     * All admitted users, including those in {@link #opening}. Guarded by {@code this}.
+     */
+    private final Set<ReplayUser> admitted = new HashSet<>();
+
+    public AdmissionController() {
+        Metrics.gauge("replayserver_admission_queue", "Number of users waiting to be admitted", this::getQueueSize);
+        Metrics.gauge("replayserver_admission_opening", "Number of admitted users whose replay is being opened",
+                this::getOpeningCount);
+        executor.scheduleWithFixedDelay(this::updateQueue,
+                QUEUE_UPDATE_INTERVAL, QUEUE_UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a token for a new connection from the bucket.
+     * @return {@code true} if the connection may be accepted, {@code false} if the rate limit has been exceeded
+     */
+    public synchronized boolean tryConnect() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+        if (tokens < 1) {
+            REJECTED.increment();
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Admits the specified logged in user as soon as possible.
+     * The user is kicked if the queue is full.
+     * @param user The user
+     * @param task Run on the worker of the user once it has been admitted, starts opening the replay
+     */
+    public synchronized void admit(ReplayUser user, Runnable task) {
+        if (queue.isEmpty() && canAdmit()) {
+            start(user, task);
+            return;
+        }
+        if (queue.size() >= maxQueue) {
+            REJECTED.increment();
+            user.kick(new TextMessage("Server is full, please try again later."));
+            return;
+        }
+        queue.put(user, task);
+        logger.fine(() -> user + " queued at position " + queue.size());
+        // The client only shows messages once it has joined a world, so send it to an empty one while waiting
+        user.sendPacket(new ServerJoinGamePacket(-1789435, false, GameMode.SPECTATOR, 1, Difficulty.PEACEFUL, 1,
+                WorldType.DEFAULT, true));
+        user.sendPacket(new ServerPlayerPositionRotationPacket(0, 64, 0, 0, 0));
+        sendPosition(user, queue.size());
+    }
+
+    /**
+     * Marks the replay of the specified user as opened (or failed to open), allowing another replay to be opened.
+     * @param user The user
+     */
+    public synchronized void opened(ReplayUser user) {
+        if (opening.remove(user)) {
+            drainQueue();
+        }
+    }
+
+    /**
+     * Removes the specified user after it has disconnected, whether it has been admitted or is still queued.
+     * @param user The user
+     */
+    public synchronized void release(ReplayUser user) {
+        queue.remove(user);
+        opening.remove(user);
+        if (admitted.remove(user)) {
+            drainQueue();
+        }
+    }
+
+    /**
+     * Stops updating the queue.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    private synchronized int getOpeningCount() {
+        return opening.size();
+    }
+
+    private void start(ReplayUser user, Runnable task) {
+        admitted.add(user);
+        opening.add(user);
+        user.execute(task);
+    }
+
+    private void drainQueue() {
+        Iterator<Map.Entry<ReplayUser, Runnable>> iter = queue.entrySet().iterator();
+        while (iter.hasNext() && canAdmit()) {
+            Map.Entry<ReplayUser, Runnable> entry = iter.next();
+            iter.remove();
+            ReplayUser user = entry.getKey();
+            if (user.isConnected()) {
+                logger.fine(() -> user + " admitted from queue");
+                start(user, entry.getValue());
+            }
+        }
+    }
+
+    private synchronized void updateQueue() {
+        drainQueue();
+        int position = 0;
+        for (ReplayUser user : queue.keySet()) {
+            sendPosition(user, ++position);
+        }
+    }
+
+    private void sendPosition(ReplayUser user, int position) {
+        user.sendMessage(new TextMessage("Waiting for a free slot, position in queue: " + position),
+                MessageType.NOTIFICATION);
+    }
+
+    private boolean canAdmit() {
+        return admitted.size() < maxSessions && opening.size() < maxOpens && hasHeadroom();
+    }
+
+    /**
+     * Returns whether enough memory is free and the system load is low enough for another user to be admitted.
+     * Memory usage is measured after the last garbage collection, so garbage does not count as used.
+     */
+    private boolean hasHeadroom() {
+        double load = os.getSystemLoadAverage();
+        if (load >= 0 && load / os.getAvailableProcessors() > maxLoad) {
+            return false;
+        }
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (maxMemory == Long.MAX_VALUE) {
+            return true;
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return maxMemory - used >= maxMemory * minFreeMemory;
+    }
+}
@@ -0,0 +1,41 @@
+package com.replaymod.replayserver;
+
+import io.netty.buffer.ByteBuf;
+import org.spacehq.packetlib.packet.Packet;
+
+/**
+ * Receives the packets played back by a {@link ReplaySession}.
+ * Packets are written in batches, each of which is followed by a call to {@link #flush()}.
+ */
+public interface PacketOutput {
+    /**
+     * Queues a packet to be sent.
+     * @param packet The packet
+     */
+    void write(Packet packet);
+
+    /**
+     * Queues a packet which has already been encoded, compressed and framed to be sent.
+     * @param packet The decoded packet
+     * @param encoded The packet exactly as it is to be sent over the network, must not be modified or released
+     */
+    void writeEncoded(Packet packet, ByteBuf encoded);
+
+    /**
+     * Sends all queued packets.
+     */
+    void flush();
+
+    /**
+     * Returns whether more packets should be written to this output.
+     * Once this returns {@code false}, playback is suspended until the output has drained.
+     * @return {@code true} if more packets can be written, {@code false} otherwise
+     */
+    boolean isWritable();
+
+    /**
+     * Returns the compression threshold pre-encoded packets sent to this output have to be compressed with.
+     * @return The compression threshold, negative if compression is disabled
+     */
+    int getCompressionThreshold();
+}
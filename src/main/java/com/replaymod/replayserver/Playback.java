@@ -0,0 +1,20 @@
+package com.replaymod.replayserver;
+
+import java.io.IOException;
+
+/**
+ * A replay session as driven by the worker loop of a {@link ReplayUser}.
+ */
+public interface Playback extends IReplaySession {
+    /**
+     * Update the current time and send packets accordingly.
+     * @param now The current time in nanoseconds, see {@link System#nanoTime()}
+     * @return The time in nanoseconds until this method should be called again, or 0 if the replay is paused
+     */
+    long process(long now) throws IOException;
+
+    /**
+     * Closes this session once its user has disconnected.
+     */
+    void close() throws IOException;
+}
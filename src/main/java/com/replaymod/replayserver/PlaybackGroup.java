@@ -0,0 +1,282 @@
+package com.replaymod.replayserver;
+
+import com.replaymod.replayserver.index.ReplayState;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import io.netty.buffer.ByteBuf;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntry;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntryAction;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerPlayerListEntryPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A group of users watching the same replay in lockstep.
+ * The replay is read, filtered and rewritten once by a single {@link ReplaySession} and the resulting packets are
+ * fanned out to all members. Pause, speed and time changes by any member apply to the whole group.
+ *
+ * There is no thread dedicated to a group. Instead, the worker loop of each member drives playback of the group,
+ * whichever comes first.
+ *
+ * Members which cannot keep up (i.e. whose channel stops being writable) no longer receive packets. Once they have
+ * caught up, they are resynchronized by sending them the compacted current state of the group. Members lagging
+ * behind for longer than {@code playbackgroup.maxlag} milliseconds (default 30000) are kicked.
+ */
+public class PlaybackGroup implements PacketOutput {
+    private static final Logger logger = Logger.getLogger(PlaybackGroup.class.getName());
+    private static final long MAX_LAG = TimeUnit.MILLISECONDS.toNanos(Long.getLong("playbackgroup.maxlag", 30000));
+
+    private final PlaybackGroupManager manager;
+    private final String id;
+    private final ReplaySession session;
+    private final int compressionThreshold;
+
+    /**
+     * State of the client of a member which has received every packet sent to this group.
+     */
+    private final ReplayState state = new ReplayState();
+    private final List<Member> members = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * Creates a new group.
+     * @param manager The manager to remove this group from once its last member has left
+     * @param id Unique id of the replay
+     * @param sessionFactory Creates the session for this group given its output
+     * @param compressionThreshold Compression threshold of all members
+     */
+    PlaybackGroup(PlaybackGroupManager manager, String id, SessionFactory sessionFactory, int compressionThreshold) {
+        this.manager = manager;
+        this.id = id;
+        this.compressionThreshold = compressionThreshold;
+        this.session = sessionFactory.create(this);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the number of users in this group.
+     * @return Number of members
+     */
+    public synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * Adds a user to this group. If the group has already started, the user is sent the current state.
+     * @param user The user
+     * @return The session of the user or {@code null} if the last member has already left this group
+     */
+    synchronized Playback join(ReplayUser user) {
+        if (closed) {
+            return null;
+        }
+        Member member = new Member(user);
+        members.add(member);
+        if (state.hasJoined()) {
+            member.resync();
+        }
+        logger.fine(() -> user + " joined group of " + id + " (" + members.size() + " members)");
+        return member;
+    }
+
+    private void leave(Member member) throws IOException {
+        synchronized (this) {
+            if (!members.remove(member) || !members.isEmpty()) {
+                return;
+            }
+            closed = true;
+            session.close();
+        }
+        // Must not hold the lock of this group, the manager locks itself before locking groups
+        manager.remove(this);
+    }
+
+    @Override
+    public synchronized void write(Packet packet) {
+        state.update(packet);
+        for (Member member : members) {
+            member.send(packet, null);
+        }
+    }
+
+    @Override
+    public synchronized void writeEncoded(Packet packet, ByteBuf encoded) {
+        state.update(packet);
+        for (Member member : members) {
+            member.send(packet, encoded);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        for (Member member : members) {
+            member.user.flush();
+        }
+    }
+
+    /**
+     * Always returns {@code true}, the group never waits for its members.
+     * Members which cannot keep up are resynchronized instead.
+     * @return {@code true}
+     */
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Creates the session of a group.
+     */
+    public interface SessionFactory {
+        /**
+         * @param output The output of the session
+         * @return The session
+         */
+        ReplaySession create(PacketOutput output);
+    }
+
+    /**
+     * The session of a single member, delegating to the session of the group.
+     */
+    private class Member implements Playback {
+        private final ReplayUser user;
+
+        /**
+         * Whether this member has stopped receiving packets. Guarded by the group.
+         */
+        private boolean lagging;
+        /**
+         * Time in nanoseconds at which this member has stopped receiving packets. Guarded by the group.
+         */
+        private long laggingSince;
+        /**
+         * Player list entries this member had been sent when it stopped receiving packets.
+         * Guarded by the group.
+         */
+        private List<PlayerListEntry> stalePlayerList;
+
+        private Member(ReplayUser user) {
+            this.user = user;
+        }
+
+        private void send(Packet packet, ByteBuf encoded) {
+            if (lagging || !user.isConnected()) {
+                return;
+            }
+            if (!user.isWritable()) {
+                lagging = true;
+                laggingSince = System.nanoTime();
+                stalePlayerList = state.getPlayerList();
+                logger.fine(() -> user + " cannot keep up with group of " + id);
+                return;
+            }
+            if (encoded != null) {
+                user.writeEncoded(packet, encoded);
+            } else {
+                user.write(packet);
+            }
+        }
+
+        /**
+         * Sends the current state of the group to this member.
+         */
+        private void resync() {
+            if (stalePlayerList != null && !stalePlayerList.isEmpty()) {
+                user.write(new ServerPlayerListEntryPacket(PlayerListEntryAction.REMOVE_PLAYER,
+                        stalePlayerList.toArray(new PlayerListEntry[stalePlayerList.size()])));
+            }
+            for (Packet packet : state.getPackets()) {
+                user.write(packet);
+            }
+            user.flush();
+            lagging = false;
+            stalePlayerList = null;
+        }
+
+        @Override
+        public long process(long now) throws IOException {
+            synchronized (PlaybackGroup.this) {
+                if (lagging) {
+                    if (user.isWritable()) {
+                        logger.fine(() -> user + " caught up with group of " + id + ", resyncing");
+                        resync();
+                    } else if (now - laggingSince > MAX_LAG) {
+                        user.kick(new TextMessage("Connection too slow."));
+                        return 0;
+                    }
+                }
+                return session.process(now);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            leave(this);
+        }
+
+        @Override
+        public IUser getUser() {
+            return user;
+        }
+
+        @Override
+        public ReplayFile getReplayFile() {
+            return session.getReplayFile();
+        }
+
+        @Override
+        public int getTime() {
+            synchronized (PlaybackGroup.this) {
+                return session.getTime();
+            }
+        }
+
+        @Override
+        public void setTime(int time, boolean compact) {
+            synchronized (PlaybackGroup.this) {
+                session.setTime(time, compact);
+            }
+        }
+
+        @Override
+        public double getSpeed() {
+            synchronized (PlaybackGroup.this) {
+                return session.getSpeed();
+            }
+        }
+
+        @Override
+        public void setSpeed(double speed) {
+            synchronized (PlaybackGroup.this) {
+                session.setSpeed(speed);
+            }
+        }
+
+        @Override
+        public boolean isPaused() {
+            synchronized (PlaybackGroup.this) {
+                return session.isPaused();
+            }
+        }
+
+        @Override
+        public void setPaused(boolean paused) {
+            synchronized (PlaybackGroup.this) {
+                session.setPaused(paused);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.replaymod.replayserver;
+
+import com.replaymod.replaystudio.replay.ReplayFile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Assigns users to the {@link PlaybackGroup} of the replay they are watching, creating groups as required.
+ */
+public class PlaybackGroupManager {
+    private static final Logger logger = Logger.getLogger(PlaybackGroupManager.class.getName());
+
+    private final Map<String, PlaybackGroup> groups = new HashMap<>();
+    private final int compressionThreshold;
+
+    public PlaybackGroupManager(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Adds a user to the group of the specified replay.
+     * If there is no such group yet, one is created using the specified replay file and session factory, otherwise
+     * the replay file is closed.
+     * @param id Unique id of the replay
+     * @param user The user
+     * @param replayFile The replay file fetched for the user, {@code null} if the session factory opens it itself
+     * @param sessionFactory Creates the session for a new group
+     * @return The session of the user
+     */
+    public synchronized Playback join(String id, ReplayUser user, ReplayFile replayFile,
+                                      PlaybackGroup.SessionFactory sessionFactory) {
+        PlaybackGroup group = groups.get(id);
+        if (group != null) {
+            Playback playback = group.join(user);
+            if (playback != null) {
+                if (replayFile != null) {
+                    try {
+                        replayFile.close();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Error closing replay file:", e);
+                    }
+                }
+                return playback;
+            }
+            // The last member has just left, the group is about to be removed
+        }
+        group = new PlaybackGroup(this, id, sessionFactory, compressionThreshold);
+        groups.put(id, group);
+        logger.info("Created playback group for " + id);
+        return group.join(user);
+    }
+
+    synchronized void remove(PlaybackGroup group) {
+        if (groups.remove(group.getId(), group)) {
+            logger.info("Removed playback group for " + group.getId());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.replaymod.replayserver;
+
+/**
+ * Drives the worker loops of all connected users.
+ * Each user is processed by calling {@link ReplayUser#tick()} which returns the time until it should be called again.
+ */
+public interface PlaybackScheduler {
+    /**
+     * Starts processing the specified user.
+     * The user is processed until it disconnects.
+     * @param user The user
+     */
+    void start(ReplayUser user);
+
+    /**
+     * Requests that the specified user is processed as soon as possible, e.g. because a packet has been received.
+     * May be called from any thread, including network threads, and must never block.
+     * @param user The user
+     */
+    void wakeup(ReplayUser user);
+
+    /**
+     * Stops processing all users.
+     */
+    void shutdown();
+}
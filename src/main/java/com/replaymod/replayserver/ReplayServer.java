@@ -1,15 +1,36 @@
 package com.replaymod.replayserver;
 
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.index.SeekIndexCache;
+import com.replaymod.replayserver.io.ChunkStore;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replayserver.io.PacketTimelineCache;
+import com.replaymod.replayserver.io.TailingReplayFile;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Gauge;
+import com.replaymod.replayserver.metrics.Histogram;
+import com.replaymod.replayserver.metrics.Metrics;
+import com.replaymod.replayserver.metrics.MetricsHttpServer;
 import com.replaymod.replayserver.selectors.FileReplayDatabase;
 import com.replaymod.replayserver.selectors.FixedReplaySelector;
+import com.replaymod.replayserver.selectors.ReplayLibrary;
+import com.replaymod.replayserver.shard.ShardFront;
+import com.replaymod.replayserver.shard.ShardLoad;
+import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.replay.ReplayFile;
 import org.spacehq.mc.protocol.MinecraftConstants;
 import org.spacehq.mc.protocol.MinecraftProtocol;
 import org.spacehq.mc.protocol.ServerLoginHandler;
 import org.spacehq.mc.protocol.data.message.TextMessage;
 import org.spacehq.mc.protocol.packet.ingame.client.ClientChatPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerMovementPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerPositionPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerPositionRotationPacket;
 import org.spacehq.packetlib.Server;
 import org.spacehq.packetlib.SessionFactory;
 import org.spacehq.packetlib.event.server.*;
@@ -17,67 +38,241 @@ import org.spacehq.packetlib.packet.Packet;
 import org.spacehq.packetlib.packet.PacketProtocol;
 import org.spacehq.packetlib.tcp.TcpSessionFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ReplayServer extends Server implements ServerListener {
     public static void main(String[] args) throws InterruptedException, IllegalAccessException, InstantiationException, ClassNotFoundException {
-        // TODO config
-        String host = "localhost";
-        int port = 25566;
-        ReplayServer server = new ReplayServer(host, port, MinecraftProtocol.class, new TcpSessionFactory());
+        String host = System.getProperty("replayserver.host", "localhost");
+        int port = Integer.getInteger("replayserver.port", 25566);
+        Server server;
+        if (Boolean.getBoolean("replayserver.front")) {
+            // Only hands users over to the nodes configured in shard.nodes
+            server = new ShardFront(host, port, MinecraftProtocol.class, new TcpSessionFactory());
+        } else {
+            server = new ReplayServer(host, port, MinecraftProtocol.class, new TcpSessionFactory());
+        }
         server.bind();
 
         // TODO read stdin for commands
         Thread.sleep(Long.MAX_VALUE);
     }
 
+    /**
+     * Packets larger than this many bytes are compressed.
+     */
+    public static final int COMPRESSION_THRESHOLD = 100;
+
+    private static final Gauge SESSIONS = Metrics.gauge("replayserver_sessions", "Number of connected sessions");
+    private static final Histogram SELECTOR_LATENCY = Metrics.histogram("replayserver_selector_latency_milliseconds",
+            "Time it took the replay selector to determine the replay of a user");
+    private static final Histogram DATABASE_LATENCY = Metrics.histogram("replayserver_database_latency_milliseconds",
+            "Time it took the replay database to return the replay file of a user");
+    private static final Histogram HANDLER_TIME = Metrics.histogram("replayserver_packet_handler_nanoseconds",
+            "Time spent in a single call to a packet handler");
+    private static final Counter HANDLER_DEFERRED = Metrics.counter("replayserver_packet_handler_deferred_total",
+            "Number of times a packet handler has been skipped because it exceeded its time budget");
+    private static final Counter HANDLER_DROPPED = Metrics.counter("replayserver_packet_handler_dropped_total",
+            "Number of received packets dropped because the backlog of a deferred packet handler was full");
+
+    /**
+     * Time in nanoseconds each packet handler may spend per tick of a user, configured in microseconds with the
+     * {@code replayserver.handlerbudget} system property (default 2000), see
+     * {@link IPacketHandler#handleMessages(IUser, List)}.
+     */
+    private static final long HANDLER_BUDGET =
+            TimeUnit.MICROSECONDS.toNanos(Long.getLong("replayserver.handlerbudget", 2000));
+    /**
+     * Maximum number of packets kept for a deferred packet handler, configured with the
+     * {@code replayserver.handlerbacklog} system property (default 256). The oldest packets are dropped first.
+     */
+    private static final int HANDLER_BACKLOG = Integer.getInteger("replayserver.handlerbacklog", 256);
+
     private final Logger logger = Logger.getLogger(getClass().getName());
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
     private final List<IPacketHandler> packetHandlers = new ArrayList<>();
+    private final PlaybackScheduler scheduler;
+    private final PacketFilter packetFilter = PacketFilter.createDefault();
+    private final AdmissionController admission = new AdmissionController();
+    private final ShardLoad shardLoad = new ShardLoad();
+    /**
+     * Bounded pool for blocking I/O such as opening replay files.
+     */
+    private final ListeningExecutorService ioExecutor;
+    private MetricsHttpServer metricsServer;
 
     public ReplayServer(String host, int port, Class<? extends PacketProtocol> protocol, SessionFactory factory) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
         super(host, port, protocol, factory);
 
-        // TODO config
-        String selector = FixedReplaySelector.class.getName();
-        String database = FileReplayDatabase.class.getName();
+        String selector = System.getProperty("replayserver.selector", FixedReplaySelector.class.getName());
+        String database = System.getProperty("replayserver.database", FileReplayDatabase.class.getName());
+        String scheduler = System.getProperty("replayserver.scheduler", SharedPoolScheduler.class.getName());
         List<String> packetHandlers = Collections.emptyList();
         // TODO create simple command handler
 
         IReplaySelector replaySelector = (IReplaySelector) Class.forName(selector).newInstance();
         IReplayDatabase replayDatabase = (IReplayDatabase) Class.forName(database).newInstance();
+        this.scheduler = (PlaybackScheduler) Class.forName(scheduler).newInstance();
+        boolean lazyDecoding = Boolean.parseBoolean(System.getProperty("replayserver.lazydecoding", "true"));
+        boolean preEncode = Boolean.parseBoolean(System.getProperty("replayserver.preencode", "true"));
+        boolean chunkDedup = Boolean.parseBoolean(System.getProperty("replayserver.chunkdedup", "true"));
+        PacketTimelineCache timelineCache = new PacketTimelineCache(packetFilter, lazyDecoding, preEncode,
+                COMPRESSION_THRESHOLD, chunkDedup ? new ChunkStore() : null);
+        SeekIndexCache seekIndexCache = new SeekIndexCache(replayDatabase, timelineCache);
+        ReplayLibrary library = replayDatabase instanceof FileReplayDatabase
+                ? ((FileReplayDatabase) replayDatabase).getLibrary() : null;
+        if (library != null) {
+            // Replays may be replaced while the server is running, anything cached from the old file is outdated
+            library.addChangeListener(id -> {
+                seekIndexCache.invalidate(id);
+                timelineCache.invalidate(id);
+            });
+        }
+        boolean broadcast = Boolean.getBoolean("replayserver.broadcast");
+        int prefetchTime = Integer.getInteger("replayserver.prefetch", 0);
+        int ioThreads = Integer.getInteger("replayserver.iothreads", 4);
+        AtomicInteger ioThreadCount = new AtomicInteger();
+        ioExecutor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(ioThreads, ioThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Integer.getInteger("replayserver.ioqueue", 256)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ReplayIO-" + ioThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+        PlaybackGroupManager groupManager = new PlaybackGroupManager(COMPRESSION_THRESHOLD);
+        Metrics.gauge("replayserver_timeline_cache_bytes", "Total size of all loaded packet timelines",
+                timelineCache::getTotalSize);
+        Metrics.registerMBean();
+        int metricsPort = Integer.getInteger("metrics.port", 0);
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsHttpServer(System.getProperty("metrics.host", "localhost"), metricsPort);
+                metricsServer.serve("/load", shardLoad::report);
+                logger.info("Serving metrics on port " + metricsPort);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to start metrics server:", e);
+            }
+        }
         for (String packetHandler : packetHandlers) {
             this.packetHandlers.add((IPacketHandler) Class.forName(packetHandler).newInstance());
         }
 
         // TODO config
         setGlobalFlag(MinecraftConstants.VERIFY_USERS_KEY, false);
-        setGlobalFlag(MinecraftConstants.SERVER_COMPRESSION_THRESHOLD, 100);
+        setGlobalFlag(MinecraftConstants.SERVER_COMPRESSION_THRESHOLD, COMPRESSION_THRESHOLD);
 
         setGlobalFlag(MinecraftConstants.SERVER_LOGIN_HANDLER_KEY, (ServerLoginHandler) session -> {
             ReplayUser user = session.getFlag(ReplayUser.SESSION_FLAG);
-            ListenableFuture<String> idFuture = replaySelector.getReplayId(user);
-            idFuture.addListener(() -> {
-                String id = Futures.getUnchecked(idFuture);
-                logger.finer(() -> "Replay id for user " + user + " determined to be " + id);
-                if (id == null) {
-                    user.kick(new TextMessage("No such replay."));
-                } else {
-                    ReplayFile replayFile = replayDatabase.getReplayFile(user, id);
-                    logger.finer(() -> "Replay for user " + user + " fetched from database: " + replayFile);
-                    if (replayFile == null) {
-                        user.kick(new TextMessage("Replay file not found."));
-                    } else {
-                        user.init(replayFile);
+            admission.admit(user, () -> {
+                long selectorStart = System.currentTimeMillis();
+                ListenableFuture<String> idFuture = replaySelector.getReplayId(user);
+                idFuture.addListener(() -> {
+                    SELECTOR_LATENCY.record(System.currentTimeMillis() - selectorStart);
+                    String id = Futures.getUnchecked(idFuture);
+                    logger.finer(() -> "Replay id for user " + user + " determined to be " + id);
+                    if (!user.isConnected()) {
+                        return;
                     }
-                }
-            }, user);
+                    if (id == null) {
+                        user.kick(new TextMessage("No such replay."));
+                        return;
+                    }
+                    long databaseStart = System.currentTimeMillis();
+                    // Played from the shared timeline, the replay file is only opened if the session falls back to it
+                    boolean shared = timelineCache.isLoaded(id);
+                    if (shared && library != null) {
+                        library.recordRequest(id); // Otherwise recorded by the database when opening the file
+                    }
+                    ListenableFuture<ReplayFile> fileFuture;
+                    try {
+                        fileFuture = shared ? Futures.immediateFuture(null)
+                                : replayDatabase.getReplayFileAsync(user, id, ioExecutor);
+                    } catch (RejectedExecutionException e) {
+                        user.kick(new TextMessage("Server is busy, please try again later."));
+                        return;
+                    }
+                    // Optionally read the first packets while the user is waiting for the replay file anyway
+                    boolean prefetch = prefetchTime > 0 && !timelineCache.isLoaded(id);
+                    ListenableFuture<PacketTimeline> prefetchFuture = Futures.transform(fileFuture,
+                            (Function<ReplayFile, PacketTimeline>) replayFile -> prefetch && replayFile != null
+                                    ? prefetch(replayFile, lazyDecoding, prefetchTime) : null,
+                            prefetch ? ioExecutor : MoreExecutors.directExecutor());
+                    prefetchFuture.addListener(() -> {
+                        admission.opened(user);
+                        DATABASE_LATENCY.record(System.currentTimeMillis() - databaseStart);
+                        ReplayFile replayFile;
+                        try {
+                            replayFile = fileFuture.get();
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Error fetching replay " + id + " from database:", e);
+                            user.kick(new TextMessage("Replay file not found."));
+                            return;
+                        }
+                        logger.finer(() -> "Replay for user " + user + " fetched from database: " + replayFile);
+                        if (replayFile == null && !shared) {
+                            user.kick(new TextMessage("Replay file not found."));
+                            return;
+                        }
+                        if (!user.isConnected()) {
+                            // Run by the disconnect handler (see ReplayUser#execute), nobody else closes the file
+                            logger.finer(() -> "User " + user + " disconnected while opening " + id);
+                            if (replayFile != null) {
+                                try {
+                                    replayFile.close();
+                                } catch (IOException e) {
+                                    logger.log(Level.WARNING, "Error closing replay file:", e);
+                                }
+                            }
+                            return;
+                        }
+                        PacketTimeline prefetched;
+                        try {
+                            prefetched = prefetchFuture.get();
+                        } catch (Exception e) {
+                            prefetched = null; // Prefetching is optional
+                        }
+                        PacketTimeline prefix = prefetched;
+                        PlaybackGroup.SessionFactory sessionFactory;
+                        if (replayFile instanceof TailingReplayFile) {
+                            // Still being recorded, neither seek index nor timeline can be built and shared
+                            sessionFactory = output -> {
+                                ReplaySession session = new ReplaySession(output == user ? user : null, output,
+                                        packetFilter, replayFile, null, null, null);
+                                if (output == user) {
+                                    session.setWakeup(() -> this.scheduler.wakeup(user));
+                                }
+                                return session;
+                            };
+                        } else if (replayFile == null) {
+                            sessionFactory = output -> new ReplaySession(
+                                    output == user ? user : null, output, packetFilter,
+                                    () -> replayDatabase.getReplayFile(null, id), seekIndexCache.get(id),
+                                    timelineCache.acquire(id, () -> replayDatabase.getReplayFile(null, id)));
+                        } else {
+                            // Shared state is loaded from files of its own, this user may disconnect first
+                            sessionFactory = output -> new ReplaySession(
+                                    output == user ? user : null, output, packetFilter, replayFile,
+                                    seekIndexCache.get(id),
+                                    timelineCache.acquire(id, () -> replayDatabase.getReplayFile(null, id)), prefix);
+                        }
+                        shardLoad.opened(session, id);
+                        if (broadcast) {
+                            user.init(groupManager.join(id, user, replayFile, sessionFactory));
+                        } else {
+                            user.init(sessionFactory.create(user));
+                        }
+                    }, user);
+                }, user);
+            });
         });
 
         addListener(this);
@@ -96,22 +291,132 @@ public class ReplayServer extends Server implements ServerListener {
     @Override
     public void serverClosed(ServerClosedEvent event) {
         logger.info("Server closed");
+        scheduler.shutdown();
+        ioExecutor.shutdown();
+        admission.shutdown();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
     }
 
     @Override
     public void sessionAdded(SessionAddedEvent event) {
         logger.info("New session: " + event.getSession());
-        threadPool.submit(new ReplayUser(this, event.getSession()));
+        SESSIONS.increment();
+        if (!admission.tryConnect()) {
+            logger.info("Rejecting session due to connection rate limit: " + event.getSession());
+            event.getSession().disconnect("Too many connections, please try again later.");
+            return;
+        }
+        scheduler.start(new ReplayUser(this, event.getSession()));
     }
 
     @Override
     public void sessionRemoved(SessionRemovedEvent event) {
         logger.info("Session removed: " + event.getSession());
+        SESSIONS.decrement();
+        ReplayUser user = event.getSession().getFlag(ReplayUser.SESSION_FLAG);
+        if (user != null) {
+            admission.release(user);
+        }
+        shardLoad.closed(event.getSession());
     }
 
-    protected void notifyPacketHandlers(ReplayUser user, Packet packet) {
-        for (IPacketHandler packetHandler : packetHandlers) {
-            packetHandler.handleMessage(user, packet);
+    /**
+     * Reads the first packets of the specified replay.
+     * @param replayFile The replay file
+     * @param lazy Whether packets should be decoded lazily
+     * @param time Time in milliseconds up to which packets are read
+     * @return The packets or {@code null} if they could not be read
+     */
+    private PacketTimeline prefetch(ReplayFile replayFile, boolean lazy, int time) {
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            return PacketTimeline.read(in, packetFilter, lazy, false, -1, time);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to prefetch packets of " + replayFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of users watching each replay on this server, as reported to the front of a sharded
+     * deployment.
+     * @return The load
+     */
+    public ShardLoad getShardLoad() {
+        return shardLoad;
+    }
+
+    public PlaybackScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the filter applied to all packets of all replays.
+     * It may be configured until the server is bound.
+     * @return The packet filter
+     */
+    public PacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    /**
+     * Creates the per-user state of all packet handlers.
+     * @return One backlog for each packet handler
+     */
+    HandlerBacklog[] createHandlerBacklogs() {
+        HandlerBacklog[] backlogs = new HandlerBacklog[packetHandlers.size()];
+        for (int i = 0; i < backlogs.length; i++) {
+            backlogs[i] = new HandlerBacklog();
+        }
+        return backlogs;
+    }
+
+    /**
+     * Passes the packets received from a user since its last tick to all packet handlers, within their time budget.
+     * @param user The user
+     * @param packets The packets in the order they have been received, may be empty
+     */
+    protected void notifyPacketHandlers(ReplayUser user, List<Packet> packets) {
+        HandlerBacklog[] backlogs = user.getHandlerBacklogs();
+        long now = System.nanoTime();
+        for (int i = 0; i < backlogs.length; i++) {
+            HandlerBacklog backlog = backlogs[i];
+            backlog.packets.addAll(packets);
+            if (now - backlog.deferredUntil < 0) {
+                // Over budget, make up for it by skipping it until the excess time has passed
+                int excess = backlog.packets.size() - HANDLER_BACKLOG;
+                if (excess > 0) {
+                    backlog.packets.subList(0, excess).clear();
+                    HANDLER_DROPPED.add(excess);
+                }
+                if (!backlog.packets.isEmpty()) {
+                    HANDLER_DEFERRED.increment();
+                }
+                continue;
+            }
+            if (backlog.packets.isEmpty()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            packetHandlers.get(i).handleMessages(user, backlog.packets);
+            long end = System.nanoTime();
+            HANDLER_TIME.record(end - start);
+            backlog.deferredUntil = end + Math.max(0, end - start - HANDLER_BUDGET);
+            backlog.packets.clear();
+        }
+        for (Packet packet : packets) {
+            handleBuiltin(user, packet);
+        }
+    }
+
+    private void handleBuiltin(ReplayUser user, Packet packet) {
+        if (packet instanceof ClientPlayerPositionPacket || packet instanceof ClientPlayerPositionRotationPacket) {
+            IReplaySession session = user.getReplaySession();
+            if (session instanceof ReplaySession) {
+                ClientPlayerMovementPacket p = (ClientPlayerMovementPacket) packet;
+                ((ReplaySession) session).setViewerPosition(p.getX(), p.getZ());
+            }
         }
         if (packet instanceof ClientChatPacket) {
             String message = ((ClientChatPacket) packet).getMessage();
@@ -122,4 +427,16 @@ public class ReplayServer extends Server implements ServerListener {
             }
         }
     }
+
+    /**
+     * Packets received by a user which have not yet been passed to a packet handler and the time until which the
+     * handler is skipped because it exceeded its budget. Only accessed by the worker of the user.
+     */
+    static class HandlerBacklog {
+        private final List<Packet> packets = new ArrayList<>();
+        /**
+         * {@link System#nanoTime()} until which the handler is skipped.
+         */
+        private long deferredUntil = System.nanoTime();
+    }
 }
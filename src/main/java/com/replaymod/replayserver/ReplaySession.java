@@ -1,65 +1,218 @@
 package com.replaymod.replayserver;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.index.FastForward;
+import com.replaymod.replayserver.index.InterestArea;
+import com.replaymod.replayserver.index.JoinSnapshot;
+import com.replaymod.replayserver.index.Keyframe;
+import com.replaymod.replayserver.index.LoadedChunks;
+import com.replaymod.replayserver.index.ReplayState;
+import com.replaymod.replayserver.index.SeekIndex;
+import com.replaymod.replayserver.io.LiveReplay;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replayserver.io.PacketTimelineCache;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replayserver.io.SeekableReplayFile;
+import com.replaymod.replayserver.io.TailingReplayFile;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Histogram;
+import com.replaymod.replayserver.metrics.Metrics;
 import com.replaymod.replaystudio.PacketData;
-import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.replay.ReplayFile;
-import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
-import org.spacehq.mc.protocol.packet.ingame.server.*;
-import org.spacehq.mc.protocol.packet.ingame.server.entity.player.*;
-import org.spacehq.mc.protocol.packet.ingame.server.window.ServerCloseWindowPacket;
-import org.spacehq.mc.protocol.packet.ingame.server.window.ServerOpenWindowPacket;
-import org.spacehq.mc.protocol.packet.ingame.server.window.ServerSetSlotPacket;
-import org.spacehq.mc.protocol.packet.ingame.server.window.ServerWindowItemsPacket;
-import org.spacehq.mc.protocol.packet.ingame.server.world.ServerNotifyClientPacket;
-import org.spacehq.mc.protocol.packet.ingame.server.world.ServerOpenTileEntityEditorPacket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntry;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntryAction;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerPlayerListEntryPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerResourcePackSendPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
 import org.spacehq.packetlib.packet.Packet;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class ReplaySession implements Playback {
+    private static final int PLAYER_LIST_ENTRY_ID = PacketCodec.getInstance().getId(ServerPlayerListEntryPacket.class);
+    private static final int PLAYER_POSITION_ROTATION_ID =
+            PacketCodec.getInstance().getId(ServerPlayerPositionRotationPacket.class);
+    private static final int RESOURCE_PACK_SEND_ID = PacketCodec.getInstance().getId(ServerResourcePackSendPacket.class);
+
+    private static final Histogram PROCESS_TIME = Metrics.histogram("replayserver_session_process_nanoseconds",
+            "Time spent in a single call to ReplaySession.process");
+    private static final Histogram PACKET_TIME = Metrics.histogram("replayserver_packet_process_nanoseconds",
+            "Time spent processing and writing a single packet");
+    private static final Histogram LAG = Metrics.histogram("replayserver_session_lag_milliseconds",
+            "Difference between target and actual replay time after a session has been processed");
+    private static final Counter PACKETS_SENT = Metrics.counter("replayserver_packets_sent_total",
+            "Number of packets sent from replays");
+    private static final Counter CHUNKS_SKIPPED = Metrics.counter("replayserver_chunks_skipped_total",
+            "Number of chunk packets not sent because the client already had the same chunks loaded");
+    private static final Counter CHUNK_BYTES_SKIPPED = Metrics.counter("replayserver_chunk_bytes_skipped_total",
+            "Number of bytes of chunk packets not sent because the client already had the same chunks loaded");
+    private static final Counter SNAPSHOT_JOINS = Metrics.counter("replayserver_session_snapshot_joins_total",
+            "Number of sessions which started with the join snapshot of their replay");
+    private static final Histogram FIRST_FRAME_TIME = Metrics.histogram("replayserver_session_first_frame_milliseconds",
+            "Time from the creation of a session until the world has been loaded on the client");
 
-public class ReplaySession implements IReplaySession {
     /**
-     * Packets that are always filtered from the replay.
+     * Number of packets after which the output is flushed, even if more packets are due.
+     * Flushing hands the packets to the network thread and allows the writability of the output to reflect them.
      */
-    private static final Set<Class> BAD_PACKETS = Sets.newHashSet(
-            ServerUpdateHealthPacket.class,
-            ServerOpenWindowPacket.class,
-            ServerCloseWindowPacket.class,
-            ServerSetSlotPacket.class,
-            ServerWindowItemsPacket.class,
-            ServerOpenTileEntityEditorPacket.class,
-            ServerStatisticsPacket.class,
-            ServerSetExperiencePacket.class,
-            ServerUpdateHealthPacket.class,
-            ServerChangeHeldItemPacket.class,
-            ServerSwitchCameraPacket.class,
-            ServerPlayerAbilitiesPacket.class,
-            ServerTitlePacket.class
-    );
+    private static final int BATCH_SIZE = 256;
 
-    private final ReplayUser user;
-    private final ReplayFile replayFile;
+    /**
+     * Time in nanoseconds after which writability of the output is checked again while it is not writable.
+     * Usually, the session is processed again as soon as the output becomes writable.
+     */
+    private static final long BLOCKED_RETRY_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Whether packets sharing the same timestamp are spread over the time until the next timestamp instead of being
+     * sent all at once, see {@link #pacing}.
+     */
+    private static final boolean PACING = Boolean.getBoolean("replaysession.pacing");
+
+    /**
+     * Maximum replay time in milliseconds packets sharing the same timestamp are spread over when pacing.
+     * One game tick.
+     */
+    private static final int MAX_PACING_SPREAD = 50;
+
+    /**
+     * Speed at and above which superseded updates are collapsed before being sent, see {@link FastForward}.
+     * Configured with the {@code replaysession.fastforward} system property, 0 disables collapsing.
+     */
+    private static final double FAST_FORWARD_SPEED =
+            Double.parseDouble(System.getProperty("replaysession.fastforward", "4"));
+
+    /**
+     * Number of packets after which the fast forward buffer is flushed, even if more packets are due.
+     */
+    private static final int FAST_FORWARD_BATCH_SIZE = 4096;
+
+    /**
+     * Radius in chunks around the viewer outside of which chunk, block and entity packets are withheld, see
+     * {@link InterestArea}. Configured with the {@code replaysession.viewdistance} system property, 0 disables it.
+     */
+    private static final int VIEW_DISTANCE = Integer.getInteger("replaysession.viewdistance", 0);
+
+    /**
+     * Replay time in milliseconds playback of a replay which is still being recorded stays behind the recorder.
+     * Configured with the {@code replaysession.livedelay} system property.
+     */
+    private static final int LIVE_DELAY = Integer.getInteger("replaysession.livedelay", 5000);
+
+    /**
+     * Time in nanoseconds after which a session waiting for a replay which is still being recorded checks it again,
+     * should the notification of new packets have been missed.
+     */
+    private static final long LIVE_RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private enum Progress {
+        /**
+         * All packets up to the target time have been sent.
+         */
+        REACHED,
+        /**
+         * The output is not writable, sending has been suspended.
+         */
+        BLOCKED,
+        /**
+         * The end of the replay has been reached.
+         */
+        END
+    }
+
+    private final PacketCodec codec = PacketCodec.getInstance();
+    private final IUser user;
+    private final PacketOutput output;
+    private final PacketFilter filter;
+    /**
+     * Opens the replay file if it has not been passed in already, {@code null} otherwise.
+     */
+    private final Callable<ReplayFile> replayFileOpener;
+    /**
+     * The replay file, {@code null} until it is first needed if it is opened lazily.
+     */
+    private ReplayFile replayFile;
+    private final ListenableFuture<SeekIndex> seekIndex;
+    private final PacketTimelineCache.Reference timeline;
+    private final LongSupplier clock;
+    private final FastForward fastForward = new FastForward();
+    /**
+     * Chunks loaded by the client, {@code null} when playing to a group whose members may have different chunks.
+     */
+    private final LoadedChunks loadedChunks;
+    /**
+     * Area around the viewer, {@code null} when playing to a group or if disabled.
+     */
+    private final InterestArea interestArea;
+    /**
+     * The packet stream being recorded, {@code null} if the replay is complete.
+     */
+    private final LiveReplay liveReplay;
+    /**
+     * Time in nanoseconds, from the clock of this session, at which this session has been created.
+     */
+    private final long createdTime;
+
+    /**
+     * The first packets of the replay, read ahead of time. Only used while the shared {@link #timeline} is not yet
+     * available, {@code null} if there are none.
+     */
+    private PacketTimeline prefetched;
+
+    /**
+     * Raw stream of packets, only used while the shared {@link #timeline} is not yet available.
+     */
+    private DataInputStream inputStream;
 
-    private ReplayInputStream inputStream;
+    /**
+     * Index of the next packet to be read from the {@link #inputStream} or {@link #timeline}.
+     */
+    private int packetIndex;
 
     private double speed = 1;
     private boolean paused;
 
     /**
-     * Last timestamp in milliseconds the {@link #process(long)} method was called.
+     * Whether packets recorded in the same tick (i.e. sharing the same timestamp) are spread evenly over the time
+     * until the next tick instead of being sent in a single burst.
+     * Defaults to the {@code replaysession.pacing} system property.
+     */
+    private boolean pacing = PACING;
+
+    /**
+     * Last timestamp in nanoseconds the {@link #process(long)} method was called.
      * Invalid while {@link #paused}.
      */
     private long nowRealTime;
 
     /**
-     * Timestamp when the replay has started, scaled with the current speed.
+     * Timestamp in nanoseconds when the replay has started, scaled with the current speed.
      * This timestamp changes whenever the speed is changed or when the replay is unpaused.
-     * While not paused, the current replay time can be calculated as (nowRealTime - scaledStartTime) * speed
+     * While not paused, the current replay time in milliseconds can be calculated as
+     * (nowRealTime - scaledStartTime) * speed / 1000000
      * Invalid while {@link #paused}.
      */
-    private long scaledStartTime = System.currentTimeMillis();
+    private long scaledStartTime;
 
     /**
      * Current replay time.
@@ -68,25 +221,117 @@ public class ReplaySession implements IReplaySession {
     private int nowReplayTime;
 
     /**
-     * The next packet to be sent.
+     * Target time of the last call to {@link #setTime(int, boolean)}.
+     * While paused, sending continues until this time has been reached.
+     */
+    private int jumpTargetTime;
+
+    /**
+     * Packets which have been read but not yet sent, the first one is the next packet to be sent.
+     * When pacing, these are all packets of the current tick, otherwise there is at most one.
+     */
+    private final ArrayDeque<PendingPacket> pending = new ArrayDeque<>();
+
+    /**
+     * The packet following {@link #pending}, read ahead to find the end of the current tick.
+     * {@code null} if not yet read.
+     */
+    private PendingPacket lookahead;
+
+    /**
+     * The last packet returned by {@link #readPacket()} in its pre-encoded form, {@code null} if not available.
+     */
+    private ByteBuf lastPacketEncoded;
+
+    /**
+     * Id of the last packet returned by {@link #readPacket()}.
      */
-    private PacketData nextPacket;
+    private int lastPacketId;
 
     /**
      * Whether the world has been loaded (and the user is no longer stuck in a dirt screen).
      */
     private boolean hasWorldLoaded;
 
-    public ReplaySession(ReplayUser user, ReplayFile replayFile) {
+    /**
+     * Whether {@link #process(long)} has been called before.
+     */
+    private boolean started;
+
+    /**
+     * Called when this session should be processed again before the time it has last requested, {@code null} if not
+     * supported by whoever drives this session.
+     */
+    private Runnable wakeup;
+
+    /**
+     * Player list entries which have been sent to the user from the replay.
+     */
+    private final Map<UUID, PlayerListEntry> playerListEntries = new HashMap<>();
+
+    /**
+     * @param user The user in this session, {@code null} if the session is played back to a group of users
+     * @param output Where to send the replayed packets to
+     * @param filter The filter applied to all packets, must be the same one the timeline has been loaded with
+     * @param replayFile The replay file
+     * @param seekIndex Future for the seek index of the replay, may be {@code null}
+     * @param timeline Reference to the shared timeline of the replay, {@code null} if the replay is still being
+     *                 recorded, see {@link TailingReplayFile}
+     * @param prefetched The first packets of the replay, filtered by the same filter, may be {@code null}
+     */
+    public ReplaySession(IUser user, PacketOutput output, PacketFilter filter, ReplayFile replayFile,
+                         ListenableFuture<SeekIndex> seekIndex, PacketTimelineCache.Reference timeline,
+                         PacketTimeline prefetched) {
+        this(user, output, filter, replayFile, seekIndex, timeline, prefetched, System::nanoTime);
+    }
+
+    /**
+     * Creates a session using the specified clock instead of {@link System#nanoTime()}, e.g. a virtual clock.
+     * The times passed to {@link #process(long)} have to be from the same clock.
+     * @param clock The clock in nanoseconds
+     */
+    public ReplaySession(IUser user, PacketOutput output, PacketFilter filter, ReplayFile replayFile,
+                         ListenableFuture<SeekIndex> seekIndex, PacketTimelineCache.Reference timeline,
+                         PacketTimeline prefetched, LongSupplier clock) {
+        this(user, output, filter, replayFile, null, seekIndex, timeline, prefetched, clock);
+    }
+
+    /**
+     * Creates a session which only opens the replay file once it is needed, i.e. if the shared timeline is not
+     * available when reading packets or if the file is requested through {@link #getReplayFile()}.
+     * The replay must not be still being recorded.
+     * @param replayFile Opens the replay file, called at most once, may return {@code null} if the replay is not found
+     * @param timeline Reference to the shared timeline of the replay
+     */
+    public ReplaySession(IUser user, PacketOutput output, PacketFilter filter, Callable<ReplayFile> replayFile,
+                         ListenableFuture<SeekIndex> seekIndex, PacketTimelineCache.Reference timeline) {
+        this(user, output, filter, null, replayFile, seekIndex, timeline, null, System::nanoTime);
+    }
+
+    private ReplaySession(IUser user, PacketOutput output, PacketFilter filter, ReplayFile replayFile,
+                          Callable<ReplayFile> replayFileOpener, ListenableFuture<SeekIndex> seekIndex,
+                          PacketTimelineCache.Reference timeline, PacketTimeline prefetched, LongSupplier clock) {
         this.user = user;
+        this.output = output;
+        this.filter = filter;
         this.replayFile = replayFile;
+        this.replayFileOpener = replayFileOpener;
+        this.seekIndex = seekIndex;
+        this.timeline = timeline;
+        this.prefetched = prefetched;
+        this.clock = clock;
+        this.loadedChunks = user != null ? new LoadedChunks() : null;
+        this.interestArea = user != null && VIEW_DISTANCE > 0 ? new InterestArea(VIEW_DISTANCE) : null;
+        this.liveReplay = replayFile instanceof TailingReplayFile
+                ? ((TailingReplayFile) replayFile).getLiveReplay() : null;
+        this.nowRealTime = this.scaledStartTime = this.createdTime = clock.getAsLong();
     }
 
     /**
      * Resets the scaled start time, so that now replay time has passed since {@link #nowRealTime}.
      */
     private void resetScaledStartTime() {
-        this.scaledStartTime = (long) (nowRealTime - nowReplayTime / speed);
+        this.scaledStartTime = (long) (nowRealTime - nowReplayTime * NANOS_PER_MILLI / speed);
     }
 
     @Override
@@ -96,6 +341,30 @@ public class ReplaySession implements IReplaySession {
 
     @Override
     public ReplayFile getReplayFile() {
+        try {
+            return openReplayFile();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Returns the replay file, opening it if it has not been opened yet.
+     * @return The replay file
+     */
+    private synchronized ReplayFile openReplayFile() throws IOException {
+        if (replayFile == null) {
+            try {
+                replayFile = replayFileOpener.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            if (replayFile == null) {
+                throw new IOException("Replay file not found");
+            }
+        }
         return replayFile;
     }
 
@@ -106,7 +375,32 @@ public class ReplaySession implements IReplaySession {
 
     @Override
     public void setTime(int time, boolean compact) {
+        Preconditions.checkArgument(time >= 0, "Time must not be negative");
+        Progress progress;
+        try {
+            SeekIndex index = getSeekIndex();
+            Keyframe keyframe = index != null ? index.getKeyframe(time) : null;
+            if (compact && time != nowReplayTime) {
+                jumpCompacted(keyframe, time);
+            } else if (keyframe != null && (time < nowReplayTime || keyframe.getTime() > nowReplayTime)) {
+                // Skip straight to the keyframe
+                restoreKeyframe(keyframe);
+            } else if (time < nowReplayTime) {
+                // Need to restart replay to go backwards in time
+                restart();
+            }
+            progress = processUntil(time);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
 
+        // If the output is not writable, the remaining packets are sent by subsequent calls to process
+        nowReplayTime = progress == Progress.BLOCKED ? (int) pending.peekFirst().packet.getTime() : time;
+        jumpTargetTime = time;
+        if (!paused) {
+            nowRealTime = clock.getAsLong();
+            scaledStartTime = (long) (nowRealTime - time * NANOS_PER_MILLI / speed);
+        }
     }
 
     @Override
@@ -132,102 +426,564 @@ public class ReplaySession implements IReplaySession {
     public void setPaused(boolean paused) {
         if (this.paused ^ paused) {
             if (!paused) {
-                nowRealTime = System.currentTimeMillis();
+                nowRealTime = clock.getAsLong();
                 resetScaledStartTime();
             }
             this.paused = paused;
         }
     }
 
-    protected void close() throws IOException {
-        replayFile.close();
+    /**
+     * Returns whether packets of the same tick are spread over the time until the next tick.
+     * @return {@code true} if pacing, {@code false} if packets of the same tick are sent at once
+     */
+    public boolean isPacing() {
+        return pacing;
+    }
+
+    /**
+     * Sets whether packets of the same tick are spread over the time until the next tick.
+     * @param pacing {@code true} to pace, {@code false} to send packets of the same tick at once
+     */
+    public void setPacing(boolean pacing) {
+        this.pacing = pacing;
     }
 
     /**
-     * Update the current time and send packets accordingly.
-     * @return The time in milliseconds until this method should be called again, or 0 if the replay is paused
+     * Updates the position of the viewer, sending everything withheld which has come into range.
+     * @param x The x coordinate of the viewer
+     * @param z The z coordinate of the viewer
      */
-    protected long process(long now) throws IOException {
-        if (paused) {
-            return 0;
+    public void setViewerPosition(double x, double z) {
+        if (interestArea != null) {
+            interestArea.move(x, z, this::writeReleasedPacket);
+            output.flush();
+        }
+    }
+
+    /**
+     * Sets the callback through which this session requests to be processed again, e.g. once more packets of a replay
+     * which is still being recorded have been written. Without it, such sessions check for new packets periodically.
+     * @param wakeup The callback, may be called from any thread
+     */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeInputStream();
+        if (timeline != null) {
+            timeline.release();
+        }
+        synchronized (this) {
+            if (replayFile != null) {
+                replayFile.close();
+            }
         }
+    }
+
+    private SeekIndex getSeekIndex() {
+        if (seekIndex == null || !seekIndex.isDone()) {
+            return null; // Not yet available, fall back to reading the replay from the start
+        }
+        try {
+            return seekIndex.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void closeInputStream() throws IOException {
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+    }
 
-        // Update current time
-        nowRealTime = now;
-        int targetReplayTime = (int) ((nowRealTime - scaledStartTime) * speed);
+    /**
+     * Moves the read position to the specified packet.
+     * @param packetIndex Index of the next packet to be read
+     */
+    private void seekPacket(int packetIndex) throws IOException {
+        closeInputStream();
+        this.packetIndex = packetIndex;
+        this.pending.clear();
+        this.lookahead = null;
+    }
+
+    /**
+     * Reads the next packet which passes the filter, preferably from the shared timeline.
+     * The returned packet has already been filtered and rewritten.
+     * @return The packet or {@code null} if the end of the replay has been reached
+     */
+    private PacketData readPacket() throws IOException {
+        PacketTimeline timeline = this.timeline != null ? this.timeline.getIfLoaded() : null;
+        if (timeline != null) {
+            // Timeline is available, we no longer need our own stream
+            closeInputStream();
+            prefetched = null;
+            return readPacket(timeline);
+        }
 
-        if (targetReplayTime < nowReplayTime) {
-            // Need to restart replay to go backwards in time
-            if (inputStream != null) {
-                inputStream.close();
-                inputStream = null;
-                nextPacket = null;
+        if (prefetched != null && inputStream == null && packetIndex < prefetched.size()) {
+            PacketData packet = readPacket(prefetched);
+            if (packet != null) {
+                return packet;
             }
         }
 
+        lastPacketEncoded = null;
+        if (inputStream == null) {
+            openInputStream(packetIndex);
+        }
         while (true) {
-            if (nextPacket == null) {
-                if (inputStream == null) {
-                    inputStream = replayFile.getPacketData();
-                }
-                nextPacket = inputStream.readPacket();
-                if (nextPacket == null) {
-                    // Reached end of replay
-                    // TODO event
-                    return 0;
-                }
+            int time;
+            try {
+                time = inputStream.readInt();
+            } catch (EOFException e) {
+                return null;
             }
-            if (nextPacket.getTime() <= targetReplayTime) {
-                processPacket(nextPacket.getPacket());
-                nextPacket = null;
-            } else {
-                break;
+            byte[] buf = new byte[inputStream.readInt()];
+            inputStream.readFully(buf);
+            packetIndex++;
+            ByteBuf byteBuf = Unpooled.wrappedBuffer(buf);
+            int id = codec.peekId(byteBuf);
+            if (filter.isDropped(id)) {
+                continue; // Don't even bother decoding it
+            }
+            // Only decode packets which are rewritten, everything else is forwarded as is
+            Packet packet = filter.isRewritten(id) ? codec.decode(byteBuf) : new RawPacket(id, byteBuf);
+            packet = filter.apply(id, packet);
+            if (packet != null) {
+                lastPacketId = id;
+                return new PacketData(time, packet);
             }
         }
+    }
 
-        nowReplayTime = targetReplayTime;
+    /**
+     * Reads the next packet which passes the filter from the specified timeline.
+     * @param timeline The timeline
+     * @return The packet or {@code null} if the end of the timeline has been reached
+     */
+    private PacketData readPacket(PacketTimeline timeline) {
+        boolean useEncoded = timeline.isPreEncoded()
+                && timeline.getCompressionThreshold() == output.getCompressionThreshold();
+        while (packetIndex < timeline.size()) {
+            int index = packetIndex++;
+            PacketData packet = timeline.get(index);
+            if (packet != null) {
+                lastPacketId = timeline.getId(index);
+                lastPacketEncoded = useEncoded ? timeline.getEncoded(index) : null;
+                return packet;
+            }
+        }
+        return null;
+    }
 
-        return Math.max((long) ((nowReplayTime - nextPacket.getTime()) / speed), 1);
+    /**
+     * Reads the next packet which passes the filter, see {@link #readPacket()}.
+     * @return The packet along with its id and pre-encoded form, {@code null} if the end of the replay has been reached
+     */
+    private PendingPacket readPendingPacket() throws IOException {
+        PacketData packet = readPacket();
+        return packet != null ? new PendingPacket(packet, lastPacketId, lastPacketEncoded) : null;
     }
 
-    private void processPacket(Packet packet) {
-        if (BAD_PACKETS.contains(packet.getClass())) {
+    /**
+     * Returns the next packet to be sent without removing it from {@link #pending}, reading the next tick if required.
+     * When pacing, the due time of each packet of the tick is spread over the time until the next tick.
+     * @return The next packet or {@code null} if the end of the replay has been reached
+     */
+    private PendingPacket peekPacket() throws IOException {
+        if (pending.isEmpty()) {
+            PendingPacket first = lookahead != null ? lookahead : readPendingPacket();
+            lookahead = null;
+            if (first == null) {
+                return null;
+            }
+            pending.add(first);
+            if (pacing) {
+                long time = first.packet.getTime();
+                PendingPacket next;
+                while ((next = readPendingPacket()) != null && next.packet.getTime() == time) {
+                    pending.add(next);
+                }
+                lookahead = next;
+                double spread = next != null ? Math.min(next.packet.getTime() - time, MAX_PACING_SPREAD) : 0;
+                int i = 0;
+                for (PendingPacket packet : pending) {
+                    packet.dueTime = time + spread * i++ / pending.size();
+                }
+            }
+        }
+        return pending.peekFirst();
+    }
+
+    /**
+     * Removes all player list entries sent from the replay.
+     * A new {@link ServerJoinGamePacket} does not clear the player list on the client.
+     */
+    private void clearPlayerList() {
+        if (!playerListEntries.isEmpty()) {
+            output.write(new ServerPlayerListEntryPacket(PlayerListEntryAction.REMOVE_PLAYER,
+                    playerListEntries.values().toArray(new PlayerListEntry[playerListEntries.size()])));
+            playerListEntries.clear();
+        }
+    }
+
+    /**
+     * Restarts the replay from the very beginning.
+     */
+    private void restart() throws IOException {
+        seekPacket(0);
+        clearPlayerList();
+        nowReplayTime = 0;
+    }
+
+    /**
+     * Restores the state at the specified keyframe and moves the read position to the first packet following it.
+     * @param keyframe The keyframe
+     */
+    private void restoreKeyframe(Keyframe keyframe) throws IOException {
+        // Built with the threshold of the timeline so it stays shared, restoreSnapshot encodes on the fly if the
+        // output currently uses another one
+        PacketTimeline timeline = this.timeline != null ? this.timeline.getIfLoaded() : null;
+        int threshold = timeline != null ? timeline.getCompressionThreshold() : output.getCompressionThreshold();
+        restoreSnapshot(keyframe.getSnapshot(filter, threshold));
+    }
+
+    /**
+     * Sends the specified snapshot and moves the read position to the first packet following it.
+     * @param snapshot The snapshot
+     */
+    private void restoreSnapshot(JoinSnapshot snapshot) throws IOException {
+        seekPacket(snapshot.getPacketIndex());
+        clearPlayerList();
+        boolean useEncoded = snapshot.getCompressionThreshold() == output.getCompressionThreshold();
+        for (int i = 0; i < snapshot.size(); i++) {
+            sendPacket(snapshot.getId(i), snapshot.getPacket(i), useEncoded ? snapshot.getEncoded(i) : null);
+        }
+        nowReplayTime = snapshot.getTime();
+    }
+
+    /**
+     * Jumps to the specified time by folding all packets up to it into their final state and sending only that.
+     * The client is reset and receives the whole compacted state, even if it is already close to the target time.
+     * @param keyframe The keyframe to start from, or {@code null} to start from the beginning of the replay
+     * @param time The target time
+     */
+    private void jumpCompacted(Keyframe keyframe, int time) throws IOException {
+        ReplayState state = new ReplayState();
+        if (keyframe != null) {
+            keyframe.getPackets().forEach(state::update);
+            seekPacket(keyframe.getPacketIndex());
+        } else {
+            seekPacket(0);
+        }
+
+        PendingPacket packet;
+        while ((packet = readPendingPacket()) != null && packet.packet.getTime() <= time) {
+            state.update(packet.packet.getPacket());
+        }
+        lookahead = packet;
+
+        clearPlayerList();
+        for (Packet statePacket : state.getPackets()) {
+            processPacket(statePacket);
+        }
+    }
+
+    /**
+     * Opens a new input stream positioned at the specified packet.
+     * @param packetIndex Number of packets to skip
+     */
+    private void openInputStream(int packetIndex) throws IOException {
+        ReplayFile replayFile = openReplayFile();
+        if (replayFile instanceof SeekableReplayFile) {
+            inputStream = new DataInputStream(((SeekableReplayFile) replayFile).getPacketData(packetIndex));
             return;
         }
+        inputStream = new DataInputStream(replayFile.getPacketData());
+        // Skip over packets without decoding them, each one is prefixed with its timestamp and length
+        for (int i = 0; i < packetIndex; i++) {
+            inputStream.readInt();
+            ByteStreams.skipFully(inputStream, inputStream.readInt());
+        }
+    }
 
-        if (packet instanceof ServerResourcePackSendPacket) {
-            // TODO
+    /**
+     * Update the current time and send packets accordingly.
+     * If the output is not writable, sending is suspended and the current time falls behind. Once the output has
+     * drained, the missing packets are sent as fast as the output permits until the current time has caught up.
+     * @param now The current time in nanoseconds, from the clock of this session
+     * @return The time in nanoseconds until this method should be called again, or 0 if the replay is paused
+     */
+    @Override
+    public long process(long now) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return doProcess(now);
+        } finally {
+            PROCESS_TIME.record(System.nanoTime() - start);
         }
+    }
 
-        if (packet instanceof ServerJoinGamePacket) {
-            ServerJoinGamePacket p = (ServerJoinGamePacket) packet;
-            // Change entity id to invalid value and force gamemode to spectator
-            packet = new ServerJoinGamePacket(-1789435, p.getHardcore(), GameMode.SPECTATOR, p.getDimension(),
-                    p.getDifficulty(), p.getMaxPlayers(), p.getWorldType(), p.getReducedDebugInfo());
+    private long doProcess(long now) throws IOException {
+        if (!started) {
+            started = true;
+            JoinSnapshot snapshot = timeline != null ? timeline.getJoinSnapshot() : null;
+            if (liveReplay != null && packetIndex == 0) {
+                // Join the recording the configured delay behind the recorder
+                int time = liveReplay.getLatestTime() - LIVE_DELAY;
+                if (time > 0) {
+                    jumpCompacted(null, time);
+                    nowReplayTime = time;
+                    resetScaledStartTime();
+                }
+            } else if (snapshot != null && packetIndex == 0) {
+                // Send the whole login burst at once instead of playing it back, then continue from its end as if it
+                // had been played back already
+                restoreSnapshot(snapshot);
+                SNAPSHOT_JOINS.increment();
+                if (!paused) {
+                    resetScaledStartTime();
+                }
+            }
         }
 
-        if (packet instanceof ServerRespawnPacket) {
-            ServerRespawnPacket p = (ServerRespawnPacket) packet;
-            // Force gamemode to spectator
-            packet = new ServerRespawnPacket(p.getDimension(), p.getDifficulty(), GameMode.SPECTATOR, p.getWorldType());
+        double targetTime;
+        int targetReplayTime;
+        int recordedTime = liveReplay != null ? liveReplay.getLatestTime() : 0;
+        boolean caughtUp = false;
+        if (paused) {
+            if (nowReplayTime >= jumpTargetTime) {
+                return 0;
+            }
+            // Still sending the packets of the last jump
+            targetTime = targetReplayTime = jumpTargetTime;
+        } else {
+            // Update current time
+            nowRealTime = now;
+            targetTime = (nowRealTime - scaledStartTime) * speed / NANOS_PER_MILLI;
+            targetReplayTime = (int) targetTime;
+
+            if (liveReplay != null && !liveReplay.isFinished()) {
+                // Stay behind the recorder, holding the clock back while it has not recorded enough
+                int liveTime = Math.max(recordedTime - LIVE_DELAY, nowReplayTime);
+                if (targetReplayTime > liveTime) {
+                    targetTime = targetReplayTime = liveTime;
+                    scaledStartTime = (long) (nowRealTime - liveTime * NANOS_PER_MILLI / speed);
+                    caughtUp = true;
+                }
+            }
+
+            if (targetReplayTime < nowReplayTime) {
+                SeekIndex index = getSeekIndex();
+                Keyframe keyframe = index != null ? index.getKeyframe(targetReplayTime) : null;
+                if (keyframe != null) {
+                    restoreKeyframe(keyframe);
+                } else {
+                    restart();
+                }
+            }
+        }
+
+        switch (processUntil(targetTime, !paused && pacing)) {
+            case END:
+                if (liveReplay != null && !liveReplay.isFinished()) {
+                    nowReplayTime = targetReplayTime;
+                    return awaitLiveReplay(recordedTime);
+                }
+                // Reached end of replay
+                // TODO event
+                return 0;
+            case BLOCKED:
+                nowReplayTime = (int) pending.peekFirst().packet.getTime();
+                LAG.record(targetReplayTime - nowReplayTime);
+                return BLOCKED_RETRY_INTERVAL;
+            default:
+                nowReplayTime = targetReplayTime;
+                if (paused) {
+                    return 0;
+                }
+                LAG.record(0);
+                if (caughtUp) {
+                    return awaitLiveReplay(recordedTime);
+                }
+                PendingPacket next = pending.peekFirst();
+                double nextTime = pacing ? next.dueTime : next.packet.getTime();
+                return Math.max((long) ((nextTime - targetTime) * NANOS_PER_MILLI / speed), 1);
+        }
+    }
+
+    /**
+     * Waits for the recorder of the replay to write more packets.
+     * @param recordedTime The latest time recorded when this session has been processed
+     * @return The time in nanoseconds until the session should be processed again if there is no notification
+     */
+    private long awaitLiveReplay(int recordedTime) {
+        if (wakeup != null) {
+            liveReplay.onChange(wakeup);
+        }
+        if (liveReplay.getLatestTime() != recordedTime || liveReplay.isFinished()) {
+            return 1; // Changed before we started waiting, the notification may have been missed
         }
+        return wakeup != null ? LIVE_RETRY_INTERVAL : BLOCKED_RETRY_INTERVAL;
+    }
+
+    /**
+     * Sends all packets up to and including the specified replay time or until the output is no longer writable.
+     * Sent packets are flushed before returning.
+     * @param targetReplayTime The replay time
+     * @return Whether the target time has been reached, sending has been suspended or the end of the replay has been
+     * reached
+     */
+    private Progress processUntil(int targetReplayTime) throws IOException {
+        return processUntil(targetReplayTime, false);
+    }
+
+    /**
+     * Sends all packets due up to and including the specified replay time or until the output is no longer writable.
+     * Sent packets are flushed before returning.
+     * @param targetTime The replay time in milliseconds
+     * @param paced Whether packets are due at their paced time instead of their timestamp
+     * @return Whether the target time has been reached, sending has been suspended or the end of the replay has been
+     * reached
+     */
+    private Progress processUntil(double targetTime, boolean paced) throws IOException {
+        boolean collapse = FAST_FORWARD_SPEED > 0 && speed >= FAST_FORWARD_SPEED;
+        try {
+            int batched = 0;
+            while (true) {
+                PendingPacket next = peekPacket();
+                if (next == null) {
+                    return Progress.END;
+                }
+                if ((paced ? next.dueTime : next.packet.getTime()) > targetTime) {
+                    return Progress.REACHED;
+                }
+                if (!output.isWritable()) {
+                    return Progress.BLOCKED;
+                }
+                pending.poll();
+                if (collapse) {
+                    fastForward.add(next.id, next.packet.getPacket(), next.encoded);
+                    if (fastForward.size() >= FAST_FORWARD_BATCH_SIZE) {
+                        fastForward.flush(this::sendPacket);
+                        output.flush();
+                    }
+                    continue;
+                }
+                sendPacket(next.id, next.packet.getPacket(), next.encoded);
+                if (++batched == BATCH_SIZE) {
+                    output.flush();
+                    batched = 0;
+                }
+            }
+        } finally {
+            fastForward.flush(this::sendPacket);
+            output.flush();
+        }
+    }
 
-        if (packet instanceof ServerPlayerPositionRotationPacket) {
+    /**
+     * Filters and rewrites a packet which has not been read through {@link #readPacket()} and sends it to the user.
+     * @param packet The packet
+     */
+    private void processPacket(Packet packet) {
+        int id = packet instanceof RawPacket ? ((RawPacket) packet).getId() : codec.getId(packet.getClass());
+        packet = filter.apply(id, packet);
+        if (packet != null) {
+            sendPacket(id, packet, null);
+        }
+    }
+
+    /**
+     * Sends an already filtered packet to the user, unless it is withheld because it is out of range of the viewer.
+     * @param id The id of the packet
+     * @param packet The packet
+     * @param encoded The packet in its pre-encoded form, may be {@code null}
+     */
+    private void sendPacket(int id, Packet packet, ByteBuf encoded) {
+        if (interestArea == null || interestArea.apply(id, packet, this::writeReleasedPacket)) {
+            writePacket(id, packet, encoded);
+        }
+    }
+
+    /**
+     * Writes a packet which has previously been withheld or replaces a withheld packet.
+     * @param packet The packet, may be a {@link RawPacket}
+     */
+    private void writeReleasedPacket(Packet packet) {
+        int id = packet instanceof RawPacket ? ((RawPacket) packet).getId() : codec.getId(packet.getClass());
+        writePacket(id, packet, null);
+    }
+
+    /**
+     * Writes an already filtered packet to the output.
+     * @param id The id of the packet
+     * @param packet The packet
+     * @param encoded The packet in its pre-encoded form, may be {@code null}
+     */
+    private void writePacket(int id, Packet packet, ByteBuf encoded) {
+        long start = System.nanoTime();
+        if (id == RESOURCE_PACK_SEND_ID) {
+            // TODO
+        }
+
+        if (id == PLAYER_POSITION_ROTATION_ID && !hasWorldLoaded) {
             hasWorldLoaded = true;
+            FIRST_FRAME_TIME.record(TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - createdTime));
         }
 
-        if (packet instanceof ServerNotifyClientPacket) {
-            switch (((ServerNotifyClientPacket) packet).getNotification()) {
-                case START_RAIN:
-                case STOP_RAIN:
-                case RAIN_STRENGTH:
-                case THUNDER_STRENGTH:
-                    break;
-                default:
-                    return; // Bed message, change gamemode, etc.
+        if (id == PLAYER_LIST_ENTRY_ID) {
+            ServerPlayerListEntryPacket p = (ServerPlayerListEntryPacket) RawPacket.decoded(packet);
+            if (p.getAction() == PlayerListEntryAction.ADD_PLAYER) {
+                for (PlayerListEntry entry : p.getEntries()) {
+                    playerListEntries.put(entry.getProfile().getId(), entry);
+                }
+            } else if (p.getAction() == PlayerListEntryAction.REMOVE_PLAYER) {
+                for (PlayerListEntry entry : p.getEntries()) {
+                    playerListEntries.remove(entry.getProfile().getId());
+                }
             }
         }
 
-        user.sendPacket(packet);
+        if (loadedChunks != null && !loadedChunks.update(id, packet)) {
+            CHUNKS_SKIPPED.increment();
+            CHUNK_BYTES_SKIPPED.add(encoded != null ? encoded.readableBytes()
+                    : ((RawPacket) packet).getData().readableBytes());
+            return;
+        }
+
+        if (encoded != null) {
+            output.writeEncoded(packet, encoded);
+        } else {
+            output.write(packet);
+        }
+        PACKETS_SENT.increment();
+        PACKET_TIME.record(System.nanoTime() - start);
+    }
+
+    /**
+     * A packet which has been read but not yet sent.
+     */
+    private static class PendingPacket {
+        private final PacketData packet;
+        private final int id;
+        private final ByteBuf encoded;
+        /**
+         * Replay time in milliseconds at which the packet is to be sent when pacing.
+         */
+        private double dueTime;
+
+        private PendingPacket(PacketData packet, int id, ByteBuf encoded) {
+            this.packet = packet;
+            this.id = id;
+            this.encoded = encoded;
+            this.dueTime = packet.getTime();
+        }
     }
 }
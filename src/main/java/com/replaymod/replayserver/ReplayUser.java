@@ -1,7 +1,19 @@
 package com.replaymod.replayserver;
 
-import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replayserver.io.AdaptiveCompression;
+import com.replaymod.replayserver.io.ChannelAccess;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Gauge;
+import com.replaymod.replayserver.metrics.Metrics;
 import com.replaymod.replaystudio.util.Location;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import org.spacehq.mc.protocol.MinecraftConstants;
 import org.spacehq.mc.protocol.data.game.values.MessageType;
 import org.spacehq.mc.protocol.data.game.values.PlayerListEntry;
@@ -9,6 +21,10 @@ import org.spacehq.mc.protocol.data.game.values.PlayerListEntryAction;
 import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
 import org.spacehq.mc.protocol.data.message.Message;
 import org.spacehq.mc.protocol.data.message.TextMessage;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerMovementPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerPositionPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerPositionRotationPacket;
+import org.spacehq.mc.protocol.packet.ingame.client.player.ClientPlayerRotationPacket;
 import org.spacehq.mc.protocol.packet.ingame.server.ServerChatPacket;
 import org.spacehq.mc.protocol.packet.ingame.server.ServerDisconnectPacket;
 import org.spacehq.mc.protocol.packet.ingame.server.ServerPlayerListEntryPacket;
@@ -19,27 +35,95 @@ import org.spacehq.packetlib.event.session.PacketReceivedEvent;
 import org.spacehq.packetlib.event.session.SessionAdapter;
 import org.spacehq.packetlib.packet.Packet;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ReplayUser extends SessionAdapter implements Runnable, IUser, Executor {
+public class ReplayUser extends SessionAdapter implements Runnable, IUser, Executor, PacketOutput {
     public static final String SESSION_FLAG = "replay_user";
     private static final Logger logger = Logger.getLogger(ReplayUser.class.getName());
+    /**
+     * Number of bytes queued up for sending after which no more replay data is read for a user.
+     */
+    private static final int HIGH_WATER_MARK = Integer.getInteger("replayuser.highwatermark", 1024 * 1024);
+    /**
+     * Number of bytes queued up for sending below which reading replay data is resumed.
+     */
+    private static final int LOW_WATER_MARK = Integer.getInteger("replayuser.lowwatermark", 256 * 1024);
+    /**
+     * Time in nanoseconds after which the worker loop runs again while there is no replay data to be sent.
+     */
+    private static final long IDLE_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Maximum number of received packets waiting to be handled. Once half of it is used up, movement is coalesced
+     * instead of queued (see {@link #overflowMovement}), users sending even more packets are kicked.
+     */
+    private static final int PACKET_RING_SIZE = Integer.getInteger("replayuser.packetring", 1024);
+    /**
+     * Whether the compression of each connection is adapted to its speed, see {@link AdaptiveCompression}.
+     * Pre-encoded packets are only used while the threshold of the connection matches theirs.
+     */
+    private static final boolean ADAPTIVE_COMPRESSION =
+            Boolean.parseBoolean(System.getProperty("replayuser.adaptivecompression", "true"));
+
+    private static final Gauge PACKET_QUEUE = Metrics.gauge("replayserver_user_packet_queue",
+            "Number of received packets waiting to be handled, summed over all users");
+    private static final Gauge TASK_QUEUE = Metrics.gauge("replayserver_user_task_queue",
+            "Number of tasks waiting to be run by the worker of a user, summed over all users");
+    private static final Counter MOVEMENT_COALESCED = Metrics.counter("replayserver_user_movement_coalesced_total",
+            "Number of received movement packets merged into a later one because they could not be handled in time");
+    private static final Counter BYTES_WRITTEN = Metrics.counter("replayserver_bytes_written_total",
+            "Number of bytes written to the network");
 
     private final ReplayServer server;
     private final Session session;
-    private final Queue<Packet> packetQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Received packets, produced by the network thread of the session and consumed by the worker.
+     */
+    private final SpscRing<Packet> packetRing = new SpscRing<>(PACKET_RING_SIZE);
+    /**
+     * Movement received while the {@link #packetRing} was more than half full, merged into a single packet and handled
+     * after everything in the ring. While it is set, all movement goes here so it is never handled out of order.
+     */
+    private final AtomicReference<Packet> overflowMovement = new AtomicReference<>();
+    /**
+     * Whether the worker has been woken up for received packets it has not yet started handling.
+     */
+    private final AtomicBoolean packetWakeupPending = new AtomicBoolean();
+    /**
+     * Packets taken from the {@link #packetRing} in one tick. Only accessed by the worker.
+     */
+    private final List<Packet> receivedPackets = new ArrayList<>();
+    private final ReplayServer.HandlerBacklog[] handlerBacklogs;
     private final Queue<Runnable> workerThreadQueue = new ConcurrentLinkedQueue<>();
 
-    private Thread workerThread;
-    private ReplaySession replaySession;
+    private volatile Thread workerThread;
+    private Channel channel;
+    private ChannelHandlerContext framedContext;
+    private ChannelHandlerContext encodedContext;
+    /**
+     * Compression handler of the channel, {@code null} if the compression is not adapted.
+     */
+    private volatile AdaptiveCompression compression;
+    /**
+     * Whether packets have been written but not yet flushed.
+     * Only accessed by the thread playing back the replay.
+     */
+    private boolean flushPending;
+    private Playback replaySession;
 
     public ReplayUser(ReplayServer server, Session session) {
         this.server = server;
         this.session = session;
+        this.handlerBacklogs = server.createHandlerBacklogs();
 
         session.setFlag(SESSION_FLAG, this);
         session.addListener(this);
@@ -50,6 +134,139 @@ public class ReplayUser extends SessionAdapter implements Runnable, IUser, Execu
         session.send(packet);
     }
 
+    /**
+     * Queues a packet to be sent on the next {@link #flush()}.
+     * {@link RawPacket}s are written as bytes, bypassing the packet codec.
+     * Falls back to {@link #sendPacket(Packet)} if the channel of this user cannot be accessed.
+     * @param packet The packet
+     */
+    @Override
+    public void write(Packet packet) {
+        Channel channel = getChannel();
+        if (channel == null) {
+            sendPacket(RawPacket.decoded(packet));
+            return;
+        }
+        if (packet instanceof RawPacket) {
+            if (encodedContext == null) {
+                encodedContext = channel.pipeline().context(ChannelAccess.CODEC);
+            }
+            if (encodedContext != null) {
+                // Writing through the context of the codec skips only the codec, packets are still compressed
+                encodedContext.write(((RawPacket) packet).getData().duplicate(), encodedContext.voidPromise());
+                flushPending = true;
+                return;
+            }
+            packet = ((RawPacket) packet).decode();
+        }
+        channel.write(packet, channel.voidPromise());
+        flushPending = true;
+    }
+
+    /**
+     * Queues a packet which has already been encoded, compressed and framed to be sent on the next {@link #flush()},
+     * bypassing the packet codec.
+     * Falls back to {@link #sendPacket(Packet)} if the channel of this user cannot be accessed.
+     * @param packet The decoded packet
+     * @param encoded The packet exactly as it is to be sent over the network, will not be modified or released
+     */
+    @Override
+    public void writeEncoded(Packet packet, ByteBuf encoded) {
+        if (framedContext == null) {
+            Channel channel = getChannel();
+            if (channel != null) {
+                framedContext = channel.pipeline().context(ChannelAccess.SIZER);
+            }
+            if (framedContext == null) {
+                sendPacket(RawPacket.decoded(packet));
+                return;
+            }
+        }
+        // Writing through the context of the sizer skips codec, compression and sizer
+        framedContext.write(encoded.duplicate(), framedContext.voidPromise());
+        flushPending = true;
+    }
+
+    @Override
+    public void flush() {
+        if (flushPending) {
+            flushPending = false;
+            channel.flush();
+        }
+    }
+
+    /**
+     * Returns the threshold the compression handler currently uses, which may differ from the one negotiated at login
+     * if the compression is adapted. Pre-encoded packets with another threshold are encoded on the fly.
+     */
+    @Override
+    public int getCompressionThreshold() {
+        AdaptiveCompression compression = this.compression;
+        return compression != null ? compression.getThreshold() : session.getCompressionThreshold();
+    }
+
+    /**
+     * Returns whether data can be written to this user without queueing it up in memory.
+     * @return {@code true} if the outbound buffer of the channel is below its high water mark or the channel cannot be
+     * accessed, {@code false} otherwise
+     */
+    @Override
+    public boolean isWritable() {
+        Channel channel = getChannel();
+        return channel == null || channel.isWritable();
+    }
+
+    private Channel getChannel() {
+        if (channel == null) {
+            channel = ChannelAccess.getChannel(session);
+        }
+        return channel;
+    }
+
+    /**
+     * Applies the configured water marks to the channel of this user and wakes up the user whenever the channel
+     * becomes writable again, so playback resumes as soon as the outbound buffer has drained.
+     */
+    private void configureChannel() {
+        Channel channel = getChannel();
+        if (channel == null) {
+            return;
+        }
+        ChannelConfig config = channel.config();
+        // The low water mark must never exceed the high water mark, not even temporarily
+        config.setWriteBufferHighWaterMark(Math.max(HIGH_WATER_MARK, config.getWriteBufferLowWaterMark()));
+        config.setWriteBufferLowWaterMark(LOW_WATER_MARK);
+        config.setWriteBufferHighWaterMark(HIGH_WATER_MARK);
+        if (ADAPTIVE_COMPRESSION && channel.pipeline().get(ChannelAccess.COMPRESSION) != null) {
+            compression = new AdaptiveCompression(session, session.getCompressionThreshold());
+            channel.pipeline().replace(ChannelAccess.COMPRESSION, ChannelAccess.COMPRESSION, compression);
+        }
+        channel.pipeline().addLast("replay_writability", new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                if (ctx.channel().isWritable()) {
+                    server.getScheduler().wakeup(ReplayUser.this);
+                }
+                super.channelWritabilityChanged(ctx);
+            }
+        });
+        // First in the pipeline, so it sees the bytes exactly as they are written to the socket
+        channel.pipeline().addFirst("replay_metrics", new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                if (msg instanceof ByteBuf) {
+                    int bytes = ((ByteBuf) msg).readableBytes();
+                    BYTES_WRITTEN.add(bytes);
+                    if (compression != null) {
+                        // Includes pre-encoded packets, which bypass the compression handler
+                        compression.recordWritten(bytes);
+                    }
+                }
+                super.write(ctx, msg, promise);
+            }
+        });
+    }
+
     @Override
     public void sendMessage(Message message, MessageType messageType) {
         sendPacket(new ServerChatPacket(message, messageType));
@@ -83,14 +300,77 @@ public class ReplayUser extends SessionAdapter implements Runnable, IUser, Execu
         ));
     }
 
+    /**
+     * Queues a received packet to be handled by the worker, waking it up only if it has not already been woken up
+     * since it last took packets from the queue.
+     * Always called by the same network thread.
+     */
     @Override
     public void packetReceived(PacketReceivedEvent event) {
-        packetQueue.offer(event.getPacket());
-        workerThread.interrupt();
+        Packet packet = event.getPacket();
+        if (packet instanceof ClientPlayerMovementPacket
+                && (overflowMovement.get() != null || packetRing.size() >= PACKET_RING_SIZE / 2)) {
+            if (overflowMovement.getAndAccumulate(packet, ReplayUser::coalesceMovement) == null) {
+                PACKET_QUEUE.increment();
+            } else {
+                MOVEMENT_COALESCED.increment();
+            }
+        } else if (packetRing.offer(packet)) {
+            PACKET_QUEUE.increment();
+        } else {
+            logger.warning(this + " is sending packets faster than they can be handled");
+            kick(new TextMessage("Too many packets"));
+            return;
+        }
+        if (!packetWakeupPending.getAndSet(true)) {
+            server.getScheduler().wakeup(this);
+        }
+    }
+
+    /**
+     * Merges two movement packets into one with the latest position and rotation of both.
+     * @param older The earlier packet, may be {@code null}
+     * @param newer The later packet
+     * @return The merged packet
+     */
+    private static Packet coalesceMovement(Packet older, Packet newer) {
+        if (older == null) {
+            return newer;
+        }
+        boolean olderPosition = older instanceof ClientPlayerPositionPacket
+                || older instanceof ClientPlayerPositionRotationPacket;
+        boolean olderRotation = older instanceof ClientPlayerRotationPacket
+                || older instanceof ClientPlayerPositionRotationPacket;
+        boolean position = newer instanceof ClientPlayerPositionPacket
+                || newer instanceof ClientPlayerPositionRotationPacket;
+        boolean rotation = newer instanceof ClientPlayerRotationPacket
+                || newer instanceof ClientPlayerPositionRotationPacket;
+        if ((position || !olderPosition) && (rotation || !olderRotation)) {
+            return newer;
+        }
+        ClientPlayerMovementPacket pos = (ClientPlayerMovementPacket) (position ? newer : older);
+        ClientPlayerMovementPacket rot = (ClientPlayerMovementPacket) (rotation ? newer : older);
+        return new ClientPlayerPositionRotationPacket(((ClientPlayerMovementPacket) newer).isOnGround(),
+                pos.getX(), pos.getY(), pos.getZ(), rot.getYaw(), rot.getPitch());
+    }
+
+    ReplayServer.HandlerBacklog[] getHandlerBacklogs() {
+        return handlerBacklogs;
     }
 
     @Override
     public void disconnected(DisconnectedEvent event) {
+        // Queued packets will never be handled
+        PACKET_QUEUE.add(-packetRing.size());
+        if (overflowMovement.getAndSet(null) != null) {
+            PACKET_QUEUE.decrement();
+        }
+        // Queued tasks will never be run by the worker, run them here so they can release what they hold
+        runTasks();
+        closeReplaySession();
+    }
+
+    private synchronized void closeReplaySession() {
         if (replaySession != null) {
             try {
                 replaySession.close();
@@ -101,50 +381,121 @@ public class ReplayUser extends SessionAdapter implements Runnable, IUser, Execu
         }
     }
 
+    /**
+     * Runs all queued tasks in the current thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = workerThreadQueue.poll()) != null) {
+            TASK_QUEUE.decrement();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Error running task of disconnected user:", t);
+            }
+        }
+    }
+
+    /**
+     * Runs the worker loop of this user in the current thread until the user disconnects or the thread is interrupted.
+     * The thread is parked between calls to {@link #tick()} and woken up by {@link #unparkWorkerThread()}.
+     */
     @Override
     public void run() {
+        workerThread = Thread.currentThread();
+        long sleep;
+        while ((sleep = tick()) >= 0 && !Thread.interrupted()) {
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    /**
+     * Handles incoming packets and queued tasks and sends replay data.
+     * Must only ever be called from one thread at a time.
+     * @return The time in nanoseconds until this method should be called again, or -1 if the user has disconnected
+     */
+    protected long tick() {
         try {
-            workerThread = Thread.currentThread();
-            while (isConnected()) {
-                // Handle incoming packets
-                while (!packetQueue.isEmpty()) {
-                    server.notifyPacketHandlers(this, packetQueue.poll());
-                }
+            if (!isConnected()) {
+                return -1;
+            }
 
-                // Handle queued tasks
-                while (!workerThreadQueue.isEmpty()) {
-                    workerThreadQueue.poll().run();
-                }
+            // Handle incoming packets, any packet received from now on wakes us up again
+            packetWakeupPending.set(false);
+            PACKET_QUEUE.add(-packetRing.drainTo(receivedPackets));
+            // Newer than all movement in the ring, see overflowMovement
+            Packet movement = overflowMovement.getAndSet(null);
+            if (movement != null) {
+                PACKET_QUEUE.decrement();
+                receivedPackets.add(movement);
+            }
+            server.notifyPacketHandlers(this, receivedPackets);
+            receivedPackets.clear();
 
-                long sleep = 100;
-                if (replaySession != null) {
-                    // Send replay data
-                    sleep = replaySession.process(System.currentTimeMillis());
-                    if (sleep == 0) {
-                        // Paused, sleep 100ms or until we get a new packet and are interrupted (which is more likely)
-                        sleep = 100;
-                    }
-                }
-                try {
-                    Thread.sleep(sleep);
-                } catch (InterruptedException ignored) {
+            // Handle queued tasks
+            while (!workerThreadQueue.isEmpty()) {
+                TASK_QUEUE.decrement();
+                workerThreadQueue.poll().run();
+            }
+
+            long sleep = IDLE_SLEEP;
+            if (replaySession != null) {
+                // Send replay data
+                sleep = replaySession.process(System.nanoTime());
+                if (sleep == 0) {
+                    // Paused, sleep 100ms or until we get a new packet and are woken up (which is more likely)
+                    sleep = IDLE_SLEEP;
                 }
             }
+            return sleep;
         } catch (Throwable t) {
             logger.log(Level.SEVERE, "Exception in user worker loop:", t);
             kick(new TextMessage("Internal Server Error"));
+            return -1;
+        }
+    }
+
+    /**
+     * Wakes up the thread currently running {@link #run()}, if any.
+     * If the thread is not parked right now, it does not park the next time, so wakeups are never lost.
+     */
+    protected void unparkWorkerThread() {
+        Thread workerThread = this.workerThread;
+        if (workerThread != null) {
+            LockSupport.unpark(workerThread);
         }
     }
 
+    /**
+     * Runs the specified task on the worker of this user.
+     * Once the user has disconnected, tasks are run right away in the calling thread (or in the thread handling the
+     * disconnect if they were queued before), so tasks holding resources have to check {@link #isConnected()} and
+     * release them if the user is gone.
+     * @param runnable The task
+     */
     @Override
     public void execute(Runnable runnable) {
         workerThreadQueue.offer(runnable);
-        workerThread.interrupt();
+        TASK_QUEUE.increment();
+        if (!isConnected()) {
+            runTasks();
+            return;
+        }
+        server.getScheduler().wakeup(this);
     }
 
-    protected void init(ReplayFile replayFile) {
-        logger.fine("Initializing session for " + this + " with replay " + replayFile);
-        replaySession = new ReplaySession(this, replayFile);
+    protected void init(Playback playback) {
+        // The replay file is not asked for, it may not have been opened yet
+        logger.fine("Initializing session for " + this);
+        synchronized (this) {
+            replaySession = playback;
+        }
+        if (!isConnected()) {
+            // Disconnected while the session was being created, the disconnect handler may have missed it
+            closeReplaySession();
+            return;
+        }
+        configureChannel();
 
         // We need to send a player list entry for the spectator to be able to no-clip
         // This will inevitably show the spectator player as the last (?) player in the tablist, however there isn't any
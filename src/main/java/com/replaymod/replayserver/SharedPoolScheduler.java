@@ -0,0 +1,166 @@
+package com.replaymod.replayserver;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A scheduler which runs all users on a small, fixed pool of threads.
+ * Each user is a task delayed by the time returned by {@link ReplayUser#tick()}. Users are woken up by running their
+ * task right away instead of interrupting a thread.
+ * Delays are rounded up to a multiple of {@code sharedpoolscheduler.quantum} microseconds (default 1000) and all
+ * tasks due at the same instant share a single timer, so sessions which are due at (almost) the same time are woken
+ * up together instead of each one individually.
+ * The pool size can be configured with the {@code sharedpoolscheduler.threads} system property and defaults to the
+ * number of available processors.
+ */
+public class SharedPoolScheduler implements PlaybackScheduler {
+    private static final Logger logger = Logger.getLogger(SharedPoolScheduler.class.getName());
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final long quantum = TimeUnit.MICROSECONDS.toNanos(Long.getLong("sharedpoolscheduler.quantum", 1000));
+    private final Map<ReplayUser, Task> tasks = new ConcurrentHashMap<>();
+    /**
+     * Timers of all pending deadlines by deadline (in terms of {@link System#nanoTime()}).
+     */
+    private final Map<Long, Slot> slots = new ConcurrentHashMap<>();
+
+    public SharedPoolScheduler() {
+        int threads = Integer.getInteger("sharedpoolscheduler.threads", Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadId = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Playback-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.fine("Using " + threads + " playback threads");
+    }
+
+    @Override
+    public void start(ReplayUser user) {
+        Task task = new Task(user);
+        tasks.put(user, task);
+        task.schedule(0);
+    }
+
+    @Override
+    public void wakeup(ReplayUser user) {
+        Task task = tasks.get(user);
+        if (task != null) {
+            task.wakeup();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A timer shared by all tasks due at the same deadline.
+     */
+    private class Slot implements Runnable {
+        private final long deadline;
+        private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+
+        private Slot(long deadline) {
+            this.deadline = deadline;
+            executor.schedule(this, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            // Tasks scheduled for this deadline from now on get a new slot
+            slots.remove(deadline, this);
+            for (Task task : tasks) {
+                task.fire(this);
+            }
+        }
+    }
+
+    private class Task implements Runnable {
+        private final ReplayUser user;
+
+        /**
+         * The slot this task is waiting in, {@code null} if it is not waiting. Guarded by {@code this}.
+         */
+        private Slot slot;
+
+        /**
+         * Whether {@link ReplayUser#tick()} is currently being called. Guarded by {@code this}.
+         */
+        private boolean running;
+
+        /**
+         * Whether a wakeup has been requested while {@link #running}. Guarded by {@code this}.
+         */
+        private boolean wakeupPending;
+
+        private Task(ReplayUser user) {
+            this.user = user;
+        }
+
+        private synchronized void schedule(long delay) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (delay <= 0) {
+                executor.execute(this);
+                return;
+            }
+            long deadline = System.nanoTime() + delay;
+            if (quantum > 1) {
+                deadline += Math.floorMod(-deadline, quantum);
+            }
+            slot = slots.compute(deadline, (key, slot) -> {
+                if (slot == null) {
+                    slot = new Slot(key);
+                }
+                slot.tasks.add(this);
+                return slot;
+            });
+        }
+
+        private synchronized void fire(Slot slot) {
+            if (this.slot == slot) {
+                this.slot = null;
+                schedule(0);
+            }
+            // Otherwise the task has been woken up early
+        }
+
+        private synchronized void wakeup() {
+            if (running) {
+                // Will be re-scheduled immediately once the current tick is done
+                wakeupPending = true;
+            } else if (slot != null) {
+                slot.tasks.remove(this);
+                slot = null;
+                schedule(0);
+            }
+            // Otherwise the task is about to run (and will handle whatever caused the wakeup) or is done
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                running = true;
+                wakeupPending = false;
+            }
+            long sleep = user.tick();
+            synchronized (this) {
+                running = false;
+                if (sleep < 0) {
+                    // User has disconnected
+                    tasks.remove(user);
+                    return;
+                }
+                schedule(wakeupPending ? 0 : sleep);
+            }
+        }
+    }
+}
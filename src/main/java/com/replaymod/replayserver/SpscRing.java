@@ -0,0 +1,83 @@
+package com.replaymod.replayserver;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one consumer thread.
+ * Elements are published with ordered writes only, neither side ever blocks or retries.
+ * @param <E> Type of the elements
+ */
+class SpscRing<E> {
+    private final Object[] buffer;
+    private final int mask;
+    /**
+     * Index of the next element to be read. Only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Index of the next element to be written. Only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Last value of {@link #head} seen by the producer, so it does not have to read it on every offer.
+     */
+    private long cachedHead;
+
+    /**
+     * @param capacity Maximum number of elements, rounded up to a power of two
+     */
+    SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element. Must only be called from the producer thread.
+     * @param element The element
+     * @return {@code true} if the element has been added, {@code false} if the ring is full
+     */
+    boolean offer(E element) {
+        long tail = this.tail.get();
+        if (tail - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (tail - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) tail & mask] = element;
+        // Publishes the element to the consumer
+        this.tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Removes all elements and adds them to the specified list, in order. Must only be called from the consumer thread.
+     * @param out The list
+     * @return The number of elements removed
+     */
+    @SuppressWarnings("unchecked")
+    int drainTo(List<? super E> out) {
+        long head = this.head.get();
+        long tail = this.tail.get();
+        for (long i = head; i < tail; i++) {
+            int index = (int) i & mask;
+            out.add((E) buffer[index]);
+            buffer[index] = null;
+        }
+        // Frees the slots for the producer
+        this.head.lazySet(tail);
+        return (int) (tail - head);
+    }
+
+    /**
+     * Returns the number of elements in the ring. The result may be outdated immediately.
+     * @return Number of elements
+     */
+    int size() {
+        // Read the head first, so the result is never negative
+        long head = this.head.get();
+        return (int) (tail.get() - head);
+    }
+}
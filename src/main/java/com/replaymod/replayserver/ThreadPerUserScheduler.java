@@ -0,0 +1,28 @@
+package com.replaymod.replayserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A scheduler which runs each user in its own thread.
+ * The thread is parked between calls to {@link ReplayUser#tick()} and unparked to be woken up.
+ * On Java 21 and later, {@code VirtualThreadScheduler} does the same using virtual threads.
+ */
+public class ThreadPerUserScheduler implements PlaybackScheduler {
+    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+
+    @Override
+    public void start(ReplayUser user) {
+        threadPool.submit(user);
+    }
+
+    @Override
+    public void wakeup(ReplayUser user) {
+        user.unparkWorkerThread();
+    }
+
+    @Override
+    public void shutdown() {
+        threadPool.shutdownNow();
+    }
+}
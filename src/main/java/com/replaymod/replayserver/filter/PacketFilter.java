@@ -0,0 +1,154 @@
+package com.replaymod.replayserver.filter;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import org.spacehq.mc.protocol.data.game.values.entity.player.GameMode;
+import org.spacehq.mc.protocol.packet.ingame.server.*;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerChangeHeldItemPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerAbilitiesPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerSetExperiencePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerUpdateHealthPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerCloseWindowPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerOpenWindowPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerSetSlotPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.window.ServerWindowItemsPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerNotifyClientPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerOpenTileEntityEditorPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.util.Arrays;
+
+/**
+ * Decides which packets of a replay are sent to users and how they are rewritten, keyed by packet id.
+ * Whether a packet is dropped entirely can be determined from its id alone, so such packets never have to be decoded.
+ *
+ * Lookups are plain array accesses and safe from any thread. Changes should be made before the server is started,
+ * as packets which have already been loaded may have been filtered with the previous configuration.
+ */
+public class PacketFilter {
+    private final PacketCodec codec = PacketCodec.getInstance();
+
+    private volatile boolean[] dropped = new boolean[0];
+    private volatile PacketRewriter[] rewriters = new PacketRewriter[0];
+
+    /**
+     * Creates a filter which drops all packets that make no sense to a spectator and forces the spectator game mode.
+     * @return The filter
+     */
+    public static PacketFilter createDefault() {
+        return new PacketFilter()
+                .drop(ServerUpdateHealthPacket.class)
+                .drop(ServerOpenWindowPacket.class)
+                .drop(ServerCloseWindowPacket.class)
+                .drop(ServerSetSlotPacket.class)
+                .drop(ServerWindowItemsPacket.class)
+                .drop(ServerOpenTileEntityEditorPacket.class)
+                .drop(ServerStatisticsPacket.class)
+                .drop(ServerSetExperiencePacket.class)
+                .drop(ServerChangeHeldItemPacket.class)
+                .drop(ServerSwitchCameraPacket.class)
+                .drop(ServerPlayerAbilitiesPacket.class)
+                .drop(ServerTitlePacket.class)
+                .rewrite(ServerJoinGamePacket.class, packet -> {
+                    ServerJoinGamePacket p = (ServerJoinGamePacket) packet;
+                    // Change entity id to invalid value and force gamemode to spectator
+                    return new ServerJoinGamePacket(-1789435, p.getHardcore(), GameMode.SPECTATOR, p.getDimension(),
+                            p.getDifficulty(), p.getMaxPlayers(), p.getWorldType(), p.getReducedDebugInfo());
+                })
+                .rewrite(ServerRespawnPacket.class, packet -> {
+                    ServerRespawnPacket p = (ServerRespawnPacket) packet;
+                    // Force gamemode to spectator
+                    return new ServerRespawnPacket(p.getDimension(), p.getDifficulty(), GameMode.SPECTATOR,
+                            p.getWorldType());
+                })
+                .rewrite(ServerNotifyClientPacket.class, packet -> {
+                    switch (((ServerNotifyClientPacket) packet).getNotification()) {
+                        case START_RAIN:
+                        case STOP_RAIN:
+                        case RAIN_STRENGTH:
+                        case THUNDER_STRENGTH:
+                            return packet;
+                        default:
+                            return null; // Bed message, change gamemode, etc.
+                    }
+                });
+    }
+
+    /**
+     * Drops all packets of the specified type.
+     * @param type The packet type
+     * @return This filter
+     */
+    public synchronized PacketFilter drop(Class<? extends Packet> type) {
+        int id = codec.getId(type);
+        boolean[] dropped = Arrays.copyOf(this.dropped, Math.max(this.dropped.length, id + 1));
+        dropped[id] = true;
+        this.dropped = dropped;
+        return this;
+    }
+
+    /**
+     * Rewrites all packets of the specified type.
+     * If there already is a rewriter for the type, the new one is applied to the result of the existing one.
+     * @param type The packet type
+     * @param rewriter The rewriter
+     * @return This filter
+     */
+    public synchronized PacketFilter rewrite(Class<? extends Packet> type, PacketRewriter rewriter) {
+        int id = codec.getId(type);
+        PacketRewriter[] rewriters = Arrays.copyOf(this.rewriters, Math.max(this.rewriters.length, id + 1));
+        rewriters[id] = rewriters[id] == null ? rewriter : rewriters[id].andThen(rewriter);
+        this.rewriters = rewriters;
+        return this;
+    }
+
+    /**
+     * Returns whether all packets with the specified id are dropped.
+     * @param id The packet id
+     * @return {@code true} if packets with the id are always dropped, {@code false} otherwise
+     */
+    public boolean isDropped(int id) {
+        boolean[] dropped = this.dropped;
+        return id < dropped.length && dropped[id];
+    }
+
+    /**
+     * Returns whether packets with the specified id may be changed or dropped depending on their content.
+     * @param id The packet id
+     * @return {@code true} if there is a rewriter for packets with the id, {@code false} otherwise
+     */
+    public boolean isRewritten(int id) {
+        PacketRewriter[] rewriters = this.rewriters;
+        return id < rewriters.length && rewriters[id] != null;
+    }
+
+    /**
+     * Filters and rewrites the specified packet.
+     * Raw packets are decoded if they are rewritten, rewriters always receive decoded packets.
+     * @param id The id of the packet
+     * @param packet The packet, may be raw
+     * @return The packet itself if it should be sent unchanged, a replacement packet or {@code null} if the packet
+     * should be dropped
+     */
+    public Packet apply(int id, Packet packet) {
+        if (isDropped(id)) {
+            return null;
+        }
+        PacketRewriter[] rewriters = this.rewriters;
+        if (id < rewriters.length && rewriters[id] != null) {
+            return rewriters[id].rewrite(RawPacket.decoded(packet));
+        }
+        return packet;
+    }
+
+    /**
+     * Filters and rewrites the specified packet, determining its id from its type.
+     * Prefer {@link #apply(int, Packet)} if the id is known.
+     * @param packet The packet
+     * @return The packet itself if it should be sent unchanged, a replacement packet or {@code null} if the packet
+     * should be dropped
+     */
+    public Packet apply(Packet packet) {
+        return apply(codec.getId(packet.getClass()), packet);
+    }
+}
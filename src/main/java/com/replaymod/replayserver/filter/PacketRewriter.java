@@ -0,0 +1,29 @@
+package com.replaymod.replayserver.filter;
+
+import org.spacehq.packetlib.packet.Packet;
+
+/**
+ * Rewrites packets of a specific type before they are sent to users.
+ * Rewriters must not depend on any state, as their results may be shared between all users watching a replay.
+ */
+public interface PacketRewriter {
+    /**
+     * Rewrites the specified packet.
+     * @param packet The packet, must not be modified
+     * @return The packet itself if it should be sent unchanged, a replacement packet or {@code null} if the packet
+     * should be dropped
+     */
+    Packet rewrite(Packet packet);
+
+    /**
+     * Returns a rewriter which first applies this rewriter and then the specified one.
+     * @param next The rewriter to apply afterwards
+     * @return The combined rewriter
+     */
+    default PacketRewriter andThen(PacketRewriter next) {
+        return packet -> {
+            packet = rewrite(packet);
+            return packet != null ? next.rewrite(packet) : null;
+        };
+    }
+}
@@ -0,0 +1,343 @@
+package com.replaymod.replayserver.index;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.spacehq.mc.protocol.data.game.Position;
+import org.spacehq.mc.protocol.data.game.values.world.block.BlockChangeRecord;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerRespawnPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.*;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.spawn.*;
+import org.spacehq.mc.protocol.packet.ingame.server.world.*;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buffers the packets of one playback tick and collapses updates which are superseded within it before they are
+ * sent. Used while playing at high speeds, where a single tick of playback covers many recorded ticks.
+ *
+ * For each entity, consecutive relative moves and rotations are merged into a single packet (as long as the summed
+ * movement can still be expressed as a relative move), teleports replace any preceding movement and only the latest
+ * head rotation is kept. For each block position, only the last block change is kept.
+ * Collapsed updates are sent at the position of the latest update they replace. Spawning or destroying an entity,
+ * loading chunks and changing the world act as barriers: no updates are collapsed across them.
+ *
+ * Only the packets which might be collapsed are decoded, everything else is passed through as is.
+ */
+public class FastForward {
+    private static final Counter COLLAPSED = Metrics.counter("replayserver_fastforward_collapsed_total",
+            "Number of packets which have been dropped because they were superseded within the same tick");
+
+    private static final byte OTHER = 0;
+    private static final byte MOVEMENT = 1;
+    private static final byte TELEPORT = 2;
+    private static final byte HEAD_LOOK = 3;
+    private static final byte BLOCK_CHANGE = 4;
+    private static final byte ENTITY_BARRIER = 5;
+    private static final byte BARRIER = 6;
+
+    /**
+     * Kind of each packet id, one of the constants above.
+     */
+    private static final byte[] KINDS = new byte[256];
+
+    static {
+        PacketCodec codec = PacketCodec.getInstance();
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerEntityMovementPacket.class,
+                ServerEntityPositionPacket.class, ServerEntityRotationPacket.class,
+                ServerEntityPositionRotationPacket.class)) {
+            KINDS[codec.getId(cls)] = MOVEMENT;
+        }
+        KINDS[codec.getId(ServerEntityTeleportPacket.class)] = TELEPORT;
+        KINDS[codec.getId(ServerEntityHeadLookPacket.class)] = HEAD_LOOK;
+        KINDS[codec.getId(ServerBlockChangePacket.class)] = BLOCK_CHANGE;
+        KINDS[codec.getId(ServerMultiBlockChangePacket.class)] = BLOCK_CHANGE;
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerSpawnPlayerPacket.class,
+                ServerSpawnMobPacket.class, ServerSpawnObjectPacket.class, ServerSpawnPaintingPacket.class,
+                ServerSpawnExpOrbPacket.class, ServerSpawnGlobalEntityPacket.class,
+                ServerDestroyEntitiesPacket.class)) {
+            KINDS[codec.getId(cls)] = ENTITY_BARRIER;
+        }
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerJoinGamePacket.class,
+                ServerRespawnPacket.class, ServerChunkDataPacket.class, ServerMultiChunkDataPacket.class)) {
+            KINDS[codec.getId(cls)] = BARRIER;
+        }
+    }
+
+    /**
+     * Largest relative movement in blocks (along any axis) which can be sent in a single packet.
+     */
+    private static final double MAX_RELATIVE_MOVE = 127 / 32d;
+
+    /**
+     * Buffered packets in order, superseded entries are {@code null}.
+     */
+    private final List<Entry> entries = new ArrayList<>();
+    /**
+     * Latest movement of each entity which may still be merged with.
+     */
+    private final Int2ObjectMap<Entry> movements = new Int2ObjectOpenHashMap<>();
+    /**
+     * Latest head rotation of each entity.
+     */
+    private final Int2ObjectMap<Entry> headLooks = new Int2ObjectOpenHashMap<>();
+    /**
+     * Entry containing the latest block change of each position.
+     */
+    private final Long2ObjectMap<Entry> blocks = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Returns the number of packets currently buffered, including superseded ones.
+     * @return Number of buffered packets
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Buffers the specified packet.
+     * @param id Id of the packet
+     * @param packet The packet, may be a {@link RawPacket}
+     * @param encoded The packet in its pre-encoded form, may be {@code null}
+     */
+    public void add(int id, Packet packet, ByteBuf encoded) {
+        switch (KINDS[id]) {
+            case MOVEMENT:
+            case TELEPORT:
+                addMovement(append(id, packet, encoded), RawPacket.decoded(packet));
+                return;
+            case HEAD_LOOK:
+                ServerEntityHeadLookPacket headLook = (ServerEntityHeadLookPacket) RawPacket.decoded(packet);
+                supersede(headLooks.put(headLook.getEntityId(), append(id, packet, encoded)));
+                return;
+            case BLOCK_CHANGE:
+                addBlockChange(append(id, packet, encoded), RawPacket.decoded(packet));
+                return;
+            case ENTITY_BARRIER:
+                Packet decoded = RawPacket.decoded(packet);
+                if (decoded instanceof ServerDestroyEntitiesPacket) {
+                    for (int entityId : ((ServerDestroyEntitiesPacket) decoded).getEntityIds()) {
+                        movements.remove(entityId);
+                        headLooks.remove(entityId);
+                    }
+                } else {
+                    int entityId = ReplayState.getEntityId(decoded);
+                    movements.remove(entityId);
+                    headLooks.remove(entityId);
+                }
+                break;
+            case BARRIER:
+                movements.clear();
+                headLooks.clear();
+                blocks.clear();
+                break;
+        }
+        append(id, packet, encoded);
+    }
+
+    /**
+     * Sends all buffered packets which have not been superseded, in order, and clears the buffer.
+     * Packets which have not been collapsed are sent exactly as they were added.
+     * @param output Where to send the packets to
+     */
+    public void flush(Output output) {
+        for (Entry entry : entries) {
+            if (entry != null) {
+                Packet packet = entry.build();
+                output.send(entry.id, packet, entry.packet == packet ? entry.encoded : null);
+            }
+        }
+        entries.clear();
+        movements.clear();
+        headLooks.clear();
+        blocks.clear();
+    }
+
+    private Entry append(int id, Packet packet, ByteBuf encoded) {
+        Entry entry = new Entry(id, packet, encoded, entries.size());
+        entries.add(entry);
+        return entry;
+    }
+
+    private void supersede(Entry entry) {
+        if (entry != null) {
+            entries.set(entry.index, null);
+            COLLAPSED.increment();
+        }
+    }
+
+    private void addMovement(Entry entry, Packet packet) {
+        ServerEntityMovementPacket move = packet instanceof ServerEntityMovementPacket
+                ? (ServerEntityMovementPacket) packet : null;
+        int entityId = move != null ? move.getEntityId() : ((ServerEntityTeleportPacket) packet).getEntityId();
+        Entry previous = movements.get(entityId);
+        entry.entityId = entityId;
+        if (move == null) {
+            ServerEntityTeleportPacket p = (ServerEntityTeleportPacket) packet;
+            entry.absolute = true;
+            entry.x = p.getX();
+            entry.y = p.getY();
+            entry.z = p.getZ();
+            entry.yaw = p.getYaw();
+            entry.pitch = p.getPitch();
+            entry.onGround = p.isOnGround();
+            supersede(previous);
+        } else {
+            boolean moved = !(packet instanceof ServerEntityRotationPacket);
+            boolean rotated = packet instanceof ServerEntityRotationPacket
+                    || packet instanceof ServerEntityPositionRotationPacket;
+            if (previous != null && (previous.absolute || !moved || fitsRelative(previous, move))) {
+                // Merge into the previous movement
+                entry.absolute = previous.absolute;
+                entry.x = previous.x;
+                entry.y = previous.y;
+                entry.z = previous.z;
+                entry.yaw = previous.yaw;
+                entry.pitch = previous.pitch;
+                entry.moved = previous.moved;
+                entry.rotated = previous.rotated;
+                entry.merged = true;
+                supersede(previous);
+            }
+            if (moved) {
+                entry.x += move.getMovementX();
+                entry.y += move.getMovementY();
+                entry.z += move.getMovementZ();
+                entry.moved = true;
+            }
+            if (rotated) {
+                entry.yaw = move.getYaw();
+                entry.pitch = move.getPitch();
+                entry.rotated = true;
+            }
+            entry.onGround = move.isOnGround();
+        }
+        movements.put(entityId, entry);
+    }
+
+    private static boolean fitsRelative(Entry previous, ServerEntityMovementPacket move) {
+        return Math.abs(previous.x + move.getMovementX()) <= MAX_RELATIVE_MOVE
+                && Math.abs(previous.y + move.getMovementY()) <= MAX_RELATIVE_MOVE
+                && Math.abs(previous.z + move.getMovementZ()) <= MAX_RELATIVE_MOVE;
+    }
+
+    private void addBlockChange(Entry entry, Packet packet) {
+        BlockChangeRecord[] records = packet instanceof ServerBlockChangePacket
+                ? new BlockChangeRecord[]{((ServerBlockChangePacket) packet).getRecord()}
+                : ((ServerMultiBlockChangePacket) packet).getRecords().clone(); // The packet is shared
+        entry.records = records;
+        entry.remaining = records.length;
+        for (int i = 0; i < records.length; i++) {
+            Entry previous = blocks.put(positionKey(records[i].getPosition()), entry);
+            if (previous != null && previous != entry) {
+                previous.removeRecord(records[i].getPosition());
+                if (previous.remaining == 0) {
+                    supersede(previous);
+                }
+            }
+        }
+    }
+
+    private static long positionKey(Position pos) {
+        return ((long) pos.getX() & 0x3FFFFFF) << 38 | ((long) pos.getZ() & 0x3FFFFFF) << 12 | pos.getY() & 0xFFF;
+    }
+
+    /**
+     * Receives the packets of a tick once it is flushed.
+     */
+    public interface Output {
+        /**
+         * @param id Id of the packet
+         * @param packet The packet
+         * @param encoded The packet in its pre-encoded form, {@code null} if not available
+         */
+        void send(int id, Packet packet, ByteBuf encoded);
+    }
+
+    private static class Entry {
+        private final int id;
+        /**
+         * The packet as it has been added, may be a {@link RawPacket}.
+         */
+        private final Packet packet;
+        private final ByteBuf encoded;
+        private final int index;
+
+        // Movement, either relative or absolute
+        private int entityId;
+        private boolean merged;
+        private boolean absolute;
+        private boolean moved;
+        private boolean rotated;
+        private double x, y, z;
+        private float yaw, pitch;
+        private boolean onGround;
+
+        // Block changes, superseded records are null
+        private BlockChangeRecord[] records;
+        private int remaining;
+
+        private Entry(int id, Packet packet, ByteBuf encoded, int index) {
+            this.id = id;
+            this.packet = packet;
+            this.encoded = encoded;
+            this.index = index;
+        }
+
+        private void removeRecord(Position pos) {
+            long key = positionKey(pos);
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] != null && positionKey(records[i].getPosition()) == key) {
+                    records[i] = null;
+                    remaining--;
+                    COLLAPSED.increment();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the packet to be sent for this entry.
+         * @return The original packet if nothing has been collapsed into it, otherwise a new packet
+         */
+        private Packet build() {
+            if (records != null) {
+                if (remaining == records.length) {
+                    return packet;
+                }
+                BlockChangeRecord[] left = new BlockChangeRecord[remaining];
+                int i = 0;
+                for (BlockChangeRecord record : records) {
+                    if (record != null) {
+                        left[i++] = record;
+                    }
+                }
+                return left.length == 1 ? new ServerBlockChangePacket(left[0]) : new ServerMultiBlockChangePacket(left);
+            }
+            if (!merged) {
+                return packet;
+            }
+            if (absolute) {
+                return new ServerEntityTeleportPacket(entityId, x, y, z, yaw, pitch, onGround);
+            } else if (moved && rotated) {
+                return new ServerEntityPositionRotationPacket(entityId, x, y, z, yaw, pitch, onGround);
+            } else if (moved) {
+                return new ServerEntityPositionPacket(entityId, x, y, z, onGround);
+            } else if (rotated) {
+                return new ServerEntityRotationPacket(entityId, yaw, pitch, onGround);
+            } else {
+                return new ServerEntityMovementPacket(entityId, onGround);
+            }
+        }
+    }
+}
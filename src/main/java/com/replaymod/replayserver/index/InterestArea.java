@@ -0,0 +1,436 @@
+package com.replaymod.replayserver.index;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import org.spacehq.mc.protocol.data.game.Position;
+import org.spacehq.mc.protocol.data.game.values.world.block.BlockChangeRecord;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerRespawnPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.*;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.spawn.*;
+import org.spacehq.mc.protocol.packet.ingame.server.world.*;
+import org.spacehq.packetlib.packet.Packet;
+import org.spacehq.packetlib.tcp.io.ByteBufNetInput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Withholds chunk, block and entity packets for areas which are too far away from the viewer of a single session.
+ *
+ * A chunk is in range if neither of its coordinates differs by more than the radius from the chunk the viewer is in.
+ * Packets for chunks out of range are folded into a compacted per-chunk state (see {@link ReplayState}) and sent once
+ * the viewer moves into range. Entities are tracked by their position: entities out of range are not spawned on the
+ * client (or are destroyed when they leave the range) and are spawned in their current state once they are back in
+ * range. Entities whose absolute position is unknown are always sent.
+ *
+ * Until the position of the viewer is known, everything is in range.
+ */
+public class InterestArea {
+    private static final Counter WITHHELD = Metrics.counter("replayserver_packets_withheld_total",
+            "Number of packets withheld because they were out of range of the viewer");
+
+    private static final int CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerChunkDataPacket.class);
+    private static final int MULTI_CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerMultiChunkDataPacket.class);
+    private static final int BLOCK_CHANGE_ID = PacketCodec.getInstance().getId(ServerBlockChangePacket.class);
+    private static final int MULTI_BLOCK_CHANGE_ID =
+            PacketCodec.getInstance().getId(ServerMultiBlockChangePacket.class);
+    private static final int UPDATE_TILE_ENTITY_ID =
+            PacketCodec.getInstance().getId(ServerUpdateTileEntityPacket.class);
+    private static final int UPDATE_SIGN_ID = PacketCodec.getInstance().getId(ServerUpdateSignPacket.class);
+    private static final int JOIN_GAME_ID = PacketCodec.getInstance().getId(ServerJoinGamePacket.class);
+    private static final int RESPAWN_ID = PacketCodec.getInstance().getId(ServerRespawnPacket.class);
+    private static final int DESTROY_ENTITIES_ID = PacketCodec.getInstance().getId(ServerDestroyEntitiesPacket.class);
+
+    /**
+     * Whether each packet id refers to a single entity, see {@link ReplayState#getEntityId(Packet)}.
+     */
+    private static final boolean[] ENTITY_PACKETS = new boolean[256];
+    /**
+     * Whether each packet id spawns an entity, see {@link ReplayState#isSpawnPacket(Packet)}.
+     */
+    private static final boolean[] SPAWN_PACKETS = new boolean[256];
+
+    static {
+        PacketCodec codec = PacketCodec.getInstance();
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerSpawnPlayerPacket.class,
+                ServerSpawnMobPacket.class, ServerSpawnObjectPacket.class, ServerSpawnPaintingPacket.class,
+                ServerSpawnExpOrbPacket.class, ServerSpawnGlobalEntityPacket.class)) {
+            SPAWN_PACKETS[codec.getId(cls)] = true;
+        }
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerSpawnPlayerPacket.class,
+                ServerSpawnMobPacket.class, ServerSpawnObjectPacket.class, ServerSpawnPaintingPacket.class,
+                ServerSpawnExpOrbPacket.class, ServerSpawnGlobalEntityPacket.class, ServerEntityMovementPacket.class,
+                ServerEntityPositionPacket.class, ServerEntityRotationPacket.class,
+                ServerEntityPositionRotationPacket.class, ServerEntityTeleportPacket.class,
+                ServerEntityHeadLookPacket.class, ServerEntityMetadataPacket.class, ServerEntityEquipmentPacket.class,
+                ServerEntityVelocityPacket.class, ServerEntityPropertiesPacket.class, ServerEntityEffectPacket.class,
+                ServerEntityRemoveEffectPacket.class, ServerEntityAttachPacket.class)) {
+            ENTITY_PACKETS[codec.getId(cls)] = true;
+        }
+    }
+
+    private final int radius;
+
+    private boolean positionKnown;
+    private int viewerX, viewerZ;
+    private int dimension;
+
+    /**
+     * Withheld state of each chunk out of range.
+     */
+    private final Long2ObjectMap<ReplayState.ChunkState> chunks = new Long2ObjectLinkedOpenHashMap<>();
+    /**
+     * All entities which have been spawned in the current world.
+     */
+    private final Int2ObjectMap<Entity> entities = new Int2ObjectOpenHashMap<>();
+
+    /**
+     * @param radius The radius in chunks around the viewer in which packets are sent
+     */
+    public InterestArea(int radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Passes the specified packet through this area.
+     * @param id Id of the packet
+     * @param packet The packet, may be a {@link RawPacket}
+     * @param send Receives packets which have to be sent in place of the specified packet
+     * @return {@code true} if the packet should be sent as is, {@code false} if it has been withheld or replaced
+     */
+    public boolean apply(int id, Packet packet, Consumer<Packet> send) {
+        boolean sent;
+        if (id == JOIN_GAME_ID) {
+            reset(((ServerJoinGamePacket) RawPacket.decoded(packet)).getDimension());
+            sent = true;
+        } else if (id == RESPAWN_ID) {
+            int dimension = ((ServerRespawnPacket) RawPacket.decoded(packet)).getDimension();
+            if (dimension != this.dimension) {
+                // Client drops the whole world when changing dimension
+                reset(dimension);
+            }
+            sent = true;
+        } else if (id == CHUNK_DATA_ID) {
+            sent = applyChunk(packet);
+        } else if (id == MULTI_CHUNK_DATA_ID) {
+            sent = applyMultiChunk(packet, send);
+        } else if (id == BLOCK_CHANGE_ID) {
+            sent = applyBlockChange(packet);
+        } else if (id == MULTI_BLOCK_CHANGE_ID) {
+            sent = applyMultiBlockChange(packet);
+        } else if (id == UPDATE_TILE_ENTITY_ID) {
+            sent = applyBlockUpdate(packet);
+        } else if (id == UPDATE_SIGN_ID) {
+            sent = applyBlockUpdate(packet);
+        } else if (id == DESTROY_ENTITIES_ID) {
+            applyDestroy(packet);
+            sent = true;
+        } else if (id < ENTITY_PACKETS.length && ENTITY_PACKETS[id]) {
+            sent = applyEntity(id, packet, send);
+        } else {
+            sent = true;
+        }
+        if (!sent) {
+            WITHHELD.increment();
+        }
+        return sent;
+    }
+
+    /**
+     * Moves the viewer to the specified position, sending everything which has come into range.
+     * @param x The x coordinate of the viewer
+     * @param z The z coordinate of the viewer
+     * @param send Receives all packets which have to be sent
+     */
+    public void move(double x, double z, Consumer<Packet> send) {
+        int chunkX = (int) Math.floor(x) >> 4;
+        int chunkZ = (int) Math.floor(z) >> 4;
+        if (positionKnown && chunkX == viewerX && chunkZ == viewerZ) {
+            return;
+        }
+        positionKnown = true;
+        viewerX = chunkX;
+        viewerZ = chunkZ;
+
+        List<Packet> packets = new ArrayList<>();
+        Iterator<ReplayState.ChunkState> iter = chunks.values().iterator();
+        while (iter.hasNext()) {
+            ReplayState.ChunkState chunk = iter.next();
+            if (isInRange(chunk.x, chunk.z)) {
+                chunk.addPackets(packets);
+                iter.remove();
+            }
+        }
+
+        IntArrayList destroyed = new IntArrayList();
+        for (Int2ObjectMap.Entry<Entity> entry : entities.int2ObjectEntrySet()) {
+            Entity entity = entry.getValue();
+            if (!entity.state.isTracked()) {
+                continue;
+            }
+            boolean inRange = isInRange(entity.state.getChunkX(), entity.state.getChunkZ());
+            if (inRange && !entity.visible) {
+                entity.state.addPackets(packets);
+                entity.visible = true;
+            } else if (!inRange && entity.visible) {
+                destroyed.add(entry.getIntKey());
+                entity.visible = false;
+            }
+        }
+        if (!destroyed.isEmpty()) {
+            packets.add(new ServerDestroyEntitiesPacket(destroyed.toIntArray()));
+        }
+        packets.forEach(send);
+    }
+
+    private void reset(int dimension) {
+        this.dimension = dimension;
+        chunks.clear();
+        entities.clear();
+    }
+
+    private boolean isInRange(int chunkX, int chunkZ) {
+        return !positionKnown || Math.abs(chunkX - viewerX) <= radius && Math.abs(chunkZ - viewerZ) <= radius;
+    }
+
+    private ReplayState.ChunkState getChunk(int x, int z) {
+        long key = ReplayState.chunkKey(x, z);
+        ReplayState.ChunkState chunk = chunks.get(key);
+        if (chunk == null) {
+            chunks.put(key, chunk = new ReplayState.ChunkState(x, z));
+        }
+        return chunk;
+    }
+
+    private boolean applyChunk(Packet packet) {
+        int x, z;
+        boolean full;
+        if (packet instanceof RawPacket) {
+            // Only the header is needed, avoid decoding the whole chunk
+            ByteBufNetInput in = new ByteBufNetInput(((RawPacket) packet).getData().duplicate());
+            try {
+                in.readVarInt();
+                x = in.readInt();
+                z = in.readInt();
+                full = in.readBoolean();
+            } catch (IOException e) {
+                return true;
+            }
+        } else {
+            ServerChunkDataPacket p = (ServerChunkDataPacket) packet;
+            x = p.getX();
+            z = p.getZ();
+            full = p.getBiomeData() != null;
+        }
+        if (isInRange(x, z)) {
+            return true;
+        }
+        if (full) {
+            // Loads or unloads the whole chunk, anything withheld before is superseded
+            chunks.remove(ReplayState.chunkKey(x, z));
+            getChunk(x, z).load(packet);
+        } else {
+            getChunk(x, z).update((ServerChunkDataPacket) RawPacket.decoded(packet));
+        }
+        return false;
+    }
+
+    private boolean applyMultiChunk(Packet packet, Consumer<Packet> send) {
+        if (packet instanceof RawPacket) {
+            ByteBufNetInput in = new ByteBufNetInput(((RawPacket) packet).getData().duplicate());
+            try {
+                in.readVarInt();
+                in.readBoolean(); // Sky light
+                int columns = in.readVarInt();
+                boolean inRange = true;
+                for (int i = 0; i < columns; i++) {
+                    inRange &= isInRange(in.readInt(), in.readInt());
+                    in.readUnsignedShort(); // Section mask
+                }
+                if (inRange) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        // Split into single chunks, sending those in range right away
+        ServerMultiChunkDataPacket p = (ServerMultiChunkDataPacket) RawPacket.decoded(packet);
+        boolean inRange = true;
+        for (int i = 0; i < p.getColumns(); i++) {
+            inRange &= isInRange(p.getX(i), p.getZ(i));
+        }
+        if (inRange) {
+            return true;
+        }
+        for (int i = 0; i < p.getColumns(); i++) {
+            int x = p.getX(i);
+            int z = p.getZ(i);
+            ServerChunkDataPacket chunk = new ServerChunkDataPacket(x, z, p.getChunks(i), p.getBiomeData(i));
+            if (isInRange(x, z)) {
+                send.accept(chunk);
+            } else {
+                chunks.remove(ReplayState.chunkKey(x, z));
+                getChunk(x, z).load(chunk);
+            }
+        }
+        return false;
+    }
+
+    private boolean applyBlockChange(Packet packet) {
+        if (packet instanceof RawPacket) {
+            // Only the position is needed unless the change is withheld
+            try {
+                Position pos = ReplayState.readPosition((RawPacket) packet);
+                if (isInRange(pos.getX() >> 4, pos.getZ() >> 4)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        BlockChangeRecord record = ((ServerBlockChangePacket) RawPacket.decoded(packet)).getRecord();
+        return applyBlocks(new BlockChangeRecord[]{record});
+    }
+
+    private boolean applyMultiBlockChange(Packet packet) {
+        if (packet instanceof RawPacket) {
+            ByteBufNetInput in = new ByteBufNetInput(((RawPacket) packet).getData().duplicate());
+            try {
+                in.readVarInt();
+                if (isInRange(in.readInt(), in.readInt())) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return applyBlocks(((ServerMultiBlockChangePacket) RawPacket.decoded(packet)).getRecords());
+    }
+
+    /**
+     * @param records Block changes, all within the same chunk
+     */
+    private boolean applyBlocks(BlockChangeRecord[] records) {
+        if (records.length == 0) {
+            return true;
+        }
+        Position pos = records[0].getPosition();
+        if (isInRange(pos.getX() >> 4, pos.getZ() >> 4)) {
+            return true;
+        }
+        ReplayState.ChunkState chunk = getChunk(pos.getX() >> 4, pos.getZ() >> 4);
+        for (BlockChangeRecord record : records) {
+            chunk.updateBlock(record);
+        }
+        return false;
+    }
+
+    private boolean applyBlockUpdate(Packet packet) {
+        Position pos;
+        if (packet instanceof RawPacket) {
+            try {
+                pos = ReplayState.readPosition((RawPacket) packet);
+            } catch (IOException e) {
+                return true;
+            }
+        } else if (packet instanceof ServerUpdateTileEntityPacket) {
+            pos = ((ServerUpdateTileEntityPacket) packet).getPosition();
+        } else {
+            pos = ((ServerUpdateSignPacket) packet).getPosition();
+        }
+        if (isInRange(pos.getX() >> 4, pos.getZ() >> 4)) {
+            return true;
+        }
+        getChunk(pos.getX() >> 4, pos.getZ() >> 4).updateBlockEntity(pos, packet);
+        return false;
+    }
+
+    private void applyDestroy(Packet packet) {
+        if (packet instanceof RawPacket) {
+            ByteBufNetInput in = new ByteBufNetInput(((RawPacket) packet).getData().duplicate());
+            try {
+                in.readVarInt();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    entities.remove(in.readVarInt());
+                }
+                return;
+            } catch (IOException e) {
+                // Fall back to decoding the whole packet
+            }
+        }
+        for (int entityId : ((ServerDestroyEntitiesPacket) RawPacket.decoded(packet)).getEntityIds()) {
+            entities.remove(entityId);
+        }
+    }
+
+    private boolean applyEntity(int id, Packet packet, Consumer<Packet> send) {
+        if (SPAWN_PACKETS[id]) {
+            packet = RawPacket.decoded(packet);
+            Entity entity = new Entity(new ReplayState.EntityState(packet));
+            int entityId = ReplayState.getEntityId(packet);
+            entities.put(entityId, entity);
+            entity.visible = !entity.state.isTracked()
+                    || isInRange(entity.state.getChunkX(), entity.state.getChunkZ());
+            return entity.visible;
+        }
+
+        int entityId;
+        if (packet instanceof RawPacket) {
+            try {
+                entityId = ReplayState.readEntityId((RawPacket) packet);
+            } catch (IOException e) {
+                return true;
+            }
+        } else {
+            entityId = ReplayState.getEntityId(packet);
+        }
+        Entity entity = entities.get(entityId);
+        if (entity == null) {
+            return true;
+        }
+        // Only decodes the packet if it moves an entity whose position is known
+        entity.state.update(packet);
+        if (!entity.state.isTracked()) {
+            return entity.visible;
+        }
+        boolean inRange = isInRange(entity.state.getChunkX(), entity.state.getChunkZ());
+        if (inRange == entity.visible) {
+            return inRange;
+        }
+        entity.visible = inRange;
+        if (inRange) {
+            // Spawn in its current state, which already includes this packet
+            List<Packet> packets = new ArrayList<>();
+            entity.state.addPackets(packets);
+            packets.forEach(send);
+        } else {
+            send.accept(new ServerDestroyEntitiesPacket(entityId));
+        }
+        return false;
+    }
+
+    private static class Entity {
+        private final ReplayState.EntityState state;
+        /**
+         * Whether the entity has been spawned on the client.
+         */
+        private boolean visible;
+
+        private Entity(ReplayState.EntityState state) {
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.replaymod.replayserver.index;
+
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.io.DeflaterPool;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replaystudio.PacketData;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * The compacted state of a replay at some point in time, already filtered and encoded, so it can be sent to joining
+ * users as is without going through the timed playback of every packet that led to it.
+ * Snapshots are immutable and shared between all sessions of a replay.
+ */
+public class JoinSnapshot {
+    private static final int PLAYER_POSITION_ROTATION_ID =
+            PacketCodec.getInstance().getId(ServerPlayerPositionRotationPacket.class);
+
+    private final int time;
+    private final int packetIndex;
+    private final int[] ids;
+    private final Packet[] packets;
+    private final ByteBuf[] encoded;
+    private final int compressionThreshold;
+    private final long byteSize;
+
+    private JoinSnapshot(int time, int packetIndex, int[] ids, Packet[] packets, ByteBuf[] encoded,
+                         int compressionThreshold, long byteSize) {
+        this.time = time;
+        this.packetIndex = packetIndex;
+        this.ids = ids;
+        this.packets = packets;
+        this.encoded = encoded;
+        this.compressionThreshold = compressionThreshold;
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * Builds the snapshot of the world as first seen by a player joining the replay, i.e. up to and including the
+     * first {@link ServerPlayerPositionRotationPacket} which gets the client out of the dirt screen.
+     * @param timeline The timeline of the replay
+     * @param filter The filter the timeline has been loaded with
+     * @param maxTime Maximum replay time in milliseconds up to which to look for the world being loaded
+     * @return The snapshot or {@code null} if the world is not loaded within the first {@code maxTime} milliseconds
+     */
+    public static JoinSnapshot build(PacketTimeline timeline, PacketFilter filter, int maxTime) throws IOException {
+        ReplayState state = new ReplayState();
+        for (int i = 0; i < timeline.size(); i++) {
+            PacketData data = timeline.get(i);
+            if (data == null) {
+                continue;
+            }
+            if (data.getTime() > maxTime) {
+                return null;
+            }
+            state.update(data.getPacket());
+            if (timeline.getId(i) == PLAYER_POSITION_ROTATION_ID && state.hasJoined()) {
+                return build((int) data.getTime(), i + 1, state.getPackets(), filter,
+                        timeline.getCompressionThreshold());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a snapshot from the specified packets.
+     * @param time Replay time of the snapshot in milliseconds
+     * @param packetIndex Index of the first packet following the snapshot
+     * @param packets The packets, see {@link ReplayState#getPackets()}, filtered and rewritten before being encoded,
+     * raw packets which are not rewritten are kept raw
+     * @param filter The filter
+     * @param compressionThreshold The compression threshold, negative if compression is disabled
+     * @return The snapshot
+     */
+    public static JoinSnapshot build(int time, int packetIndex, List<Packet> packets, PacketFilter filter,
+                                     int compressionThreshold) throws IOException {
+        PacketCodec codec = PacketCodec.getInstance();
+        List<Integer> ids = new ArrayList<>();
+        List<Packet> filtered = new ArrayList<>();
+        for (Packet packet : packets) {
+            int id = packet instanceof RawPacket ? ((RawPacket) packet).getId() : codec.getId(packet.getClass());
+            packet = filter.apply(id, packet);
+            if (packet != null) {
+                ids.add(id);
+                filtered.add(packet);
+            }
+        }
+
+        ByteBuf[] encoded = new ByteBuf[filtered.size()];
+        long byteSize = 0;
+        Deflater deflater = DeflaterPool.acquire(Deflater.DEFAULT_COMPRESSION);
+        try {
+            ByteBuf buf = Unpooled.buffer();
+            for (int i = 0; i < encoded.length; i++) {
+                buf.clear();
+                Packet packet = filtered.get(i);
+                if (packet instanceof RawPacket) {
+                    buf.writeBytes(((RawPacket) packet).getData().duplicate());
+                } else {
+                    codec.encode(packet, buf);
+                }
+                ByteBuf frame = Unpooled.buffer(buf.readableBytes() + 5);
+                codec.frame(buf, compressionThreshold, deflater, frame);
+                encoded[i] = Unpooled.unreleasableBuffer(frame);
+                byteSize += frame.capacity();
+            }
+        } finally {
+            DeflaterPool.release(deflater);
+        }
+
+        int[] idArray = new int[ids.size()];
+        for (int i = 0; i < idArray.length; i++) {
+            idArray[i] = ids.get(i);
+        }
+        return new JoinSnapshot(time, packetIndex, idArray, filtered.toArray(new Packet[filtered.size()]), encoded,
+                compressionThreshold, byteSize);
+    }
+
+    /**
+     * Returns the replay time of this snapshot.
+     * @return Time in milliseconds
+     */
+    public int getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the index (in the packet stream) of the first packet which is not part of this snapshot.
+     * @return Number of packets preceding this snapshot
+     */
+    public int getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Returns the number of packets in this snapshot.
+     * @return Number of packets
+     */
+    public int size() {
+        return packets.length;
+    }
+
+    /**
+     * Returns the id of the packet at the specified index.
+     * @param index Index of the packet
+     * @return The packet id
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the filtered packet at the specified index.
+     * The returned packet is shared and must not be modified.
+     * @param index Index of the packet
+     * @return The packet
+     */
+    public Packet getPacket(int index) {
+        return packets[index];
+    }
+
+    /**
+     * Returns the packet at the specified index exactly as it is sent over the network, see
+     * {@link PacketTimeline#getEncoded(int)}.
+     * @param index Index of the packet
+     * @return The encoded packet
+     */
+    public ByteBuf getEncoded(int index) {
+        return encoded[index];
+    }
+
+    /**
+     * Returns the compression threshold used for the encoded packets.
+     * @return The threshold, negative if the packets have not been compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Returns the size of the encoded packets.
+     * @return Size in bytes
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+}
@@ -0,0 +1,69 @@
+package com.replaymod.replayserver.index;
+
+import com.replaymod.replayserver.filter.PacketFilter;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A point in a replay from which playback can be resumed without processing any of the preceding packets.
+ */
+public class Keyframe {
+    private final int time;
+    private final int packetIndex;
+    private final List<Packet> packets;
+    /**
+     * The packets in their filtered and encoded form, built on first use.
+     */
+    private volatile JoinSnapshot snapshot;
+
+    public Keyframe(int time, int packetIndex, List<Packet> packets) {
+        this.time = time;
+        this.packetIndex = packetIndex;
+        this.packets = packets;
+    }
+
+    /**
+     * Returns the replay time of this keyframe.
+     * All packets before {@link #getPacketIndex()} have a timestamp at or before this time, all following ones at or
+     * after it.
+     * @return Time in milliseconds
+     */
+    public int getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the index (in the packet stream) of the first packet which is not part of this keyframe.
+     * @return Number of packets preceding this keyframe
+     */
+    public int getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Returns the packets required to restore the state at this keyframe.
+     * @return Unmodifiable list of packets, see {@link ReplayState#getPackets()}
+     */
+    public List<Packet> getPackets() {
+        return packets;
+    }
+
+    /**
+     * Returns the packets of this keyframe filtered and encoded, building them on first use.
+     * The snapshot is retained for subsequent calls with the same filter and compression threshold, so all sessions
+     * seeking to this keyframe can share it.
+     * @param filter The filter
+     * @param compressionThreshold The compression threshold, negative if compression is disabled
+     * @return The snapshot
+     */
+    public JoinSnapshot getSnapshot(PacketFilter filter, int compressionThreshold) throws IOException {
+        JoinSnapshot snapshot = this.snapshot;
+        if (snapshot == null || snapshot.getCompressionThreshold() != compressionThreshold) {
+            // Concurrent callers may both build it, which is harmless
+            this.snapshot = snapshot = JoinSnapshot.build(time, packetIndex, packets, filter, compressionThreshold);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,133 @@
+package com.replaymod.replayserver.index;
+
+import com.google.common.hash.HashCode;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.spacehq.mc.protocol.data.game.Position;
+import org.spacehq.mc.protocol.data.game.values.world.block.BlockChangeRecord;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerRespawnPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerBlockChangePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerChunkDataPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerExplosionPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerMultiBlockChangePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerMultiChunkDataPacket;
+import org.spacehq.packetlib.packet.Packet;
+import org.spacehq.packetlib.tcp.io.ByteBufNetInput;
+
+import java.io.IOException;
+
+/**
+ * Tracks which chunks a single client has loaded and which packet they have been loaded from, so chunk packets
+ * re-sending exactly the data the client already has can be skipped.
+ *
+ * A chunk is only known to be unchanged if the packet which loaded it is identical (by content hash, see
+ * {@link RawPacket#getContentHash()}) to the packet about to be sent and no block change, partial update or unload
+ * has touched it since. For a bulk chunk packet, all of its chunks have to be unchanged. Joining a world, respawning
+ * and explosions forget all chunks.
+ *
+ * Only raw chunk packets can be skipped, decoded ones are sent and forget the chunks they contain.
+ */
+public class LoadedChunks {
+    private static final int CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerChunkDataPacket.class);
+    private static final int MULTI_CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerMultiChunkDataPacket.class);
+    private static final int BLOCK_CHANGE_ID = PacketCodec.getInstance().getId(ServerBlockChangePacket.class);
+    private static final int MULTI_BLOCK_CHANGE_ID =
+            PacketCodec.getInstance().getId(ServerMultiBlockChangePacket.class);
+    private static final int EXPLOSION_ID = PacketCodec.getInstance().getId(ServerExplosionPacket.class);
+    private static final int JOIN_GAME_ID = PacketCodec.getInstance().getId(ServerJoinGamePacket.class);
+    private static final int RESPAWN_ID = PacketCodec.getInstance().getId(ServerRespawnPacket.class);
+
+    /**
+     * Hash of the packet each loaded and unchanged chunk has been loaded from.
+     */
+    private final Long2ObjectMap<HashCode> chunks = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Updates the loaded chunks with the specified packet which is about to be sent to the client.
+     * @param id Id of the packet
+     * @param packet The packet, may be a {@link RawPacket}
+     * @return {@code true} if the packet should be sent, {@code false} if the client already has all chunks it
+     * contains and it can be skipped
+     */
+    public boolean update(int id, Packet packet) {
+        if (id == CHUNK_DATA_ID) {
+            if (packet instanceof RawPacket) {
+                return updateChunk((RawPacket) packet);
+            }
+            ServerChunkDataPacket p = (ServerChunkDataPacket) packet;
+            chunks.remove(ReplayState.chunkKey(p.getX(), p.getZ()));
+        } else if (id == MULTI_CHUNK_DATA_ID) {
+            if (packet instanceof RawPacket) {
+                return updateMultiChunk((RawPacket) packet);
+            }
+            ServerMultiChunkDataPacket p = (ServerMultiChunkDataPacket) packet;
+            for (int i = 0; i < p.getColumns(); i++) {
+                chunks.remove(ReplayState.chunkKey(p.getX(i), p.getZ(i)));
+            }
+        } else if (id == BLOCK_CHANGE_ID) {
+            removeBlock(((ServerBlockChangePacket) RawPacket.decoded(packet)).getRecord());
+        } else if (id == MULTI_BLOCK_CHANGE_ID) {
+            for (BlockChangeRecord record : ((ServerMultiBlockChangePacket) RawPacket.decoded(packet)).getRecords()) {
+                removeBlock(record);
+            }
+        } else if (id == EXPLOSION_ID || id == JOIN_GAME_ID || id == RESPAWN_ID) {
+            chunks.clear();
+        }
+        return true;
+    }
+
+    private boolean updateChunk(RawPacket packet) {
+        ByteBufNetInput in = new ByteBufNetInput(packet.getData().duplicate());
+        try {
+            in.readVarInt();
+            long key = ReplayState.chunkKey(in.readInt(), in.readInt());
+            boolean full = in.readBoolean();
+            int mask = in.readUnsignedShort();
+            if (!full || mask == 0) {
+                // Partial update or unload
+                chunks.remove(key);
+                return true;
+            }
+            HashCode hash = packet.getContentHash();
+            return !hash.equals(chunks.put(key, hash));
+        } catch (IOException e) {
+            chunks.clear();
+            return true;
+        }
+    }
+
+    private boolean updateMultiChunk(RawPacket packet) {
+        ByteBufNetInput in = new ByteBufNetInput(packet.getData().duplicate());
+        try {
+            in.readVarInt();
+            in.readBoolean(); // Sky light
+            int columns = in.readVarInt();
+            long[] keys = new long[columns];
+            HashCode hash = packet.getContentHash();
+            boolean loaded = true;
+            for (int i = 0; i < columns; i++) {
+                keys[i] = ReplayState.chunkKey(in.readInt(), in.readInt());
+                in.readUnsignedShort(); // Section mask
+                loaded &= hash.equals(chunks.get(keys[i]));
+            }
+            if (loaded && columns > 0) {
+                return false;
+            }
+            for (long key : keys) {
+                chunks.put(key, hash);
+            }
+            return true;
+        } catch (IOException e) {
+            chunks.clear();
+            return true;
+        }
+    }
+
+    private void removeBlock(BlockChangeRecord record) {
+        Position pos = record.getPosition();
+        chunks.remove(ReplayState.chunkKey(pos.getX() >> 4, pos.getZ() >> 4));
+    }
+}
@@ -0,0 +1,747 @@
+package com.replaymod.replayserver.index;
+
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.RawPacket;
+import it.unimi.dsi.fastutil.ints.Int2IntLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import org.spacehq.mc.protocol.data.game.Chunk;
+import org.spacehq.mc.protocol.data.game.EntityMetadata;
+import org.spacehq.mc.protocol.data.game.Position;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntry;
+import org.spacehq.mc.protocol.data.game.values.PlayerListEntryAction;
+import org.spacehq.mc.protocol.data.game.values.world.block.BlockChangeRecord;
+import org.spacehq.mc.protocol.data.game.values.world.notify.ClientNotification;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerJoinGamePacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerPlayerListEntryPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerRespawnPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.*;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.player.ServerPlayerPositionRotationPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.entity.spawn.*;
+import org.spacehq.mc.protocol.packet.ingame.server.world.*;
+import org.spacehq.packetlib.packet.Packet;
+import org.spacehq.packetlib.tcp.io.ByteBufNetInput;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps track of the state of the world, entities and misc. things (time, weather, player list) as seen by a client.
+ * The state can at any point be converted into a minimal list of packets which bring a freshly joined client into
+ * the same state.
+ *
+ * Intermediate updates are folded as they are received: Only the last change of each block, the final position of
+ * each entity and the latest value of each entity property are retained. Memory usage is therefore bounded by the
+ * size of the world and the number of entities rather than by the number of packets.
+ */
+public class ReplayState {
+    private static final int CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerChunkDataPacket.class);
+    private static final int UPDATE_TIME_ID = PacketCodec.getInstance().getId(ServerUpdateTimePacket.class);
+    private static final int SPAWN_POSITION_ID = PacketCodec.getInstance().getId(ServerSpawnPositionPacket.class);
+    private static final int UPDATE_TILE_ENTITY_ID =
+            PacketCodec.getInstance().getId(ServerUpdateTileEntityPacket.class);
+    private static final int UPDATE_SIGN_ID = PacketCodec.getInstance().getId(ServerUpdateSignPacket.class);
+    private static final int ENTITY_ATTACH_ID = PacketCodec.getInstance().getId(ServerEntityAttachPacket.class);
+    private static final int ENTITY_HEAD_LOOK_ID = PacketCodec.getInstance().getId(ServerEntityHeadLookPacket.class);
+    private static final int ENTITY_VELOCITY_ID = PacketCodec.getInstance().getId(ServerEntityVelocityPacket.class);
+    private static final int ENTITY_METADATA_ID = PacketCodec.getInstance().getId(ServerEntityMetadataPacket.class);
+    /**
+     * Number of raw metadata packets an entity keeps before they are decoded and merged.
+     */
+    private static final int MAX_RAW_METADATA = 16;
+
+    /**
+     * Whether packets with each id are relative movement of an entity.
+     */
+    private static final boolean[] MOVEMENT_PACKETS = new boolean[256];
+
+    /**
+     * Whether packets with each id are folded into the state, i.e. whether raw packets have to be decoded.
+     * Full chunks, block entity updates and misc. packets which only replace their predecessor are kept raw, all other
+     * packets are ignored.
+     */
+    private static final boolean[] FOLDED_PACKETS = new boolean[256];
+
+    static {
+        PacketCodec codec = PacketCodec.getInstance();
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerJoinGamePacket.class,
+                ServerRespawnPacket.class, ServerPlayerPositionRotationPacket.class, ServerChunkDataPacket.class,
+                ServerMultiChunkDataPacket.class, ServerBlockChangePacket.class, ServerMultiBlockChangePacket.class,
+                ServerDestroyEntitiesPacket.class, ServerSpawnPlayerPacket.class, ServerSpawnMobPacket.class,
+                ServerSpawnObjectPacket.class, ServerSpawnPaintingPacket.class, ServerSpawnExpOrbPacket.class,
+                ServerSpawnGlobalEntityPacket.class, ServerEntityMovementPacket.class, ServerEntityPositionPacket.class,
+                ServerEntityRotationPacket.class, ServerEntityPositionRotationPacket.class,
+                ServerEntityTeleportPacket.class, ServerEntityHeadLookPacket.class, ServerEntityMetadataPacket.class,
+                ServerEntityEquipmentPacket.class, ServerEntityVelocityPacket.class, ServerEntityPropertiesPacket.class,
+                ServerEntityEffectPacket.class, ServerEntityRemoveEffectPacket.class, ServerEntityAttachPacket.class,
+                ServerPlayerListEntryPacket.class, ServerNotifyClientPacket.class, ServerUpdateTileEntityPacket.class,
+                ServerUpdateSignPacket.class)) {
+            FOLDED_PACKETS[codec.getId(cls)] = true;
+        }
+        for (Class<? extends Packet> cls : Arrays.<Class<? extends Packet>>asList(ServerEntityMovementPacket.class,
+                ServerEntityPositionPacket.class, ServerEntityRotationPacket.class,
+                ServerEntityPositionRotationPacket.class)) {
+            MOVEMENT_PACKETS[codec.getId(cls)] = true;
+        }
+    }
+
+    private ServerJoinGamePacket joinGame;
+    private ServerRespawnPacket respawn;
+    private ServerPlayerPositionRotationPacket position;
+
+    private final Long2ObjectMap<ChunkState> chunks = new Long2ObjectLinkedOpenHashMap<>();
+    private final Int2ObjectMap<EntityState> entities = new Int2ObjectLinkedOpenHashMap<>();
+    private final Map<UUID, PlayerListEntry> playerList = new LinkedHashMap<>();
+    private final Map<Object, Packet> misc = new LinkedHashMap<>();
+
+    /**
+     * Returns whether a world has been joined, i.e. whether {@link #getPackets()} will return a non-empty list.
+     * @return {@code true} if the world has been joined, {@code false} otherwise
+     */
+    public boolean hasJoined() {
+        return joinGame != null;
+    }
+
+    /**
+     * Returns the entries currently in the player list.
+     * @return Copy of all player list entries
+     */
+    public List<PlayerListEntry> getPlayerList() {
+        return new ArrayList<>(playerList.values());
+    }
+
+    /**
+     * Updates this state with the specified packet.
+     * Raw packets are only decoded if their content has to be folded into the state, otherwise they are either
+     * retained as they are or ignored.
+     * @param packet The packet, may be raw
+     */
+    public void update(Packet packet) {
+        if (packet instanceof RawPacket) {
+            RawPacket raw = (RawPacket) packet;
+            int id = raw.getId();
+            if (id == CHUNK_DATA_ID && updateChunk(raw)) {
+                return;
+            }
+            if (id == UPDATE_TIME_ID || id == SPAWN_POSITION_ID) {
+                misc.put(id, packet);
+                return;
+            }
+            if (id == UPDATE_TILE_ENTITY_ID || id == UPDATE_SIGN_ID) {
+                try {
+                    updateBlockEntity(readPosition(raw), packet);
+                    return;
+                } catch (IOException e) {
+                    // Malformed header, the decoder will report it
+                }
+            }
+            if (id < 0 || id >= FOLDED_PACKETS.length || !FOLDED_PACKETS[id]) {
+                return;
+            }
+            packet = raw.decode();
+        }
+
+        if (packet instanceof ServerJoinGamePacket) {
+            joinGame = (ServerJoinGamePacket) packet;
+            respawn = null;
+            position = null;
+            chunks.clear();
+            entities.clear();
+            misc.clear();
+            return;
+        }
+
+        if (packet instanceof ServerRespawnPacket) {
+            ServerRespawnPacket p = (ServerRespawnPacket) packet;
+            if (p.getDimension() != getDimension()) {
+                // Client drops the whole world when changing dimension
+                chunks.clear();
+                entities.clear();
+            }
+            respawn = p;
+            return;
+        }
+
+        if (packet instanceof ServerPlayerPositionRotationPacket) {
+            position = (ServerPlayerPositionRotationPacket) packet;
+            return;
+        }
+
+        if (packet instanceof ServerChunkDataPacket) {
+            ServerChunkDataPacket p = (ServerChunkDataPacket) packet;
+            updateChunk(p.getX(), p.getZ(), p.getChunks(), p.getBiomeData(), p);
+            return;
+        }
+
+        if (packet instanceof ServerMultiChunkDataPacket) {
+            ServerMultiChunkDataPacket p = (ServerMultiChunkDataPacket) packet;
+            for (int i = 0; i < p.getColumns(); i++) {
+                updateChunk(p.getX(i), p.getZ(i), p.getChunks(i), p.getBiomeData(i), null);
+            }
+            return;
+        }
+
+        if (packet instanceof ServerBlockChangePacket) {
+            updateBlock(((ServerBlockChangePacket) packet).getRecord());
+            return;
+        }
+
+        if (packet instanceof ServerMultiBlockChangePacket) {
+            for (BlockChangeRecord record : ((ServerMultiBlockChangePacket) packet).getRecords()) {
+                updateBlock(record);
+            }
+            return;
+        }
+
+        if (packet instanceof ServerUpdateTileEntityPacket) {
+            updateBlockEntity(((ServerUpdateTileEntityPacket) packet).getPosition(), packet);
+            return;
+        }
+
+        if (packet instanceof ServerUpdateSignPacket) {
+            updateBlockEntity(((ServerUpdateSignPacket) packet).getPosition(), packet);
+            return;
+        }
+
+        if (packet instanceof ServerDestroyEntitiesPacket) {
+            for (int id : ((ServerDestroyEntitiesPacket) packet).getEntityIds()) {
+                entities.remove(id);
+            }
+            return;
+        }
+
+        if (isSpawnPacket(packet)) {
+            entities.put(getEntityId(packet), new EntityState(packet));
+            return;
+        }
+
+        int entityId = getEntityId(packet);
+        if (entityId != -1) {
+            EntityState entity = entities.get(entityId);
+            if (entity != null) {
+                entity.update(packet);
+            }
+            return;
+        }
+
+        if (packet instanceof ServerPlayerListEntryPacket) {
+            updatePlayerList((ServerPlayerListEntryPacket) packet);
+            return;
+        }
+
+        if (packet instanceof ServerNotifyClientPacket) {
+            ClientNotification notification = ((ServerNotifyClientPacket) packet).getNotification();
+            switch (notification) {
+                case START_RAIN:
+                case STOP_RAIN:
+                    misc.put(ClientNotification.START_RAIN, packet);
+                    break;
+                case RAIN_STRENGTH:
+                case THUNDER_STRENGTH:
+                    misc.put(notification, packet);
+                    break;
+            }
+            return;
+        }
+
+        if (packet instanceof ServerUpdateTimePacket) {
+            misc.put(UPDATE_TIME_ID, packet);
+        } else if (packet instanceof ServerSpawnPositionPacket) {
+            misc.put(SPAWN_POSITION_ID, packet);
+        }
+    }
+
+    /**
+     * Updates this state with the specified full chunk data without decoding it.
+     * @param packet Raw chunk data packet
+     * @return {@code true} if the packet has been applied, {@code false} if it is a partial update and has to be
+     * decoded
+     */
+    private boolean updateChunk(RawPacket packet) {
+        // Only the header is needed: x, z, whether the whole column is sent and the mask of the sent sections
+        ByteBufNetInput in = new ByteBufNetInput(packet.getData().duplicate());
+        int x, z, mask;
+        try {
+            in.readVarInt();
+            x = in.readInt();
+            z = in.readInt();
+            if (!in.readBoolean()) {
+                return false;
+            }
+            mask = in.readUnsignedShort();
+        } catch (IOException e) {
+            return false;
+        }
+        long key = chunkKey(x, z);
+        if (mask == 0) {
+            // Chunk has been unloaded
+            chunks.remove(key);
+        } else {
+            ChunkState chunk = new ChunkState(x, z);
+            chunk.load(packet);
+            chunks.put(key, chunk);
+        }
+        return true;
+    }
+
+    private void updateChunk(int x, int z, Chunk[] data, byte[] biomeData, Packet packet) {
+        long key = chunkKey(x, z);
+        if (biomeData == null) {
+            // Partial update of a chunk column
+            ChunkState chunk = chunks.get(key);
+            if (chunk != null) {
+                chunk.update(packet != null ? (ServerChunkDataPacket) packet : new ServerChunkDataPacket(x, z, data));
+            }
+        } else if (Arrays.stream(data).allMatch(Objects::isNull)) {
+            // Chunk has been unloaded
+            chunks.remove(key);
+        } else {
+            ChunkState chunk = new ChunkState(x, z);
+            chunk.load(packet != null ? packet : new ServerChunkDataPacket(x, z, data, biomeData));
+            chunks.put(key, chunk);
+        }
+    }
+
+    private void updateBlock(BlockChangeRecord record) {
+        Position pos = record.getPosition();
+        ChunkState chunk = chunks.get(chunkKey(pos.getX() >> 4, pos.getZ() >> 4));
+        if (chunk != null) {
+            chunk.updateBlock(record);
+        }
+    }
+
+    private void updateBlockEntity(Position pos, Packet packet) {
+        ChunkState chunk = chunks.get(chunkKey(pos.getX() >> 4, pos.getZ() >> 4));
+        if (chunk != null) {
+            chunk.updateBlockEntity(pos, packet);
+        }
+    }
+
+    private void updatePlayerList(ServerPlayerListEntryPacket packet) {
+        for (PlayerListEntry entry : packet.getEntries()) {
+            UUID uuid = entry.getProfile().getId();
+            PlayerListEntry current = playerList.get(uuid);
+            switch (packet.getAction()) {
+                case ADD_PLAYER:
+                    playerList.put(uuid, entry);
+                    break;
+                case REMOVE_PLAYER:
+                    playerList.remove(uuid);
+                    break;
+                case UPDATE_GAMEMODE:
+                    if (current != null) {
+                        playerList.put(uuid, new PlayerListEntry(current.getProfile(), entry.getGameMode(),
+                                current.getPing(), current.getDisplayName()));
+                    }
+                    break;
+                case UPDATE_LATENCY:
+                    if (current != null) {
+                        playerList.put(uuid, new PlayerListEntry(current.getProfile(), current.getGameMode(),
+                                entry.getPing(), current.getDisplayName()));
+                    }
+                    break;
+                case UPDATE_DISPLAY_NAME:
+                    if (current != null) {
+                        playerList.put(uuid, new PlayerListEntry(current.getProfile(), current.getGameMode(),
+                                current.getPing(), entry.getDisplayName()));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private int getDimension() {
+        if (respawn != null) {
+            return respawn.getDimension();
+        }
+        return joinGame != null ? joinGame.getDimension() : 0;
+    }
+
+    /**
+     * Returns the packets required to get a client into the current state.
+     * The first packet is always a {@link ServerJoinGamePacket} which resets any previous state of the client apart
+     * from the player list.
+     * The returned packets may be shared with other snapshots and must not be modified. Packets which have been
+     * passed to {@link #update(Packet)} as raw packets and have not been folded are returned as raw packets.
+     * @return List of packets, empty if no world has been joined yet
+     */
+    public List<Packet> getPackets() {
+        List<Packet> packets = new ArrayList<>();
+        if (joinGame == null) {
+            return packets;
+        }
+        packets.add(joinGame);
+        if (respawn != null) {
+            packets.add(respawn);
+        }
+        if (!playerList.isEmpty()) {
+            packets.add(new ServerPlayerListEntryPacket(PlayerListEntryAction.ADD_PLAYER,
+                    playerList.values().toArray(new PlayerListEntry[playerList.size()])));
+        }
+        for (ChunkState chunk : chunks.values()) {
+            chunk.addPackets(packets);
+        }
+        for (EntityState entity : entities.values()) {
+            entity.addPackets(packets);
+        }
+        packets.addAll(misc.values());
+        if (position != null) {
+            packets.add(position);
+        }
+        return packets;
+    }
+
+    static long chunkKey(int x, int z) {
+        return (long) x << 32 | z & 0xffffffffL;
+    }
+
+    /**
+     * Reads the position a raw packet refers to without decoding the rest of the packet.
+     * @param packet Raw packet starting with a position, i.e. {@link ServerBlockChangePacket},
+     *               {@link ServerUpdateTileEntityPacket} or {@link ServerUpdateSignPacket}
+     * @return The position of the block
+     */
+    static Position readPosition(RawPacket packet) throws IOException {
+        ByteBufNetInput in = new ByteBufNetInput(packet.getData().duplicate());
+        in.readVarInt();
+        // Packed as 26 bits x, 12 bits y and 26 bits z
+        long value = in.readLong();
+        return new Position((int) (value >> 38), (int) (value >> 26 & 0xfff), (int) (value << 38 >> 38));
+    }
+
+    /**
+     * Reads the id of the entity a raw packet refers to without decoding the rest of the packet.
+     * @param packet Raw packet referring to a single entity, see {@link #getEntityId(Packet)}
+     * @return The entity id
+     */
+    static int readEntityId(RawPacket packet) throws IOException {
+        ByteBufNetInput in = new ByteBufNetInput(packet.getData().duplicate());
+        in.readVarInt();
+        // The attach packet is the only one not using a var int
+        return packet.getId() == ENTITY_ATTACH_ID ? in.readInt() : in.readVarInt();
+    }
+
+    static boolean isSpawnPacket(Packet packet) {
+        return packet instanceof ServerSpawnPlayerPacket
+                || packet instanceof ServerSpawnMobPacket
+                || packet instanceof ServerSpawnObjectPacket
+                || packet instanceof ServerSpawnPaintingPacket
+                || packet instanceof ServerSpawnExpOrbPacket
+                || packet instanceof ServerSpawnGlobalEntityPacket;
+    }
+
+    /**
+     * Returns the id of the entity the specified packet refers to.
+     * @param packet The packet
+     * @return The entity id or -1 if the packet does not refer to a single entity
+     */
+    static int getEntityId(Packet packet) {
+        if (packet instanceof ServerSpawnPlayerPacket) return ((ServerSpawnPlayerPacket) packet).getEntityId();
+        if (packet instanceof ServerSpawnMobPacket) return ((ServerSpawnMobPacket) packet).getEntityId();
+        if (packet instanceof ServerSpawnObjectPacket) return ((ServerSpawnObjectPacket) packet).getEntityId();
+        if (packet instanceof ServerSpawnPaintingPacket) return ((ServerSpawnPaintingPacket) packet).getEntityId();
+        if (packet instanceof ServerSpawnExpOrbPacket) return ((ServerSpawnExpOrbPacket) packet).getEntityId();
+        if (packet instanceof ServerSpawnGlobalEntityPacket) return ((ServerSpawnGlobalEntityPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityMovementPacket) return ((ServerEntityMovementPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityTeleportPacket) return ((ServerEntityTeleportPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityHeadLookPacket) return ((ServerEntityHeadLookPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityMetadataPacket) return ((ServerEntityMetadataPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityEquipmentPacket) return ((ServerEntityEquipmentPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityVelocityPacket) return ((ServerEntityVelocityPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityPropertiesPacket) return ((ServerEntityPropertiesPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityEffectPacket) return ((ServerEntityEffectPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityRemoveEffectPacket) return ((ServerEntityRemoveEffectPacket) packet).getEntityId();
+        if (packet instanceof ServerEntityAttachPacket) return ((ServerEntityAttachPacket) packet).getEntityId();
+        return -1;
+    }
+
+    static class ChunkState {
+        final int x, z;
+        /**
+         * The full chunk data packet with all partial updates folded into it.
+         * If the full chunk is unknown, the partial updates in the order they have been received instead.
+         */
+        private final List<Packet> data = new ArrayList<>();
+        /**
+         * Last block change for each position in the chunk, keyed by x << 12 | z << 8 | y.
+         * Only contains changes made after the latest chunk data of their section.
+         */
+        private final Int2IntMap blocks = new Int2IntLinkedOpenHashMap();
+        /**
+         * Last update of each block entity (signs, tile entity data) in the chunk, keyed like {@link #blocks}.
+         * Sent after the block changes which may create them.
+         */
+        private final Int2ObjectMap<Packet> blockEntities = new Int2ObjectLinkedOpenHashMap<>();
+
+        ChunkState(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        /**
+         * Replaces the whole state of this chunk with the specified chunk data.
+         * @param packet Chunk data of the whole column, including loading or unloading it, may be raw
+         */
+        void load(Packet packet) {
+            data.clear();
+            blocks.clear();
+            blockEntities.clear();
+            data.add(packet);
+        }
+
+        /**
+         * Updates a block entity in this chunk, replacing any previous update of it.
+         * @param pos Position of the block entity
+         * @param packet The packet, may be raw
+         */
+        void updateBlockEntity(Position pos, Packet packet) {
+            blockEntities.put(blockKey(pos), packet);
+        }
+
+        /**
+         * Updates the sections included in the specified partial chunk data, folding them into the full chunk data.
+         * @param packet Partial chunk data
+         */
+        void update(ServerChunkDataPacket packet) {
+            Chunk[] sections = packet.getChunks();
+            // Block changes within the replaced sections are superseded
+            for (IntIterator iter = blocks.keySet().iterator(); iter.hasNext(); ) {
+                if (sections[(iter.nextInt() & 255) >> 4] != null) {
+                    iter.remove();
+                }
+            }
+            if (data.size() == 1) {
+                Packet base = RawPacket.decoded(data.get(0));
+                if (base instanceof ServerChunkDataPacket && ((ServerChunkDataPacket) base).getBiomeData() != null) {
+                    ServerChunkDataPacket full = (ServerChunkDataPacket) base;
+                    Chunk[] merged = full.getChunks().clone();
+                    for (int i = 0; i < merged.length; i++) {
+                        if (sections[i] != null) {
+                            merged[i] = sections[i];
+                        }
+                    }
+                    data.set(0, new ServerChunkDataPacket(x, z, merged, full.getBiomeData()));
+                    return;
+                }
+            }
+            data.add(packet);
+        }
+
+        void updateBlock(BlockChangeRecord record) {
+            blocks.put(blockKey(record.getPosition()), record.getBlock());
+        }
+
+        private static int blockKey(Position pos) {
+            return (pos.getX() & 15) << 12 | (pos.getZ() & 15) << 8 | pos.getY() & 255;
+        }
+
+        void addPackets(List<Packet> packets) {
+            packets.addAll(data);
+            if (!blocks.isEmpty()) {
+                BlockChangeRecord[] records = new BlockChangeRecord[blocks.size()];
+                int i = 0;
+                for (Int2IntMap.Entry entry : blocks.int2IntEntrySet()) {
+                    int key = entry.getIntKey();
+                    Position pos = new Position(x << 4 | key >> 12 & 15, key & 255, z << 4 | key >> 8 & 15);
+                    records[i++] = new BlockChangeRecord(pos, entry.getIntValue());
+                }
+                if (records.length == 1) {
+                    packets.add(new ServerBlockChangePacket(records[0]));
+                } else {
+                    packets.add(new ServerMultiBlockChangePacket(records));
+                }
+            }
+            packets.addAll(blockEntities.values());
+        }
+    }
+
+    static class EntityState {
+        private final int id;
+        private final Packet spawn;
+
+        /**
+         * Whether the absolute position of this entity is known, i.e. whether movement can be folded into a single
+         * teleport packet.
+         */
+        private boolean tracked;
+        private boolean moved;
+        private double x, y, z;
+        private float yaw, pitch;
+        private boolean onGround;
+
+        private Packet headLook;
+        private Packet velocity;
+        private ServerEntityPropertiesPacket properties;
+        private ServerEntityAttachPacket attach;
+        private final Int2ObjectMap<EntityMetadata> metadata = new Int2ObjectLinkedOpenHashMap<>();
+        /**
+         * Metadata packets received raw since {@link #metadata} has last been merged, applied after it.
+         */
+        private final List<Packet> rawMetadata = new ArrayList<>();
+        private final Int2ObjectMap<Packet> equipment = new Int2ObjectLinkedOpenHashMap<>();
+        private final Map<Object, Packet> effects = new LinkedHashMap<>();
+        /**
+         * Movement packets of entities whose absolute position is unknown.
+         */
+        private final List<Packet> movement = new ArrayList<>();
+
+        EntityState(Packet spawn) {
+            this.id = getEntityId(spawn);
+            this.spawn = spawn;
+            if (spawn instanceof ServerSpawnPlayerPacket) {
+                ServerSpawnPlayerPacket p = (ServerSpawnPlayerPacket) spawn;
+                setPosition(p.getX(), p.getY(), p.getZ(), p.getYaw(), p.getPitch());
+            } else if (spawn instanceof ServerSpawnMobPacket) {
+                ServerSpawnMobPacket p = (ServerSpawnMobPacket) spawn;
+                setPosition(p.getX(), p.getY(), p.getZ(), p.getYaw(), p.getPitch());
+            } else if (spawn instanceof ServerSpawnObjectPacket) {
+                ServerSpawnObjectPacket p = (ServerSpawnObjectPacket) spawn;
+                setPosition(p.getX(), p.getY(), p.getZ(), p.getYaw(), p.getPitch());
+            }
+            moved = false;
+        }
+
+        private void setPosition(double x, double y, double z, float yaw, float pitch) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.yaw = yaw;
+            this.pitch = pitch;
+            this.tracked = true;
+            this.moved = true;
+        }
+
+        /**
+         * Updates this entity with the specified packet.
+         * Raw packets are only decoded if they move an entity whose absolute position is known or cannot be kept as
+         * they are, e.g. because they have to be merged.
+         * @param packet The packet, may be raw
+         */
+        void update(Packet packet) {
+            if (packet instanceof RawPacket) {
+                int id = ((RawPacket) packet).getId();
+                if (id == ENTITY_HEAD_LOOK_ID) {
+                    headLook = packet;
+                    return;
+                }
+                if (id == ENTITY_VELOCITY_ID) {
+                    velocity = packet;
+                    return;
+                }
+                if (id == ENTITY_METADATA_ID) {
+                    rawMetadata.add(packet);
+                    if (rawMetadata.size() > MAX_RAW_METADATA) {
+                        mergeMetadata();
+                    }
+                    return;
+                }
+                if (!tracked && id < MOVEMENT_PACKETS.length && MOVEMENT_PACKETS[id]) {
+                    movement.add(packet);
+                    return;
+                }
+                packet = ((RawPacket) packet).decode();
+            }
+
+            if (packet instanceof ServerEntityTeleportPacket) {
+                ServerEntityTeleportPacket p = (ServerEntityTeleportPacket) packet;
+                setPosition(p.getX(), p.getY(), p.getZ(), p.getYaw(), p.getPitch());
+                onGround = p.isOnGround();
+                movement.clear();
+            } else if (packet instanceof ServerEntityMovementPacket) {
+                ServerEntityMovementPacket p = (ServerEntityMovementPacket) packet;
+                if (!tracked) {
+                    movement.add(packet);
+                    return;
+                }
+                if (!(packet instanceof ServerEntityRotationPacket)) {
+                    x += p.getMovementX();
+                    y += p.getMovementY();
+                    z += p.getMovementZ();
+                }
+                if (packet instanceof ServerEntityRotationPacket || packet instanceof ServerEntityPositionRotationPacket) {
+                    yaw = p.getYaw();
+                    pitch = p.getPitch();
+                }
+                onGround = p.isOnGround();
+                moved = true;
+            } else if (packet instanceof ServerEntityHeadLookPacket) {
+                headLook = packet;
+            } else if (packet instanceof ServerEntityVelocityPacket) {
+                velocity = packet;
+            } else if (packet instanceof ServerEntityPropertiesPacket) {
+                properties = (ServerEntityPropertiesPacket) packet;
+            } else if (packet instanceof ServerEntityAttachPacket) {
+                attach = (ServerEntityAttachPacket) packet;
+            } else if (packet instanceof ServerEntityMetadataPacket) {
+                mergeMetadata();
+                for (EntityMetadata entry : ((ServerEntityMetadataPacket) packet).getMetadata()) {
+                    metadata.put(entry.getId(), entry);
+                }
+            } else if (packet instanceof ServerEntityEquipmentPacket) {
+                equipment.put(((ServerEntityEquipmentPacket) packet).getSlot(), packet);
+            } else if (packet instanceof ServerEntityEffectPacket) {
+                effects.put(((ServerEntityEffectPacket) packet).getEffect(), packet);
+            } else if (packet instanceof ServerEntityRemoveEffectPacket) {
+                effects.remove(((ServerEntityRemoveEffectPacket) packet).getEffect());
+            }
+        }
+
+        /**
+         * Decodes the raw metadata packets and merges them into {@link #metadata}.
+         */
+        private void mergeMetadata() {
+            for (Packet packet : rawMetadata) {
+                for (EntityMetadata entry : ((ServerEntityMetadataPacket) RawPacket.decoded(packet)).getMetadata()) {
+                    metadata.put(entry.getId(), entry);
+                }
+            }
+            rawMetadata.clear();
+        }
+
+        /**
+         * Returns whether the absolute position of this entity is known.
+         */
+        boolean isTracked() {
+            return tracked;
+        }
+
+        int getChunkX() {
+            return (int) Math.floor(x) >> 4;
+        }
+
+        int getChunkZ() {
+            return (int) Math.floor(z) >> 4;
+        }
+
+        void addPackets(List<Packet> packets) {
+            packets.add(spawn);
+            if (!metadata.isEmpty()) {
+                packets.add(new ServerEntityMetadataPacket(id,
+                        metadata.values().toArray(new EntityMetadata[metadata.size()])));
+            }
+            packets.addAll(rawMetadata);
+            packets.addAll(equipment.values());
+            packets.addAll(effects.values());
+            if (properties != null) {
+                packets.add(properties);
+            }
+            if (attach != null) {
+                packets.add(attach);
+            }
+            if (moved) {
+                packets.add(new ServerEntityTeleportPacket(id, x, y, z, yaw, pitch, onGround));
+            }
+            packets.addAll(movement);
+            if (headLook != null) {
+                packets.add(headLook);
+            }
+            if (velocity != null) {
+                packets.add(velocity);
+            }
+        }
+    }
+}
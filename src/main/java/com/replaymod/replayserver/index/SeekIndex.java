@@ -0,0 +1,250 @@
+package com.replaymod.replayserver.index;
+
+import com.google.common.base.Preconditions;
+import com.replaymod.replayserver.io.PacketCodec;
+import com.replaymod.replayserver.io.PacketTimeline;
+import com.replaymod.replayserver.io.RawPacket;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index of keyframes in a replay which allows seeking without processing the whole replay.
+ */
+public class SeekIndex {
+    private static final int MAGIC = 0x52534958; // RSIX
+    private static final int VERSION = 3;
+
+    private final List<Keyframe> keyframes;
+    private final int packetCount;
+    private final int duration;
+
+    public SeekIndex(List<Keyframe> keyframes, int packetCount, int duration) {
+        this.keyframes = keyframes;
+        this.packetCount = packetCount;
+        this.duration = duration;
+    }
+
+    public List<Keyframe> getKeyframes() {
+        return Collections.unmodifiableList(keyframes);
+    }
+
+    /**
+     * Returns the number of packets in the replay, including those which are dropped by any filter.
+     * @return Number of packets
+     */
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Returns the timestamp of the last packet in the replay.
+     * @return Time in milliseconds
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the last keyframe at or before the specified time.
+     * @param time Time in milliseconds
+     * @return The keyframe or {@code null} if there is no such keyframe
+     */
+    public Keyframe getKeyframe(int time) {
+        int low = 0;
+        int high = keyframes.size() - 1;
+        Keyframe result = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Keyframe keyframe = keyframes.get(mid);
+            if (keyframe.getTime() <= time) {
+                result = keyframe;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the seek index for a replay by reading through all of its packets.
+     * @param replayFile The replay file
+     * @param interval Minimum time in milliseconds between two keyframes
+     * @return The seek index
+     */
+    public static SeekIndex build(ReplayFile replayFile, int interval) throws IOException {
+        Preconditions.checkArgument(interval > 0, "Interval must be positive");
+        List<Keyframe> keyframes = new ArrayList<>();
+        ReplayState state = new ReplayState();
+        int nextKeyframe = 0;
+        int packetIndex = 0;
+        int time = 0;
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                time = (int) data.getTime();
+                if (time >= nextKeyframe && state.hasJoined()) {
+                    keyframes.add(new Keyframe(time, packetIndex, Collections.unmodifiableList(state.getPackets())));
+                    nextKeyframe = time + interval;
+                }
+                state.update(data.getPacket());
+                packetIndex++;
+            }
+        }
+        return new SeekIndex(keyframes, packetIndex, time);
+    }
+
+    /**
+     * Builds the seek index for a replay from its already loaded timeline instead of reading the replay again.
+     * Packets dropped by the filter of the timeline are not part of any keyframe and packets rewritten by it are kept
+     * in their rewritten form. As keyframes are restored through the same filter, the result is the same as the one of
+     * {@link #build(ReplayFile, int)} as long as rewriting a packet twice has the same effect as rewriting it once.
+     * @param timeline The timeline
+     * @param interval Minimum time in milliseconds between two keyframes
+     * @return The seek index
+     */
+    public static SeekIndex build(PacketTimeline timeline, int interval) {
+        Preconditions.checkArgument(interval > 0, "Interval must be positive");
+        List<Keyframe> keyframes = new ArrayList<>();
+        ReplayState state = new ReplayState();
+        // Raw packets are slices of the buffers of the timeline, keyframes get copies so they do not keep the whole
+        // timeline alive once it has been evicted. Copies are shared between keyframes like the packets themselves.
+        Map<Packet, Packet> copies = new IdentityHashMap<>();
+        int nextKeyframe = 0;
+        int time = 0;
+        for (int i = 0; i < timeline.size(); i++) {
+            PacketData data = timeline.get(i);
+            if (data == null) {
+                continue; // Dropped by the filter
+            }
+            time = (int) data.getTime();
+            if (time >= nextKeyframe && state.hasJoined()) {
+                List<Packet> packets = state.getPackets();
+                for (int j = 0; j < packets.size(); j++) {
+                    Packet packet = packets.get(j);
+                    if (packet instanceof RawPacket) {
+                        packets.set(j, copies.computeIfAbsent(packet, SeekIndex::copy));
+                    }
+                }
+                keyframes.add(new Keyframe(time, i, Collections.unmodifiableList(packets)));
+                nextKeyframe = time + interval;
+            }
+            state.update(data.getPacket());
+        }
+        return new SeekIndex(keyframes, timeline.size(), time);
+    }
+
+    private static Packet copy(Packet packet) {
+        RawPacket raw = (RawPacket) packet;
+        return new RawPacket(raw.getId(), Unpooled.copiedBuffer(raw.getData()));
+    }
+
+    /**
+     * Reads a seek index previously written with {@link #write(File)}.
+     * @param file The file
+     * @return The seek index
+     */
+    public static SeekIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a seek index: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported seek index version " + version + ": " + file);
+            }
+            int packetCount = in.readInt();
+            int duration = in.readInt();
+
+            // Packets are shared between keyframes and therefore stored only once, in the same form as in the replay
+            Packet[] packets = new Packet[in.readInt()];
+            PacketCodec codec = PacketCodec.getInstance();
+            for (int i = 0; i < packets.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ByteBuf buf = Unpooled.wrappedBuffer(bytes);
+                // Decoded by the codec once the packet is needed, like packets of the timeline
+                packets[i] = new RawPacket(codec.peekId(buf), buf);
+            }
+
+            List<Keyframe> keyframes = new ArrayList<>();
+            int keyframeCount = in.readInt();
+            for (int i = 0; i < keyframeCount; i++) {
+                int time = in.readInt();
+                int packetIndex = in.readInt();
+                List<Packet> keyframePackets = new ArrayList<>();
+                int keyframePacketCount = in.readInt();
+                for (int j = 0; j < keyframePacketCount; j++) {
+                    keyframePackets.add(packets[in.readInt()]);
+                }
+                keyframes.add(new Keyframe(time, packetIndex, Collections.unmodifiableList(keyframePackets)));
+            }
+            return new SeekIndex(keyframes, packetCount, duration);
+        }
+    }
+
+    /**
+     * Writes this seek index to the specified file.
+     * @param file The file
+     */
+    public void write(File file) throws IOException {
+        // Assign ids to all distinct packets
+        Map<Packet, Integer> ids = new IdentityHashMap<>();
+        List<Packet> packets = new ArrayList<>();
+        for (Keyframe keyframe : keyframes) {
+            for (Packet packet : keyframe.getPackets()) {
+                if (!ids.containsKey(packet)) {
+                    ids.put(packet, packets.size());
+                    packets.add(packet);
+                }
+            }
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(packetCount);
+            out.writeInt(duration);
+
+            out.writeInt(packets.size());
+            PacketCodec codec = PacketCodec.getInstance();
+            ByteBuf buf = Unpooled.buffer();
+            for (Packet packet : packets) {
+                buf.clear();
+                if (packet instanceof RawPacket) {
+                    buf.writeBytes(((RawPacket) packet).getData().duplicate());
+                } else {
+                    codec.encode(packet, buf);
+                }
+                out.writeInt(buf.readableBytes());
+                buf.readBytes(out, buf.readableBytes());
+            }
+
+            out.writeInt(keyframes.size());
+            for (Keyframe keyframe : keyframes) {
+                out.writeInt(keyframe.getTime());
+                out.writeInt(keyframe.getPacketIndex());
+                out.writeInt(keyframe.getPackets().size());
+                for (Packet packet : keyframe.getPackets()) {
+                    out.writeInt(ids.get(packet));
+                }
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to move " + tmpFile + " to " + file);
+        }
+    }
+}
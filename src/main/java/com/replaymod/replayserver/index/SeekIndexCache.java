@@ -0,0 +1,138 @@
+package com.replaymod.replayserver.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.replaymod.replayserver.IReplayDatabase;
+import com.replaymod.replayserver.io.PacketTimelineCache;
+import com.replaymod.replaystudio.replay.ReplayFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the seek indices of replays, building them in the background on first use.
+ * Built indices are persisted at the location given by {@link IReplayDatabase#getIndexFile(String)} so they can be
+ * reused after a restart.
+ * Indices are built from the shared timeline of the replay if a {@link PacketTimelineCache} is given, so the replay is
+ * only read and decoded once for both. Otherwise the replay is read from a replay file opened solely for that.
+ * The keyframe interval and the number of indices kept in memory can be configured with the
+ * {@code seekindex.interval} and {@code seekindex.cachesize} system properties.
+ */
+public class SeekIndexCache {
+    private static final Logger logger = Logger.getLogger(SeekIndexCache.class.getName());
+
+    /**
+     * Minimum time in milliseconds between two keyframes.
+     */
+    public static final int INTERVAL = Integer.getInteger("seekindex.interval", 30000);
+
+    private final IReplayDatabase database;
+    private final PacketTimelineCache timelines;
+    private final Cache<String, ListenableFuture<SeekIndex>> cache = CacheBuilder.newBuilder()
+            .maximumSize(Integer.getInteger("seekindex.cachesize", 16))
+            .build();
+    private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "SeekIndex");
+                thread.setDaemon(true);
+                return thread;
+            }));
+
+    public SeekIndexCache(IReplayDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * @param database The database replays and index files are looked up in
+     * @param timelines Cache of the timelines indices are built from, {@code null} to read the replay separately
+     */
+    public SeekIndexCache(IReplayDatabase database, PacketTimelineCache timelines) {
+        this.database = database;
+        this.timelines = timelines;
+    }
+
+    /**
+     * Returns the seek index for the replay with the specified id.
+     * If the index is neither in memory nor on disk, it is built in the background.
+     * @param id Unique id of the replay
+     * @return Future for the seek index
+     */
+    public ListenableFuture<SeekIndex> get(String id) {
+        try {
+            return cache.get(id, () -> {
+                ListenableFuture<SeekIndex> future = executor.submit(() -> load(id));
+                future.addListener(() -> {
+                    try {
+                        future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        logger.log(Level.WARNING, "Failed to load seek index for " + id, e);
+                        cache.invalidate(id);
+                    }
+                }, MoreExecutors.directExecutor());
+                return future;
+            });
+        } catch (ExecutionException e) {
+            return Futures.immediateFailedFuture(e.getCause());
+        }
+    }
+
+    /**
+     * Discards the seek index of the replay with the specified id, e.g. because the replay has changed.
+     * Futures which have already been returned are not affected.
+     * @param id Unique id of the replay
+     */
+    public void invalidate(String id) {
+        cache.invalidate(id);
+    }
+
+    private SeekIndex load(String id) throws IOException, InterruptedException {
+        File file = database.getIndexFile(id);
+        if (file != null && file.exists()) {
+            try {
+                return SeekIndex.read(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read seek index " + file + ", rebuilding", e);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        SeekIndex index;
+        if (timelines != null) {
+            PacketTimelineCache.Reference reference = timelines.acquire(id, () -> database.getReplayFile(null, id));
+            try {
+                index = SeekIndex.build(reference.get(), INTERVAL);
+            } finally {
+                reference.release();
+            }
+        } else {
+            ReplayFile replayFile = database.getReplayFile(null, id);
+            if (replayFile == null) {
+                throw new IOException("Replay " + id + " not found");
+            }
+            try {
+                index = SeekIndex.build(replayFile, INTERVAL);
+            } finally {
+                replayFile.close();
+            }
+        }
+        logger.fine(() -> "Built seek index for " + id + " with " + index.getKeyframes().size() + " keyframes in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        if (file != null) {
+            try {
+                index.write(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write seek index " + file, e);
+            }
+        }
+        return index;
+    }
+}
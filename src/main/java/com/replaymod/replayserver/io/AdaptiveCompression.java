@@ -0,0 +1,343 @@
+package com.replaymod.replayserver.io;
+
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.handler.codec.DecoderException;
+import org.spacehq.mc.protocol.MinecraftConstants;
+import org.spacehq.packetlib.Session;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Replaces the compression handler of a connection, choosing the compression threshold and level based on how fast
+ * the connection is.
+ *
+ * Every few seconds (on a timer of the event loop of the connection), the round trip time (as measured by keep alive
+ * packets) and the fraction of time the connection was not writable (i.e. limited by bandwidth) are used to pick a
+ * {@link Profile}. A new profile is only applied once
+ * it has been picked twice in a row. The client rejects compressed packets smaller than the threshold negotiated at
+ * login, so the threshold is never lowered below it, but packets above it may be sent uncompressed.
+ *
+ * Deflaters are borrowed from the {@link DeflaterPool} for each packet, buffers are reused.
+ * Packets which have been pre-encoded (see {@code replayserver.preencode}) bypass this handler. They are only used
+ * while their threshold matches {@link #getThreshold()}, otherwise they are encoded on the fly and pass through here.
+ * Their bytes are counted through {@link #recordWritten(int)}.
+ */
+public class AdaptiveCompression extends ByteToMessageCodec<ByteBuf> {
+    private static final Logger logger = Logger.getLogger(AdaptiveCompression.class.getName());
+    private static final Counter INPUT_BYTES = Metrics.counter("replayserver_compression_input_bytes_total",
+            "Number of bytes passed to the compression handler");
+    private static final Counter OUTPUT_BYTES = Metrics.counter("replayserver_compression_output_bytes_total",
+            "Number of bytes written by the compression handler");
+    private static final Counter TIME = Metrics.counter("replayserver_compression_nanoseconds_total",
+            "Time spent compressing packets");
+    private static final Counter PROFILE_CHANGES = Metrics.counter("replayserver_compression_profile_changes_total",
+            "Number of times the compression profile of a connection has been changed");
+
+    /**
+     * Time in nanoseconds between two evaluations of the connection.
+     */
+    private static final long EVALUATION_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+    /**
+     * Round trip time in milliseconds up to which a connection is considered to be local.
+     */
+    private static final long LOCAL_RTT = 2;
+    /**
+     * Round trip time in milliseconds up to which a connection is considered to be fast.
+     */
+    private static final long FAST_RTT = 20;
+    /**
+     * Fraction of time a connection has to be unwritable to be considered limited by bandwidth.
+     */
+    private static final double CONSTRAINED_BLOCKED = 0.1;
+    /**
+     * Largest uncompressed size accepted for received packets, same as for the handler of PacketLib.
+     */
+    private static final int MAX_UNCOMPRESSED_SIZE = 2097152;
+
+    /**
+     * Compression settings for a class of connections.
+     */
+    public enum Profile {
+        /**
+         * Loopback or same host, compression only costs CPU.
+         */
+        LOCAL(Integer.MAX_VALUE, Deflater.NO_COMPRESSION),
+        /**
+         * LAN, only large packets (mostly chunks) are compressed and as fast as possible.
+         */
+        FAST(512, Deflater.BEST_SPEED),
+        /**
+         * Regular remote connection.
+         */
+        DEFAULT(0, Deflater.DEFAULT_COMPRESSION),
+        /**
+         * Connection limited by bandwidth, CPU time is cheaper than bytes.
+         */
+        CONSTRAINED(0, Deflater.BEST_COMPRESSION);
+
+        private final int minThreshold;
+        private final int level;
+
+        Profile(int minThreshold, int level) {
+            this.minThreshold = minThreshold;
+            this.level = level;
+        }
+
+        /**
+         * Returns the compression threshold of this profile.
+         * @param baseThreshold The threshold negotiated at login
+         * @return The threshold, never below the negotiated one
+         */
+        public int getThreshold(int baseThreshold) {
+            return Math.max(baseThreshold, minThreshold);
+        }
+
+        public int getLevel() {
+            return level;
+        }
+    }
+
+    private final PacketCodec codec = PacketCodec.getInstance();
+    private final Session session;
+    private final int baseThreshold;
+
+    private Profile profile = Profile.DEFAULT;
+    private Profile candidate;
+    /**
+     * Read by the worker of the user to decide whether pre-encoded packets can be used.
+     */
+    private volatile int threshold;
+    /**
+     * Created on first use, clients rarely send packets large enough to be compressed.
+     */
+    private Inflater inflater;
+    /**
+     * Copy of received compressed packets which are not backed by an array, reused for all packets.
+     */
+    private byte[] input;
+    /**
+     * Copy of packets to be compressed which are not backed by an array and of their compressed output, reused for all
+     * packets.
+     */
+    private byte[] buffer;
+
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private long blockedTime;
+    private long unwritableSince = -1;
+    private ScheduledFuture<?> evaluation;
+
+    /**
+     * @param session The session of the connection
+     * @param baseThreshold The compression threshold negotiated at login
+     */
+    public AdaptiveCompression(Session session, int baseThreshold) {
+        this.session = session;
+        this.baseThreshold = baseThreshold;
+        this.threshold = profile.getThreshold(baseThreshold);
+    }
+
+    /**
+     * Picks the profile for a connection.
+     * @param rtt Round trip time in milliseconds, negative if unknown
+     * @param blocked Fraction of time the connection was not writable
+     * @return The profile
+     */
+    public static Profile choose(long rtt, double blocked) {
+        if (blocked > CONSTRAINED_BLOCKED) {
+            return Profile.CONSTRAINED;
+        }
+        if (rtt < 0) {
+            return Profile.DEFAULT;
+        }
+        if (rtt <= LOCAL_RTT) {
+            return Profile.LOCAL;
+        }
+        return rtt <= FAST_RTT ? Profile.FAST : Profile.DEFAULT;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
+        long start = System.nanoTime();
+        INPUT_BYTES.add(msg.readableBytes());
+        int outStart = out.writerIndex();
+        if (msg.readableBytes() < threshold) {
+            codec.compress(msg, threshold, null, out);
+        } else {
+            Deflater deflater = DeflaterPool.acquire(profile.getLevel());
+            try {
+                buffer = codec.compress(msg, threshold, deflater, out, buffer);
+            } finally {
+                DeflaterPool.release(deflater);
+            }
+        }
+        OUTPUT_BYTES.add(out.writerIndex() - outStart);
+        TIME.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Records bytes written to the connection, whether they passed through this handler or not.
+     * Must be called from the event loop of the connection.
+     * @param bytes Number of bytes
+     */
+    public void recordWritten(int bytes) {
+        windowBytes += bytes;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        evaluation = ctx.executor().scheduleAtFixedRate(() -> evaluate(System.nanoTime()),
+                EVALUATION_INTERVAL, EVALUATION_INTERVAL, TimeUnit.NANOSECONDS);
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (evaluation != null) {
+            evaluation.cancel(false);
+            evaluation = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (in.readableBytes() == 0) {
+            return;
+        }
+        int length = readVarInt(in);
+        if (length == 0) {
+            out.add(in.readBytes(in.readableBytes()));
+            return;
+        }
+        // Compression is enabled before the client is authenticated, never trust the declared size
+        if (length < baseThreshold) {
+            throw new DecoderException("Badly compressed packet: size " + length + " is below threshold "
+                    + baseThreshold);
+        }
+        if (length > MAX_UNCOMPRESSED_SIZE) {
+            throw new DecoderException("Badly compressed packet: size " + length + " is larger than maximum of "
+                    + MAX_UNCOMPRESSED_SIZE);
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        int inputLength = in.readableBytes();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), inputLength);
+        } else {
+            if (input == null || input.length < inputLength) {
+                input = new byte[inputLength];
+            }
+            in.getBytes(in.readerIndex(), input, 0, inputLength);
+            inflater.setInput(input, 0, inputLength);
+        }
+        in.skipBytes(inputLength);
+        ByteBuf output = ctx.alloc().heapBuffer(length, length);
+        try {
+            int inflated = inflater.inflate(output.array(), output.arrayOffset(), length);
+            if (inflated != length) {
+                throw new DecoderException("Expected " + length + " bytes but got " + inflated);
+            }
+            output.writerIndex(length);
+        } catch (DataFormatException e) {
+            output.release();
+            throw new DecoderException(e);
+        } catch (RuntimeException e) {
+            output.release();
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+        out.add(output);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        long now = System.nanoTime();
+        if (ctx.channel().isWritable()) {
+            if (unwritableSince != -1) {
+                blockedTime += now - Math.max(unwritableSince, windowStart);
+                unwritableSince = -1;
+            }
+        } else if (unwritableSince == -1) {
+            unwritableSince = now;
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (evaluation != null) {
+            evaluation.cancel(false);
+            evaluation = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void evaluate(long now) {
+        long window = now - windowStart;
+        long blocked = blockedTime + (unwritableSince != -1 ? now - Math.max(unwritableSince, windowStart) : 0);
+        Object ping = session.getFlag(MinecraftConstants.PING_KEY);
+        long rtt = ping instanceof Number ? ((Number) ping).longValue() : -1;
+        Profile chosen = choose(rtt, (double) blocked / window);
+        long bytesPerSecond = windowBytes * TimeUnit.SECONDS.toNanos(1) / window;
+        logger.finer(() -> session + ": rtt " + rtt + "ms, " + bytesPerSecond + " bytes/s, "
+                + "blocked " + TimeUnit.NANOSECONDS.toMillis(blocked) + "ms, chose " + chosen);
+
+        if (chosen != profile && chosen == candidate) {
+            logger.fine(() -> "Switching compression of " + session + " from " + profile
+                    + " to " + chosen);
+            profile = chosen;
+            threshold = chosen.getThreshold(baseThreshold);
+            PROFILE_CHANGES.increment();
+        }
+        candidate = chosen;
+        windowStart = now;
+        windowBytes = 0;
+        blockedTime = 0;
+    }
+
+    /**
+     * Returns the compression threshold currently in use.
+     * May be called from any thread.
+     * @return The threshold, never below the one negotiated at login
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the profile currently in use.
+     * @return The profile
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    private static int readVarInt(ByteBuf buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.readByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
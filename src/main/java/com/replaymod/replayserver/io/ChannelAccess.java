@@ -0,0 +1,66 @@
+package com.replaymod.replayserver.io;
+
+import io.netty.channel.Channel;
+import org.spacehq.packetlib.Session;
+import org.spacehq.packetlib.tcp.TcpSession;
+
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides access to the netty channel behind a PacketLib session.
+ */
+public class ChannelAccess {
+    private static final Logger logger = Logger.getLogger(ChannelAccess.class.getName());
+
+    /**
+     * Name of the handler prefixing packets with their length.
+     * Writing through its context sends fully framed packets without passing codec, compression or sizer.
+     */
+    public static final String SIZER = "sizer";
+
+    /**
+     * Name of the handler compressing outgoing and decompressing incoming packets, only present once compression has
+     * been enabled.
+     */
+    public static final String COMPRESSION = "compression";
+
+    /**
+     * Name of the handler encoding packets.
+     * Writing through its context sends encoded but uncompressed packets, which are then compressed and framed.
+     */
+    public static final String CODEC = "codec";
+
+    private static final Field CHANNEL_FIELD;
+
+    static {
+        Field field = null;
+        try {
+            field = TcpSession.class.getDeclaredField("channel");
+            field.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            logger.log(Level.WARNING, "Cannot access channel of TcpSession, falling back to regular encoding", e);
+        }
+        CHANNEL_FIELD = field;
+    }
+
+    private ChannelAccess() {
+    }
+
+    /**
+     * Returns the channel of the specified session.
+     * @param session The session
+     * @return The channel or {@code null} if it cannot be accessed or is not yet connected
+     */
+    public static Channel getChannel(Session session) {
+        if (CHANNEL_FIELD == null || !(session instanceof TcpSession)) {
+            return null;
+        }
+        try {
+            return (Channel) CHANNEL_FIELD.get(session);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
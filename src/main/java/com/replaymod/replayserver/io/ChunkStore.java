@@ -0,0 +1,114 @@
+package com.replaymod.replayserver.io;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Content-addressed store for chunk data shared between all replays.
+ * Chunk packets make up most of the bytes of a typical replay and many of them are identical, both within a replay
+ * (the recorder moving back and forth) and across replays of the same map. Each distinct chunk packet is kept only
+ * once, off-heap, and handed out to every timeline containing it.
+ *
+ * The store only indexes chunks, it does not own them: evicting the least recently used chunks once the size of all
+ * stored chunks exceeds the budget only means new timelines no longer share them, timelines already referencing them
+ * keep them alive. The budget can be configured with the {@code chunkstore.budget} system property (in bytes,
+ * defaults to 256MiB).
+ */
+public class ChunkStore {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final Counter SAVED = Metrics.counter("replayserver_chunkstore_saved_bytes_total",
+            "Number of bytes which did not have to be stored because an identical chunk was already stored");
+
+    private final long budget = Long.getLong("chunkstore.budget", 256 * 1024 * 1024);
+
+    /**
+     * Stored chunks by hash in access order. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<HashCode, ByteBuf> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Total size of all stored chunks. Guarded by {@code this}.
+     */
+    private long size;
+
+    public ChunkStore() {
+        Metrics.gauge("replayserver_chunkstore_bytes", "Total size of all chunks in the chunk store", this::getSize);
+    }
+
+    /**
+     * Returns the stored copy of the specified data, storing it if no identical data has been stored yet.
+     * @param data The data, not modified
+     * @return The shared copy of the data, must not be modified and cannot be released
+     */
+    public ByteBuf intern(ByteBuf data) {
+        return intern(data, hash(data));
+    }
+
+    /**
+     * Returns the stored copy of the specified data, storing it if no identical data has been stored yet.
+     * @param data The data, not modified
+     * @param hash The hash of the data, see {@link #hash(ByteBuf)}
+     * @return The shared copy of the data, must not be modified and cannot be released
+     */
+    public synchronized ByteBuf intern(ByteBuf data, HashCode hash) {
+        ByteBuf stored = chunks.get(hash);
+        if (stored != null && ByteBufUtil.equals(stored, data)) {
+            SAVED.add(stored.readableBytes());
+            return stored;
+        }
+        int length = data.readableBytes();
+        // Direct buffers allocated by the JVM are freed once no longer referenced by the store or any timeline
+        ByteBuf copy = Unpooled.wrappedBuffer(ByteBuffer.allocateDirect(length));
+        copy.clear();
+        copy.writeBytes(data, data.readerIndex(), length);
+        stored = Unpooled.unreleasableBuffer(copy);
+        ByteBuf previous = chunks.put(hash, stored);
+        if (previous != null) {
+            // Hash collision, replace the older chunk
+            size -= previous.readableBytes();
+        }
+        size += length;
+        evict();
+        return stored;
+    }
+
+    /**
+     * Returns the total size of all stored chunks.
+     * @return Size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private void evict() {
+        Iterator<ByteBuf> iter = chunks.values().iterator();
+        while (size > budget && iter.hasNext()) {
+            size -= iter.next().readableBytes();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Computes the content hash of the readable bytes of the specified buffer.
+     * @param data The data, not modified
+     * @return The hash
+     */
+    public static HashCode hash(ByteBuf data) {
+        if (data.hasArray()) {
+            return HASH_FUNCTION.hashBytes(data.array(), data.arrayOffset() + data.readerIndex(),
+                    data.readableBytes());
+        }
+        byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        return HASH_FUNCTION.hashBytes(bytes);
+    }
+}
@@ -0,0 +1,52 @@
+package com.replaymod.replayserver.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of {@link Deflater}s shared by all connections and timelines.
+ * Each deflater holds a few hundred kilobytes of native memory, so instead of keeping one per connection, one is
+ * borrowed for each packet that is compressed. At most {@code deflaterpool.size} idle deflaters (defaults to twice
+ * the number of available processors) are kept.
+ */
+public class DeflaterPool {
+    private static final int MAX_IDLE =
+            Integer.getInteger("deflaterpool.size", 2 * Runtime.getRuntime().availableProcessors());
+    private static final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private DeflaterPool() {
+    }
+
+    /**
+     * Borrows a deflater from the pool, creating a new one if none is idle.
+     * It has to be returned with {@link #release(Deflater)}.
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @return The deflater, reset and set to the specified level
+     */
+    public static Deflater acquire(int level) {
+        Deflater deflater = idle.poll();
+        if (deflater == null) {
+            return new Deflater(level);
+        }
+        idleCount.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Returns a deflater to the pool.
+     * @param deflater The deflater, must not be used afterwards
+     */
+    public static void release(Deflater deflater) {
+        deflater.reset();
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        idle.offer(deflater);
+    }
+}
@@ -0,0 +1,310 @@
+package com.replaymod.replayserver.io;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The packet stream ({@code .tmcpr}) of a replay which is still being recorded, i.e. appended to by another process.
+ * Only complete packets are ever visible to readers: streams opened through {@link #openStream(int)} end at the last
+ * complete packet but, unlike regular streams, continue once more packets have been written.
+ *
+ * The file is not polled. Whoever watches it (see {@link com.replaymod.replayserver.selectors.TailReplayDatabase})
+ * calls {@link #changed()}, which picks up new packets and notifies everyone waiting for them.
+ *
+ * Readers hold a reference (see {@link #retain()}), the file is closed once the recording has finished and the last
+ * reference has been released.
+ */
+public class LiveReplay {
+    private static final Logger logger = Logger.getLogger(LiveReplay.class.getName());
+    private static final int INDEX_INTERVAL = 64;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    /**
+     * Offset of every {@value #INDEX_INTERVAL}th packet. Guarded by {@code this}.
+     */
+    private final LongArrayList indexOffsets = new LongArrayList();
+    /**
+     * Notified once when more packets are available or the recording has finished.
+     */
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+    /**
+     * End of the last complete packet.
+     */
+    private volatile long limit;
+    private volatile int packetCount;
+    private volatile int latestTime;
+    private volatile boolean finished;
+    /**
+     * Number of readers holding a reference. Guarded by {@code this}.
+     */
+    private int refCount;
+    /**
+     * Whether the file has been closed. Guarded by {@code this}.
+     */
+    private boolean closed;
+
+    /**
+     * @param file The packet stream
+     */
+    public LiveReplay(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            refresh();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of complete packets written so far.
+     * @return Number of packets
+     */
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Returns the timestamp of the last complete packet written so far.
+     * @return Time in milliseconds
+     */
+    public int getLatestTime() {
+        return latestTime;
+    }
+
+    /**
+     * Returns whether the recording has finished, i.e. no more packets will be written.
+     * @return {@code true} if finished, {@code false} if packets may still be appended
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Registers a listener to be called once more packets have been written or the recording has finished.
+     * Registering the same listener again before it has been called has no effect.
+     * @param listener The listener, called from the thread watching the file
+     */
+    public void onChange(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Called when the file has been modified, picks up all new complete packets and notifies listeners.
+     */
+    public void changed() {
+        try {
+            refresh();
+        } catch (IOException e) {
+            finish();
+            return;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Marks the recording as finished, e.g. because the file has been moved away, and notifies listeners.
+     * Packets which have been written until now remain readable until the last reference has been released.
+     */
+    public void finish() {
+        finished = true;
+        notifyListeners();
+        closeIfUnused();
+    }
+
+    /**
+     * Acquires a reference to this replay, which has to be released once it is no longer read.
+     * @return {@code true} if a reference has been acquired, {@code false} if the file has already been closed
+     */
+    public synchronized boolean retain() {
+        if (closed) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * Releases a reference acquired with {@link #retain()}, closing the file if the recording has finished and no
+     * references are left.
+     */
+    public void release() {
+        synchronized (this) {
+            refCount--;
+        }
+        closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+        synchronized (this) {
+            if (closed || !finished || refCount > 0) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing " + file + ":", e);
+        }
+    }
+
+    private void notifyListeners() {
+        List<Runnable> listeners = new ArrayList<>(this.listeners);
+        this.listeners.removeAll(listeners);
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Advances the limit over all packets which have been completely written.
+     */
+    private synchronized void refresh() throws IOException {
+        long size = channel.size();
+        long offset = limit;
+        int count = packetCount;
+        int time = latestTime;
+        while (offset + 8 <= size) {
+            header.clear();
+            readFully(header, offset);
+            int length = header.getInt(4);
+            if (length < 0) {
+                throw new IOException("Invalid packet length " + length + " at offset " + offset + " in " + file);
+            }
+            if (offset + 8 + length > size) {
+                break; // Packet has not been completely written yet
+            }
+            if (count % INDEX_INTERVAL == 0) {
+                indexOffsets.add(offset);
+            }
+            time = header.getInt(0);
+            offset += 8 + length;
+            count++;
+        }
+        latestTime = time;
+        packetCount = count;
+        limit = offset;
+    }
+
+    /**
+     * Opens the raw packet stream at the specified packet.
+     * The stream is in the same format as {@link com.replaymod.replaystudio.replay.ReplayFile#getPacketData()}.
+     * @param packetIndex Index of the first packet to be read
+     * @return The stream, reading past its end throws an {@link EOFException} until more packets have been written
+     */
+    public InputStream openStream(int packetIndex) throws IOException {
+        long offset;
+        int skip;
+        synchronized (this) {
+            if (packetIndex >= packetCount) {
+                offset = limit;
+                skip = 0;
+            } else {
+                offset = indexOffsets.getLong(packetIndex / INDEX_INTERVAL);
+                skip = packetIndex % INDEX_INTERVAL;
+            }
+        }
+        // Skip over packets using their length prefix only
+        ByteBuffer length = ByteBuffer.allocate(4);
+        for (int i = 0; i < skip; i++) {
+            length.clear();
+            readFully(length, offset + 4);
+            offset += 8 + length.getInt(0);
+        }
+        return new TailInputStream(offset);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Closes the file regardless of any references. Streams which are still open can no longer be read.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        finish();
+        channel.close();
+    }
+
+    private class TailInputStream extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(8192);
+        /**
+         * Offset in the file of the end of the data in {@link #buf}.
+         */
+        private long position;
+
+        private TailInputStream(long position) {
+            this.position = position;
+            buf.flip();
+        }
+
+        /**
+         * Fills the buffer with the following bytes up to the end of the last complete packet, does not block.
+         * @return {@code false} if all packets written so far have been read
+         */
+        private boolean fill() throws IOException {
+            long limit = LiveReplay.this.limit;
+            if (position >= limit) {
+                return false;
+            }
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), limit - position));
+            readFully(buf, position);
+            position += buf.position();
+            buf.flip();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buf.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int read = Math.min(len, buf.remaining());
+            buf.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
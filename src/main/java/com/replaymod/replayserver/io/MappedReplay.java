@@ -0,0 +1,260 @@
+package com.replaymod.replayserver.io;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The packet stream of a replay stored uncompressed and accessed through a {@link MappedByteBuffer}.
+ * All sessions reading the same replay share the OS page cache instead of each inflating the replay on their own.
+ * An index of the time and offset of every {@value #INDEX_INTERVAL}th packet allows opening the stream at any packet
+ * without reading the preceding packets. Seeking by time goes through the keyframes of the
+ * {@link com.replaymod.replayserver.index.SeekIndex}, which know the packet to resume at.
+ *
+ * The mapping is reference counted (see {@link #retain()}) and unmapped as soon as the last reference has been
+ * released, instead of once the garbage collector gets to it, so replaced replays do not keep their old file mapped.
+ *
+ * The file consists of a header (magic, version), the packets exactly as in the {@code .tmcpr} stream (timestamp,
+ * length, packet id and payload), the index and a footer (index offset, packet count, index size, magic).
+ */
+public class MappedReplay {
+    private static final Logger logger = Logger.getLogger(MappedReplay.class.getName());
+    private static final int MAGIC = 0x52534d52; // RSMR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 20;
+    private static final int INDEX_INTERVAL = 64;
+
+    /**
+     * The whole file as mapped.
+     */
+    private final MappedByteBuffer mapping;
+    /**
+     * All packets, read-only.
+     */
+    private final ByteBuffer data;
+    private final int packetCount;
+    /**
+     * Offset into {@link #data} of every {@value #INDEX_INTERVAL}th packet.
+     */
+    private final int[] indexOffsets;
+    /**
+     * Number of references to this replay, see {@link #retain()}. Guarded by {@code this}.
+     */
+    private int refCount = 1;
+
+    private MappedReplay(MappedByteBuffer mapping, ByteBuffer data, int packetCount, int[] indexOffsets) {
+        this.mapping = mapping;
+        this.data = data;
+        this.packetCount = packetCount;
+        this.indexOffsets = indexOffsets;
+    }
+
+    /**
+     * Adds a reference to this replay, which has to be released with {@link #release()}.
+     * @return {@code true} if the reference has been added, {@code false} if this replay has been unmapped already
+     */
+    public synchronized boolean retain() {
+        if (refCount == 0) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * Releases a reference to this replay, unmapping it once no reference is left.
+     * Streams opened before must not be read afterwards.
+     */
+    public synchronized void release() {
+        if (refCount == 0) {
+            throw new IllegalStateException("Mapped replay has been released already");
+        }
+        if (--refCount == 0) {
+            unmap(mapping);
+        }
+    }
+
+    /**
+     * Returns the number of packets in this replay.
+     * @return Number of packets
+     */
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Opens the raw packet stream at the specified packet.
+     * The stream is in the same format as {@link com.replaymod.replaystudio.replay.ReplayFile#getPacketData()}.
+     * @param packetIndex Index of the first packet to be read
+     * @return The stream, does not need to be closed
+     */
+    public InputStream openStream(int packetIndex) {
+        synchronized (this) {
+            if (refCount == 0) {
+                throw new IllegalStateException("Mapped replay has been released");
+            }
+        }
+        if (packetIndex >= packetCount) {
+            return openStreamAt(data.limit());
+        }
+        int entry = packetIndex / INDEX_INTERVAL;
+        int offset = indexOffsets[entry];
+        for (int i = entry * INDEX_INTERVAL; i < packetIndex; i++) {
+            offset += 8 + data.getInt(offset + 4);
+        }
+        return openStreamAt(offset);
+    }
+
+    private InputStream openStreamAt(int offset) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(offset);
+        return new ByteBufInputStream(Unpooled.wrappedBuffer(buffer.slice()));
+    }
+
+    /**
+     * Maps the specified file.
+     * @param file The file, created by {@link #write(InputStream, File)}
+     * @return The mapped replay, holding one reference which is owned by the caller
+     */
+    public static MappedReplay open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Replay too large to be mapped: " + file);
+            }
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Truncated replay: " + file);
+            }
+            // The mapping stays valid after the channel has been closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt((int) size - 4) != MAGIC) {
+                throw new IOException("Not a mapped replay or unsupported version: " + file);
+            }
+            int footer = (int) size - FOOTER_SIZE;
+            int indexOffset = (int) buffer.getLong(footer);
+            int packetCount = buffer.getInt(footer + 8);
+            int indexSize = buffer.getInt(footer + 12);
+
+            int[] indexOffsets = new int[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                indexOffsets[i] = buffer.getInt(indexOffset + i * 8 + 4);
+            }
+
+            ByteBuffer data = buffer.duplicate();
+            data.position(HEADER_SIZE);
+            data.limit(indexOffset);
+            return new MappedReplay(buffer, data.slice().asReadOnlyBuffer(), packetCount, indexOffsets);
+        }
+    }
+
+    /**
+     * Converts the specified raw packet stream into a mapped replay file.
+     * The file is written to a temporary file first and then moved into place.
+     * @param in The raw packet stream, e.g. as returned by {@link com.replaymod.replaystudio.replay.ReplayFile#getPacketData()}
+     * @param file The file to write to
+     */
+    public static void write(InputStream in, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataInputStream dataIn = new DataInputStream(in);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int packetCount = 0;
+            long offset = 0;
+            int[] indexTimes = new int[1024];
+            int[] indexOffsets = new int[1024];
+            byte[] buf = new byte[4096];
+            while (true) {
+                int time;
+                try {
+                    time = dataIn.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int length = dataIn.readInt();
+                if (packetCount % INDEX_INTERVAL == 0) {
+                    int entry = packetCount / INDEX_INTERVAL;
+                    if (entry == indexTimes.length) {
+                        indexTimes = Arrays.copyOf(indexTimes, entry * 2);
+                        indexOffsets = Arrays.copyOf(indexOffsets, entry * 2);
+                    }
+                    indexTimes[entry] = time;
+                    indexOffsets[entry] = (int) offset;
+                }
+                if (buf.length < length) {
+                    buf = new byte[Math.max(length, buf.length * 2)];
+                }
+                dataIn.readFully(buf, 0, length);
+                out.writeInt(time);
+                out.writeInt(length);
+                out.write(buf, 0, length);
+                offset += 8 + length;
+                packetCount++;
+                if (HEADER_SIZE + offset > Integer.MAX_VALUE - FOOTER_SIZE) {
+                    throw new IOException("Replay too large to be mapped");
+                }
+            }
+
+            int indexSize = (packetCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            for (int i = 0; i < indexSize; i++) {
+                out.writeInt(indexTimes[i]);
+                out.writeInt(indexOffsets[i]);
+            }
+            out.writeLong(offset + HEADER_SIZE);
+            out.writeInt(packetCount);
+            out.writeInt(indexSize);
+            out.writeInt(MAGIC);
+        }
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            throw new IOException("Failed to move " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Unmaps the specified buffer right away. There is no public API for this, so the cleaner of the buffer is
+     * invoked reflectively. If that fails, the mapping is left to the garbage collector.
+     * @param buffer The buffer as returned by {@link FileChannel#map(FileChannel.MapMode, long, long)}
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Cannot unmap replay, leaving it to the garbage collector", e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.replaymod.replayserver.io;
+
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A replay file reading its packets from a {@link MappedReplay} instead of inflating them from the zip file.
+ * Everything else (meta data, markers, etc.) is still read from the zip file.
+ */
+public class MappedReplayFile extends ZipReplayFile implements SeekableReplayFile {
+    private final Studio studio;
+    private final MappedReplay mappedReplay;
+    private boolean closed;
+
+    /**
+     * @param studio The studio
+     * @param file The original replay file
+     * @param mappedReplay The mapped packets of the replay file, a reference to them (see {@link MappedReplay#retain()})
+     * is passed to this replay file and released once it is closed
+     */
+    public MappedReplayFile(Studio studio, File file, MappedReplay mappedReplay) throws IOException {
+        super(studio, file);
+        this.studio = studio;
+        this.mappedReplay = mappedReplay;
+    }
+
+    @Override
+    public ReplayInputStream getPacketData() throws IOException {
+        return new ReplayInputStream(studio, mappedReplay.openStream(0));
+    }
+
+    @Override
+    public InputStream getPacketData(int packetIndex) throws IOException {
+        return mappedReplay.openStream(packetIndex);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                mappedReplay.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.replaymod.replayserver.io;
+
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import org.spacehq.mc.protocol.MinecraftProtocol;
+import org.spacehq.mc.protocol.data.SubProtocol;
+import org.spacehq.packetlib.Session;
+import org.spacehq.packetlib.packet.Packet;
+import org.spacehq.packetlib.tcp.io.ByteBufNetInput;
+import org.spacehq.packetlib.tcp.io.ByteBufNetOutput;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes and decodes client-bound game packets (sent by the server) the same way they are stored in replay files:
+ * A var-int packet id followed by the packet payload, without any length prefix or compression.
+ */
+public class PacketCodec {
+    private static final Counter PACKETS_DECODED = Metrics.counter("replayserver_packets_decoded_total",
+            "Number of replay packets which have been fully decoded");
+    /**
+     * Number of bytes the deflater writes to the output at a time.
+     */
+    private static final int DEFLATE_CHUNK = 8192;
+    private static final PacketCodec INSTANCE = new PacketCodec();
+
+    /**
+     * Returns the shared codec instance.
+     * @return The codec
+     */
+    public static PacketCodec getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Game protocol as seen by the client, used to decode packets sent by the server.
+     */
+    private final MinecraftProtocol clientProtocol;
+    /**
+     * Game protocol as seen by the server, used to determine the id of packets sent by the server.
+     */
+    private final MinecraftProtocol serverProtocol;
+
+    private PacketCodec() {
+        clientProtocol = createGameProtocol(true);
+        serverProtocol = createGameProtocol(false);
+    }
+
+    private static MinecraftProtocol createGameProtocol(boolean client) {
+        // MinecraftProtocol only switches to the game state during login, so we have to do that manually
+        try {
+            Constructor<MinecraftProtocol> constructor = MinecraftProtocol.class.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            MinecraftProtocol protocol = constructor.newInstance();
+            Method setSubProtocol = MinecraftProtocol.class.getDeclaredMethod("setSubProtocol",
+                    SubProtocol.class, boolean.class, Session.class);
+            setSubProtocol.setAccessible(true);
+            setSubProtocol.invoke(protocol, SubProtocol.GAME, client, null);
+            return protocol;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create game protocol", e);
+        }
+    }
+
+    /**
+     * Returns the id of the specified packet class.
+     * @param packetClass The class of a packet sent by the server
+     * @return The packet id
+     */
+    public int getId(Class<? extends Packet> packetClass) {
+        return serverProtocol.getOutgoingId(packetClass);
+    }
+
+    /**
+     * Reads the packet id from the specified buffer without changing its reader index.
+     * @param buf Buffer containing an encoded packet
+     * @return The packet id
+     */
+    public int peekId(ByteBuf buf) {
+        int index = buf.readerIndex();
+        int id = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.getByte(index++);
+            id |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return id;
+    }
+
+    /**
+     * Decodes a packet from the specified buffer.
+     * @param buf Buffer containing the packet id and payload
+     * @return The packet
+     */
+    public Packet decode(ByteBuf buf) throws IOException {
+        ByteBufNetInput in = new ByteBufNetInput(buf);
+        Packet packet = clientProtocol.createIncomingPacket(in.readVarInt());
+        packet.read(in);
+        PACKETS_DECODED.increment();
+        return packet;
+    }
+
+    /**
+     * Encodes a packet into the specified buffer.
+     * @param packet The packet
+     * @param buf Buffer to write the packet id and payload to
+     */
+    public void encode(Packet packet, ByteBuf buf) throws IOException {
+        ByteBufNetOutput out = new ByteBufNetOutput(buf);
+        out.writeVarInt(getId(packet.getClass()));
+        packet.write(out);
+    }
+
+    /**
+     * Converts an encoded packet into the exact form it is sent over the network: compressed (if the compression
+     * threshold is non-negative) and prefixed with its length. Encryption is not supported.
+     * @param packet Buffer containing the packet id and payload, will be consumed
+     * @param threshold The compression threshold, negative if compression is disabled
+     * @param deflater The deflater used for compression
+     * @param out Buffer to write the framed packet to
+     */
+    public void frame(ByteBuf packet, int threshold, Deflater deflater, ByteBuf out) {
+        ByteBuf body;
+        if (threshold < 0) {
+            body = packet;
+        } else {
+            body = out.alloc().heapBuffer(packet.readableBytes() + 5);
+            compress(packet, threshold, deflater, body);
+        }
+        writeVarInt(out, body.readableBytes());
+        out.writeBytes(body);
+        if (body != packet) {
+            body.release();
+        }
+    }
+
+    /**
+     * Converts an encoded packet into its compressed form (without length prefix): prefixed with its uncompressed
+     * length and compressed if it is at least as large as the threshold, prefixed with 0 otherwise.
+     * @param packet Buffer containing the packet id and payload, will be consumed
+     * @param threshold The compression threshold
+     * @param deflater The deflater used for compression, reset afterwards
+     * @param out Buffer to write the compressed packet to
+     */
+    public void compress(ByteBuf packet, int threshold, Deflater deflater, ByteBuf out) {
+        compress(packet, threshold, deflater, out, null);
+    }
+
+    /**
+     * Same as {@link #compress(ByteBuf, int, Deflater, ByteBuf)} but reuses the specified array for copying buffers
+     * which are not backed by an array. Heap buffers are passed to the deflater directly.
+     * @param buffer Array to copy the packet and the compressed output through, may be {@code null}
+     * @return The array which has been used, to be passed again for the next packet
+     */
+    public byte[] compress(ByteBuf packet, int threshold, Deflater deflater, ByteBuf out, byte[] buffer) {
+        int length = packet.readableBytes();
+        if (length < threshold) {
+            writeVarInt(out, 0);
+            out.writeBytes(packet);
+            return buffer;
+        }
+        writeVarInt(out, length);
+        int outputOffset = 0;
+        if (packet.hasArray()) {
+            deflater.setInput(packet.array(), packet.arrayOffset() + packet.readerIndex(), length);
+        } else {
+            // The output is deflated into the array right after the input
+            outputOffset = length;
+            buffer = ensureCapacity(buffer, length + (out.hasArray() ? 0 : DEFLATE_CHUNK));
+            packet.getBytes(packet.readerIndex(), buffer, 0, length);
+            deflater.setInput(buffer, 0, length);
+        }
+        packet.skipBytes(length);
+        deflater.finish();
+        if (out.hasArray()) {
+            while (!deflater.finished()) {
+                out.ensureWritable(DEFLATE_CHUNK);
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                        out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+            }
+        } else {
+            buffer = ensureCapacity(buffer, outputOffset + DEFLATE_CHUNK);
+            while (!deflater.finished()) {
+                out.writeBytes(buffer, outputOffset, deflater.deflate(buffer, outputOffset, DEFLATE_CHUNK));
+            }
+        }
+        deflater.reset();
+        return buffer;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size) {
+        return buffer == null || buffer.length < size ? new byte[size] : buffer;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+}
@@ -0,0 +1,253 @@
+package com.replaymod.replayserver.io;
+
+import com.google.common.hash.HashCode;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replaystudio.PacketData;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerChunkDataPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.world.ServerMultiChunkDataPacket;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * All packets of a replay, decoded and held in memory.
+ * Instances are immutable and shared between all sessions playing the same replay, each of which keeps its own
+ * position (index) into the timeline.
+ * Packets have already been passed through a {@link PacketFilter}. Dropped packets are never decoded and keep their
+ * index in the timeline, so indices still match those of the packet stream.
+ * When decoding lazily, only packets which are rewritten by the filter are decoded, all others are kept as
+ * {@link RawPacket}s.
+ * Chunk packets may be shared with other timelines through a {@link ChunkStore}, their size is then not included in
+ * {@link #getByteSize()}.
+ */
+public class PacketTimeline {
+    /**
+     * Size of the buffers raw and pre-encoded packets are stored in.
+     */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final int CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerChunkDataPacket.class);
+    private static final int MULTI_CHUNK_DATA_ID = PacketCodec.getInstance().getId(ServerMultiChunkDataPacket.class);
+
+    private final PacketData[] packets;
+    private final int[] ids;
+    private final ByteBuf[] encoded;
+    private final int compressionThreshold;
+    private final long byteSize;
+
+    private PacketTimeline(PacketData[] packets, int[] ids, ByteBuf[] encoded, int compressionThreshold,
+                           long byteSize) {
+        this.packets = packets;
+        this.ids = ids;
+        this.encoded = encoded;
+        this.compressionThreshold = compressionThreshold;
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * Returns the number of packets in this timeline.
+     * @return Number of packets
+     */
+    public int size() {
+        return packets.length;
+    }
+
+    /**
+     * Returns the filtered packet at the specified index.
+     * The returned packet is shared and must not be modified.
+     * @param index Index of the packet
+     * @return The packet and its timestamp or {@code null} if the packet has been dropped by the filter
+     */
+    public PacketData get(int index) {
+        return packets[index];
+    }
+
+    /**
+     * Returns the id of the packet at the specified index.
+     * @param index Index of the packet
+     * @return The packet id
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns whether this timeline contains pre-encoded packets.
+     * @return {@code true} if {@link #getEncoded(int)} is available, {@code false} otherwise
+     */
+    public boolean isPreEncoded() {
+        return encoded != null;
+    }
+
+    /**
+     * Returns the compression threshold used for the pre-encoded packets.
+     * @return The threshold, negative if the packets have not been compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Returns the packet at the specified index exactly as it is sent over the network (compressed and prefixed
+     * with its length). The returned buffer is shared, must not be modified and cannot be released.
+     * To write it to a channel, a {@link ByteBuf#duplicate()} has to be used.
+     * @param index Index of the packet
+     * @return The encoded packet or {@code null} if the packet has been dropped by the filter
+     */
+    public ByteBuf getEncoded(int index) {
+        return encoded[index];
+    }
+
+    /**
+     * Returns the size of the replay's packet stream this timeline has been decoded from, including the size of
+     * pre-encoded packets.
+     * @return Size in bytes
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * Reads, filters and decodes all packets from the specified raw packet stream.
+     * Each packet in the stream is prefixed with its timestamp and length.
+     * @param in The raw packet stream, e.g. as returned by {@link com.replaymod.replaystudio.replay.ReplayFile#getPacketData()}
+     * @param filter The filter applied to all packets
+     * @param lazy Whether only packets which are rewritten by the filter should be decoded
+     * @param preEncode Whether packets should also be kept in their encoded form, see {@link #getEncoded(int)}
+     * @param compressionThreshold Compression threshold for pre-encoded packets, negative to disable compression
+     * @return The timeline
+     */
+    public static PacketTimeline read(InputStream in, PacketFilter filter, boolean lazy, boolean preEncode,
+                                      int compressionThreshold) throws IOException {
+        return read(in, filter, lazy, preEncode, compressionThreshold, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads, filters and decodes all packets up to the specified time from the specified raw packet stream.
+     * The resulting timeline contains the first packets of the replay, see
+     * {@link #read(InputStream, PacketFilter, boolean, boolean, int)}.
+     * @param untilTime Time of the last packet to be read
+     * @return The timeline
+     */
+    public static PacketTimeline read(InputStream in, PacketFilter filter, boolean lazy, boolean preEncode,
+                                      int compressionThreshold, int untilTime) throws IOException {
+        return read(in, filter, lazy, preEncode, compressionThreshold, untilTime, null);
+    }
+
+    /**
+     * Reads, filters and decodes all packets up to the specified time from the specified raw packet stream, sharing
+     * chunk packets through the specified store, see {@link #read(InputStream, PacketFilter, boolean, boolean, int)}.
+     * @param untilTime Time of the last packet to be read
+     * @param chunkStore Store for raw and pre-encoded chunk packets, {@code null} to not share them
+     * @return The timeline
+     */
+    public static PacketTimeline read(InputStream in, PacketFilter filter, boolean lazy, boolean preEncode,
+                                      int compressionThreshold, int untilTime, ChunkStore chunkStore)
+            throws IOException {
+        PacketCodec codec = PacketCodec.getInstance();
+        DataInputStream dataIn = new DataInputStream(in);
+        List<PacketData> packets = new ArrayList<>();
+        IntArrayList ids = new IntArrayList();
+        List<ByteBuf> encoded = preEncode ? new ArrayList<>() : null;
+        Deflater deflater = preEncode ? DeflaterPool.acquire(Deflater.DEFAULT_COMPRESSION) : null;
+        ByteBuf frame = Unpooled.buffer();
+        ByteBuf slab = null;
+        ByteBuf rawSlab = null;
+        long byteSize = 0;
+        byte[] buf = new byte[4096];
+        try {
+            while (true) {
+                int time;
+                try {
+                    time = dataIn.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (time > untilTime) {
+                    break;
+                }
+                int length = dataIn.readInt();
+                if (buf.length < length) {
+                    buf = new byte[Math.max(length, buf.length * 2)];
+                }
+                dataIn.readFully(buf, 0, length);
+                ByteBuf byteBuf = Unpooled.wrappedBuffer(buf, 0, length);
+                int id = codec.peekId(byteBuf);
+                ids.add(id);
+                boolean shared = chunkStore != null && (id == CHUNK_DATA_ID || id == MULTI_CHUNK_DATA_ID);
+                byteSize += shared ? 8 : 8 + length;
+                if (filter.isDropped(id)) {
+                    // No need to decode packets which are never sent
+                    packets.add(null);
+                    if (preEncode) {
+                        encoded.add(null);
+                    }
+                    continue;
+                }
+                Packet decoded;
+                if (shared && lazy && !filter.isRewritten(id)) {
+                    HashCode hash = ChunkStore.hash(byteBuf);
+                    decoded = new RawPacket(id, chunkStore.intern(byteBuf, hash), hash);
+                } else if (lazy && !filter.isRewritten(id)) {
+                    if (rawSlab == null || rawSlab.writableBytes() < length) {
+                        rawSlab = Unpooled.wrappedBuffer(new byte[Math.max(SLAB_SIZE, length)]);
+                        rawSlab.clear();
+                    }
+                    int offset = rawSlab.writerIndex();
+                    rawSlab.writeBytes(byteBuf, 0, length);
+                    decoded = new RawPacket(id, rawSlab.slice(offset, length));
+                } else {
+                    decoded = codec.decode(byteBuf);
+                }
+                Packet packet = filter.apply(id, decoded);
+                packets.add(packet != null ? new PacketData(time, packet) : null);
+
+                if (preEncode) {
+                    if (packet == null) {
+                        encoded.add(null);
+                        continue;
+                    }
+                    if (packet != decoded) {
+                        // Packet has been rewritten, encode the replacement
+                        byteBuf = Unpooled.buffer();
+                        codec.encode(packet, byteBuf);
+                    } else {
+                        byteBuf.readerIndex(0);
+                    }
+                    frame.clear();
+                    codec.frame(byteBuf, compressionThreshold, deflater, frame);
+                    if (shared) {
+                        encoded.add(chunkStore.intern(frame));
+                        continue;
+                    }
+                    int frameLength = frame.readableBytes();
+                    if (slab == null || slab.writableBytes() < frameLength) {
+                        // Direct buffers allocated by the JVM are freed once the timeline is garbage collected
+                        slab = Unpooled.wrappedBuffer(ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, frameLength)));
+                        slab.clear();
+                    }
+                    int offset = slab.writerIndex();
+                    slab.writeBytes(frame);
+                    encoded.add(Unpooled.unreleasableBuffer(slab.slice(offset, frameLength)));
+                    byteSize += frameLength;
+                }
+            }
+        } finally {
+            if (deflater != null) {
+                DeflaterPool.release(deflater);
+            }
+        }
+        return new PacketTimeline(packets.toArray(new PacketData[packets.size()]), ids.toIntArray(),
+                preEncode ? encoded.toArray(new ByteBuf[encoded.size()]) : null, compressionThreshold, byteSize);
+    }
+}
@@ -0,0 +1,273 @@
+package com.replaymod.replayserver.io;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.replaymod.replayserver.filter.PacketFilter;
+import com.replaymod.replayserver.index.JoinSnapshot;
+import com.replaymod.replayserver.metrics.Histogram;
+import com.replaymod.replayserver.metrics.Metrics;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes each replay once and shares the resulting {@link PacketTimeline} between all sessions playing it.
+ * Timelines are reference counted. Once no longer referenced, they are retained until the total size of all cached
+ * timelines exceeds the byte budget, at which point the least recently used ones are evicted.
+ * The budget can be configured with the {@code timelinecache.budget} system property (in bytes, defaults to 512MiB).
+ * Optionally, only packets which need to be inspected are decoded, see {@link RawPacket}, and packets are also
+ * pre-encoded so they can be sent to all sessions without being encoded again, see
+ * {@link PacketTimeline#getEncoded(int)}.
+ * Along with each timeline, the {@link JoinSnapshot} of the world as first seen by joining users is built, unless the
+ * world is not loaded within the time configured by the {@code timelinecache.joinsnapshot} system property (in
+ * milliseconds of replay time, defaults to 10 seconds, 0 disables snapshots).
+ */
+public class PacketTimelineCache {
+    private static final Logger logger = Logger.getLogger(PacketTimelineCache.class.getName());
+    private static final Histogram DECODE_TIME = Metrics.histogram("replayserver_timeline_decode_milliseconds",
+            "Time it took to read and decode the timeline of a replay");
+
+    private final long budget = Long.getLong("timelinecache.budget", 512 * 1024 * 1024);
+    private final int joinSnapshotTime = Integer.getInteger("timelinecache.joinsnapshot", 10000);
+    private final PacketFilter filter;
+    private final boolean lazy;
+    private final boolean preEncode;
+    private final int compressionThreshold;
+    private final ChunkStore chunkStore;
+    private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "PacketTimeline");
+                thread.setDaemon(true);
+                return thread;
+            }));
+
+    /**
+     * All cached timelines in access order. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Total size of all loaded timelines. Guarded by {@code this}.
+     */
+    private long totalSize;
+
+    /**
+     * @param filter The filter applied to all packets when a timeline is loaded
+     * @param lazy Whether only packets which are rewritten by the filter should be decoded
+     * @param preEncode Whether packets should be pre-encoded
+     * @param compressionThreshold Compression threshold used for pre-encoding, negative to disable compression
+     */
+    public PacketTimelineCache(PacketFilter filter, boolean lazy, boolean preEncode, int compressionThreshold) {
+        this(filter, lazy, preEncode, compressionThreshold, null);
+    }
+
+    /**
+     * @param filter The filter applied to all packets when a timeline is loaded
+     * @param lazy Whether only packets which are rewritten by the filter should be decoded
+     * @param preEncode Whether packets should be pre-encoded
+     * @param compressionThreshold Compression threshold used for pre-encoding, negative to disable compression
+     * @param chunkStore Store through which chunk packets are shared between timelines, {@code null} to not share them
+     */
+    public PacketTimelineCache(PacketFilter filter, boolean lazy, boolean preEncode, int compressionThreshold,
+                               ChunkStore chunkStore) {
+        this.filter = filter;
+        this.lazy = lazy;
+        this.preEncode = preEncode;
+        this.compressionThreshold = compressionThreshold;
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * Acquires a reference to the timeline of the replay with the specified id, loading it if necessary.
+     * The replay file is opened solely for loading the timeline and closed once it has been loaded, so the cached
+     * timeline does not depend on the replay file of any particular session.
+     * The reference has to be released once it is no longer used.
+     * @param id Unique id of the replay
+     * @param opener Opens the replay file, may return {@code null} if the replay no longer exists
+     * @return Reference to the timeline
+     */
+    public synchronized Reference acquire(String id, Callable<ReplayFile> opener) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            Entry newEntry = entry = new Entry(id);
+            entries.put(id, entry);
+            entry.future = executor.submit(() -> {
+                ReplayFile replayFile = opener.call();
+                if (replayFile == null) {
+                    throw new IOException("Replay " + id + " not found");
+                }
+                try (ReplayInputStream in = replayFile.getPacketData()) {
+                    long start = System.currentTimeMillis();
+                    PacketTimeline timeline = PacketTimeline.read(in, filter, lazy, preEncode, compressionThreshold,
+                            Integer.MAX_VALUE, chunkStore);
+                    DECODE_TIME.record(System.currentTimeMillis() - start);
+                    logger.fine(() -> "Decoded timeline of " + id + " (" + timeline.size() + " packets, "
+                            + timeline.getByteSize() + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+                    if (joinSnapshotTime > 0) {
+                        JoinSnapshot snapshot = JoinSnapshot.build(timeline, filter, joinSnapshotTime);
+                        if (snapshot != null) {
+                            logger.fine(() -> "Built join snapshot of " + id + " (" + snapshot.size() + " packets, "
+                                    + snapshot.getByteSize() + " bytes) at " + snapshot.getTime() + "ms");
+                        }
+                        newEntry.snapshot = snapshot;
+                    }
+                    return timeline;
+                } finally {
+                    replayFile.close();
+                }
+            });
+            entry.future.addListener(() -> loaded(newEntry), MoreExecutors.directExecutor());
+        }
+        entry.refCount++;
+        return new Reference(entry);
+    }
+
+    private synchronized void loaded(Entry entry) {
+        try {
+            long size = entry.future.get().getByteSize();
+            if (entry.snapshot != null) {
+                size += entry.snapshot.getByteSize();
+            }
+            if (entries.get(entry.id) != entry) {
+                return; // Invalidated while loading, only kept alive by its references
+            }
+            entry.size = size;
+            totalSize += entry.size;
+            evict();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.log(Level.WARNING, "Failed to decode timeline of " + entry.id, e);
+            entries.remove(entry.id, entry);
+        }
+    }
+
+    /**
+     * Discards the cached timeline of the replay with the specified id, e.g. because the replay has changed.
+     * Existing references keep using the discarded timeline, subsequent calls to {@link #acquire(String, Callable)}
+     * load the replay again.
+     * @param id Unique id of the replay
+     */
+    public synchronized void invalidate(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            totalSize -= entry.size;
+        }
+    }
+
+    /**
+     * Returns whether the timeline of the replay with the specified id has been loaded and is still cached.
+     * @param id Unique id of the replay
+     * @return {@code true} if the timeline is loaded, {@code false} otherwise
+     */
+    public synchronized boolean isLoaded(String id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.future.isDone();
+    }
+
+    /**
+     * Returns the total size of all loaded timelines.
+     * @return Size in bytes
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.refCount--;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (totalSize > budget && iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.refCount == 0 && entry.size > 0) {
+                logger.fine(() -> "Evicting timeline of " + entry.id);
+                iter.remove();
+                totalSize -= entry.size;
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String id;
+        private ListenableFuture<PacketTimeline> future;
+        /**
+         * Set by the loader before the future completes.
+         */
+        private volatile JoinSnapshot snapshot;
+        private int refCount;
+        private long size;
+
+        private Entry(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A reference to a shared timeline.
+     */
+    public class Reference {
+        private final Entry entry;
+        private boolean released;
+
+        private Reference(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the timeline if it has been loaded.
+         * @return The timeline or {@code null} if it is still loading or loading has failed
+         */
+        public PacketTimeline getIfLoaded() {
+            ListenableFuture<PacketTimeline> future = entry.future;
+            if (!future.isDone()) {
+                return null;
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Waits for the timeline to be loaded.
+         * @return The timeline
+         * @throws IOException If loading has failed
+         */
+        public PacketTimeline get() throws IOException, InterruptedException {
+            try {
+                return entry.future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to load timeline of " + entry.id, e.getCause());
+            }
+        }
+
+        /**
+         * Returns the join snapshot of the timeline if it has been loaded.
+         * @return The snapshot or {@code null} if the timeline is still loading, loading has failed or the replay
+         * has no snapshot
+         */
+        public JoinSnapshot getJoinSnapshot() {
+            return entry.future.isDone() ? entry.snapshot : null;
+        }
+
+        /**
+         * Releases this reference. Subsequent calls have no effect.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                PacketTimelineCache.this.release(entry);
+            }
+        }
+    }
+}
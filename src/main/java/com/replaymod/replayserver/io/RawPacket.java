@@ -0,0 +1,117 @@
+package com.replaymod.replayserver.io;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.spacehq.packetlib.io.NetInput;
+import org.spacehq.packetlib.io.NetOutput;
+import org.spacehq.packetlib.packet.Packet;
+
+import java.io.IOException;
+
+/**
+ * A packet which has not been decoded and is forwarded as is.
+ * Raw packets cannot be sent through the regular packet codec as their class has no packet id. They have to be
+ * written to the channel as bytes or be decoded first, see {@link #decoded(Packet)}.
+ */
+public class RawPacket implements Packet {
+    private final int id;
+    private final ByteBuf data;
+    /**
+     * Hash of {@link #data}, computed on first use.
+     */
+    private volatile HashCode contentHash;
+
+    /**
+     * @param id The packet id
+     * @param data Buffer containing the packet id and payload, must not be modified afterwards
+     */
+    public RawPacket(int id, ByteBuf data) {
+        this(id, data, null);
+    }
+
+    /**
+     * @param id The packet id
+     * @param data Buffer containing the packet id and payload, must not be modified afterwards
+     * @param contentHash Hash of the data as computed by {@link ChunkStore#hash(ByteBuf)}, {@code null} if unknown
+     */
+    public RawPacket(int id, ByteBuf data, HashCode contentHash) {
+        this.id = id;
+        this.data = Unpooled.unreleasableBuffer(data);
+        this.contentHash = contentHash;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the packet id and payload, exactly as stored in the replay file.
+     * The returned buffer is shared, must not be modified and cannot be released.
+     * To write it to a channel, a {@link ByteBuf#duplicate()} has to be used.
+     * @return The encoded packet
+     */
+    public ByteBuf getData() {
+        return data;
+    }
+
+    /**
+     * Returns the hash of the packet id and payload, see {@link ChunkStore#hash(ByteBuf)}.
+     * The hash is only computed once.
+     * @return The content hash
+     */
+    public HashCode getContentHash() {
+        HashCode hash = contentHash;
+        if (hash == null) {
+            contentHash = hash = ChunkStore.hash(data);
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes this packet. Each call decodes the packet again.
+     * @return The decoded packet
+     */
+    public Packet decode() {
+        try {
+            return PacketCodec.getInstance().decode(data.duplicate());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Returns the specified packet in its decoded form.
+     * @param packet The packet, may be raw
+     * @return The decoded packet if the packet is raw, otherwise the packet itself
+     */
+    public static Packet decoded(Packet packet) {
+        return packet instanceof RawPacket ? ((RawPacket) packet).decode() : packet;
+    }
+
+    @Override
+    public void read(NetInput in) throws IOException {
+        throw new UnsupportedOperationException("Raw packets cannot be read");
+    }
+
+    @Override
+    public void write(NetOutput out) throws IOException {
+        ByteBuf buf = data.duplicate();
+        // Skip the packet id, it is written by the codec
+        while ((buf.readByte() & 0x80) != 0);
+        byte[] payload = new byte[buf.readableBytes()];
+        buf.readBytes(payload);
+        out.writeBytes(payload);
+    }
+
+    @Override
+    public boolean isPriority() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "RawPacket{id=" + id + ", length=" + data.readableBytes() + "}";
+    }
+}
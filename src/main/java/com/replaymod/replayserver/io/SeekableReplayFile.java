@@ -0,0 +1,18 @@
+package com.replaymod.replayserver.io;
+
+import com.replaymod.replaystudio.replay.ReplayFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A replay file whose packet stream can be opened at any packet without reading all preceding packets.
+ */
+public interface SeekableReplayFile extends ReplayFile {
+    /**
+     * Opens the raw packet stream at the specified packet.
+     * @param packetIndex Index of the first packet to be read
+     * @return The stream in the same format as {@link #getPacketData()}
+     */
+    InputStream getPacketData(int packetIndex) throws IOException;
+}
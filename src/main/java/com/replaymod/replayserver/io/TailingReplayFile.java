@@ -0,0 +1,62 @@
+package com.replaymod.replayserver.io;
+
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A replay file reading its packets from a {@link LiveReplay} which is still being recorded.
+ * Everything else (meta data, markers, etc.) is read from the zip file, which usually only contains the meta data
+ * written when the recording started, if it exists at all.
+ */
+public class TailingReplayFile extends ZipReplayFile implements SeekableReplayFile {
+    private final Studio studio;
+    private final LiveReplay liveReplay;
+    private boolean closed;
+
+    /**
+     * @param studio The studio
+     * @param file The zip file containing everything but the packets
+     * @param liveReplay The packet stream being recorded, a reference to it (see {@link LiveReplay#retain()}) is
+     * passed to this replay file and released once it is closed
+     */
+    public TailingReplayFile(Studio studio, File file, LiveReplay liveReplay) throws IOException {
+        super(studio, file);
+        this.studio = studio;
+        this.liveReplay = liveReplay;
+    }
+
+    /**
+     * Returns the packet stream being recorded.
+     * @return The live replay
+     */
+    public LiveReplay getLiveReplay() {
+        return liveReplay;
+    }
+
+    @Override
+    public ReplayInputStream getPacketData() throws IOException {
+        return new ReplayInputStream(studio, liveReplay.openStream(0));
+    }
+
+    @Override
+    public InputStream getPacketData(int packetIndex) throws IOException {
+        return liveReplay.openStream(packetIndex);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                liveReplay.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.replaymod.replayserver.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count.
+ */
+public class Counter extends Metric {
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help) {
+        super(name, help);
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append("# HELP ").append(getName()).append(' ').append(getHelp()).append('\n');
+        out.append("# TYPE ").append(getName()).append(" counter\n");
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Number> values) {
+        values.put(getName(), get());
+    }
+}
@@ -0,0 +1,47 @@
+package com.replaymod.replayserver.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A value which can go up and down.
+ * Either updated explicitly or computed on demand by a supplier.
+ */
+public class Gauge extends Metric {
+    private final LongAdder value = new LongAdder();
+    private final LongSupplier supplier;
+
+    Gauge(String name, String help, LongSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier != null ? supplier : value::sum;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append("# HELP ").append(getName()).append(' ').append(getHelp()).append('\n');
+        out.append("# TYPE ").append(getName()).append(" gauge\n");
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Number> values) {
+        values.put(getName(), get());
+    }
+}
@@ -0,0 +1,129 @@
+package com.replaymod.replayserver.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, such as latencies.
+ * Values are counted in log-linear buckets (similar to HdrHistogram): Values below 16 are exact, larger ones are
+ * grouped into 8 buckets per power of two, i.e. quantiles are accurate to within 12.5%.
+ * Recording a value is lock- and allocation-free.
+ */
+public class Histogram extends Metric {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String help) {
+        super(name, help);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value which falls into the specified bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value The value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Retry
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound of the value at the specified quantile.
+     * @param quantile The quantile, between 0 and 1
+     * @return The value, 0 if no values have been recorded
+     */
+    public long getQuantile(double quantile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts[i] = buckets.get(i);
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        String name = getName();
+        out.append("# HELP ").append(name).append(' ').append(getHelp()).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(getQuantile(quantile)).append('\n');
+        }
+        out.append(name).append("_sum ").append(getSum()).append('\n');
+        out.append(name).append("_count ").append(getCount()).append('\n');
+        out.append("# TYPE ").append(name).append("_max gauge\n");
+        out.append(name).append("_max ").append(getMax()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Number> values) {
+        String name = getName();
+        values.put(name + "_count", getCount());
+        values.put(name + "_sum", getSum());
+        values.put(name + "_max", getMax());
+        for (int i = 0; i < QUANTILES.length; i++) {
+            values.put(name + "_" + QUANTILE_NAMES[i], getQuantile(QUANTILES[i]));
+        }
+    }
+}
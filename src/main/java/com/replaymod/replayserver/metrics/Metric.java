@@ -0,0 +1,36 @@
+package com.replaymod.replayserver.metrics;
+
+import java.util.Map;
+
+/**
+ * A named metric.
+ */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * Appends this metric in the Prometheus text exposition format.
+     * @param out The output
+     */
+    abstract void writePrometheus(StringBuilder out);
+
+    /**
+     * Adds the current values of this metric to the specified map, keyed by name.
+     * @param values The map of values
+     */
+    abstract void collect(Map<String, Number> values);
+}
@@ -0,0 +1,112 @@
+package com.replaymod.replayserver.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of all metrics of the server.
+ * Metrics are usually created once and kept in static fields of the class they are updated from, much like loggers.
+ * They can be exported in the Prometheus text format (see {@link MetricsHttpServer}) and through JMX.
+ */
+public class Metrics {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a metric, replacing any previous metric with the same name.
+     */
+    private static <T extends Metric> T register(T metric) {
+        metrics.put(metric.getName(), metric);
+        return metric;
+    }
+
+    /**
+     * Creates and registers a new counter.
+     * @param name Unique name of the counter
+     * @param help Description of the counter
+     * @return The counter
+     */
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * Creates and registers a new gauge which is updated explicitly.
+     * @param name Unique name of the gauge
+     * @param help Description of the gauge
+     * @return The gauge
+     */
+    public static Gauge gauge(String name, String help) {
+        return register(new Gauge(name, help, null));
+    }
+
+    /**
+     * Creates and registers a new gauge whose value is computed whenever it is read.
+     * @param name Unique name of the gauge
+     * @param help Description of the gauge
+     * @param supplier Supplies the value, must be thread-safe
+     * @return The gauge
+     */
+    public static Gauge gauge(String name, String help, LongSupplier supplier) {
+        return register(new Gauge(name, help, supplier));
+    }
+
+    /**
+     * Creates and registers a new histogram.
+     * @param name Unique name of the histogram, should include the unit of its values
+     * @param help Description of the histogram
+     * @return The histogram
+     */
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     * @return The metrics
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics.values()) {
+            metric.writePrometheus(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the current values of all metrics, keyed by name.
+     * Histograms are split into multiple values.
+     * @return The values
+     */
+    public static Map<String, Number> collect() {
+        Map<String, Number> values = new ConcurrentSkipListMap<>();
+        for (Metric metric : metrics.values()) {
+            metric.collect(values);
+        }
+        return values;
+    }
+
+    /**
+     * Registers an MBean exposing all metrics as attributes under {@code com.replaymod.replayserver:type=Metrics}.
+     */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("com.replaymod.replayserver:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Failed to register metrics MBean:", e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.replaymod.replayserver.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Serves all {@link Metrics} in the Prometheus text format on {@code /metrics}.
+ * Other plain text status pages may be added with {@link #serve(String, Supplier)}.
+ */
+public class MetricsHttpServer {
+    private final HttpServer server;
+
+    /**
+     * Creates and starts a new metrics server.
+     * @param host Host to bind to
+     * @param port Port to bind to
+     */
+    public MetricsHttpServer(String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        serve("/metrics", "text/plain; version=0.0.4; charset=utf-8", Metrics::toPrometheus);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Serves plain text generated on each request on the specified path, in addition to the metrics.
+     * @param path The path
+     * @param body Generates the text
+     */
+    public void serve(String path, Supplier<String> body) {
+        serve(path, "text/plain; charset=utf-8", body);
+    }
+
+    private void serve(String path, String contentType, Supplier<String> text) {
+        server.createContext(path, exchange -> {
+            byte[] body = text.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    /**
+     * Stops this server.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -14,17 +14,60 @@ import java.util.logging.Logger;
 
 /**
  * A replay database serving replay ids as files from a configurable folder.
+ * Unless the {@code filereplaydatabase.library} system property is set to {@code false}, ids are resolved through the
+ * {@link ReplayLibrary} of the folder instead of checking the file system on each login. Only {@code .mcpr} files are
+ * served in that case.
  */
 public class FileReplayDatabase implements IReplayDatabase {
     private static final Logger logger = Logger.getLogger(FileReplayDatabase.class.getName());
 
     private final File folder;
+    private final ReplayLibrary library;
 
     public FileReplayDatabase() {
         folder = new File(System.getProperty("filereplaydatabase.folder", "replays"));
         if (!folder.exists()) {
             throw new IllegalArgumentException("Folder does not exists: " + folder.getAbsolutePath());
         }
+        boolean useLibrary = Boolean.parseBoolean(System.getProperty("filereplaydatabase.library", "true"));
+        library = useLibrary ? ReplayLibrary.get(folder) : null;
+    }
+
+    /**
+     * Returns the folder replay files are served from.
+     * @return The folder
+     */
+    protected File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Returns the library replay ids are resolved through.
+     * @return The library or {@code null} if ids are resolved by checking the file system
+     */
+    public ReplayLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * Returns the file of the replay with the specified id, kicking the user if there is no such replay.
+     * @param user The connecting user, {@code null} if the file is opened by the server itself
+     * @param id Unique id of the replay file
+     * @return The file or {@code null} if there is no such replay
+     */
+    protected File getFile(IUser user, String id) {
+        File file = new File(folder, id);
+        if (library != null ? library.get(id) == null : !file.isFile()) {
+            logger.info("User disconnected due to non existant replay: " + file.getAbsolutePath());
+            if (user != null) {
+                user.kick(new TextMessage("No such replay: " + id));
+            }
+            return null;
+        }
+        if (library != null && user != null) {
+            library.recordRequest(id);
+        }
+        return file;
     }
 
     @Override
@@ -32,19 +75,43 @@ public class FileReplayDatabase implements IReplayDatabase {
         ReplayStudio replayStudio = new ReplayStudio();
         replayStudio.setWrappingEnabled(false); // Server does not support wrapping
 
-        File file = new File(folder, id);
-        if (!file.exists() || !file.isFile()) {
-            logger.info("User disconnected due to non existant replay: " + file.getAbsolutePath());
-            user.kick(new TextMessage("No such replay: " + id));
+        File file = getFile(user, id);
+        if (file == null) {
             return null;
         }
+        return openZip(replayStudio, user, id, file);
+    }
 
+    /**
+     * Opens the specified replay file as it is, kicking the user if it is corrupted.
+     * @param replayStudio The studio
+     * @param user The connecting user, {@code null} if the file is opened by the server itself
+     * @param id Unique id of the replay file
+     * @param file The file, see {@link #getFile(IUser, String)}
+     * @return The replay file or {@code null} if it cannot be opened
+     */
+    protected ReplayFile openZip(ReplayStudio replayStudio, IUser user, String id, File file) {
         try {
-            return new ZipReplayFile(replayStudio, new File(folder, id));
+            return new ZipReplayFile(replayStudio, file);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error creating replay file with id " + id, e);
-            user.kick(new TextMessage("Replay file corrupted: " + id));
+            if (user != null) {
+                user.kick(new TextMessage("Replay file corrupted: " + id));
+            }
             return null;
         }
     }
+
+    @Override
+    public File getIndexFile(String id) {
+        File file = new File(folder, id);
+        File indexFile = new File(folder, id + ".idx");
+        if (indexFile.exists() && indexFile.lastModified() < file.lastModified()) {
+            logger.info("Deleting outdated seek index " + indexFile);
+            if (!indexFile.delete()) {
+                return null;
+            }
+        }
+        return indexFile;
+    }
 }
@@ -0,0 +1,33 @@
+package com.replaymod.replayserver.selectors;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.replaymod.replayserver.IReplaySelector;
+import com.replaymod.replayserver.IUser;
+import org.spacehq.mc.auth.data.GameProfile;
+import org.spacehq.mc.protocol.MinecraftConstants;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+
+import java.io.File;
+
+/**
+ * A replay selector which picks the replay named after the name the user logged in with, e.g. a user logging in as
+ * {@code match42} watches {@code match42.mcpr}.
+ * Names are resolved through the {@link ReplayLibrary} of the folder configured for the {@link FileReplayDatabase},
+ * users without a matching replay are kicked.
+ */
+public class LibraryReplaySelector implements IReplaySelector {
+    private final ReplayLibrary library =
+            ReplayLibrary.get(new File(System.getProperty("filereplaydatabase.folder", "replays")));
+
+    @Override
+    public ListenableFuture<String> getReplayId(IUser user) {
+        GameProfile profile = user.getSession().getFlag(MinecraftConstants.PROFILE_KEY);
+        String id = profile.getName() + ".mcpr";
+        if (library.get(id) == null) {
+            user.kick(new TextMessage("No such replay: " + profile.getName()));
+            return Futures.immediateFuture(null);
+        }
+        return Futures.immediateFuture(id);
+    }
+}
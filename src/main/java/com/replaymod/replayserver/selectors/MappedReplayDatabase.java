@@ -0,0 +1,139 @@
+package com.replaymod.replayserver.selectors;
+
+import com.replaymod.replayserver.IUser;
+import com.replaymod.replayserver.io.MappedReplay;
+import com.replaymod.replayserver.io.MappedReplayFile;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A replay database serving replay ids as files from a configurable folder, like {@link FileReplayDatabase}.
+ * On first access, the packets of each replay are converted into a {@link MappedReplay} which is stored next to the
+ * replay file and shared between all sessions playing the replay.
+ * If conversion fails, the replay file is served as is.
+ */
+public class MappedReplayDatabase extends FileReplayDatabase {
+    private static final Logger logger = Logger.getLogger(MappedReplayDatabase.class.getName());
+
+    /**
+     * Currently mapped replays by id. Guarded by {@code this}.
+     */
+    private final Map<String, Mapping> mappings = new HashMap<>();
+
+    @Override
+    public ReplayFile getReplayFile(IUser user, String id) {
+        ReplayStudio replayStudio = new ReplayStudio();
+        replayStudio.setWrappingEnabled(false); // Server does not support wrapping
+
+        File file = getFile(user, id);
+        if (file == null) {
+            return null;
+        }
+
+        MappedReplay mappedReplay;
+        try {
+            mappedReplay = getMappedReplay(replayStudio, id, file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error mapping replay file with id " + id + ", serving zip file instead", e);
+            return openZip(replayStudio, user, id, file);
+        }
+
+        try {
+            return new MappedReplayFile(replayStudio, file, mappedReplay);
+        } catch (IOException e) {
+            mappedReplay.release();
+            logger.log(Level.WARNING, "Error creating replay file with id " + id, e);
+            if (user != null) {
+                user.kick(new TextMessage("Replay file corrupted: " + id));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the mapped packets of the specified replay file, converting the replay file if necessary.
+     * Conversions of different replays may run concurrently.
+     * @return The mapped packets, retained for the caller (see {@link MappedReplay#retain()})
+     */
+    private MappedReplay getMappedReplay(ReplayStudio replayStudio, String id, File file) throws IOException {
+        while (true) {
+            Mapping mapping;
+            Mapping replaced = null;
+            synchronized (this) {
+                mapping = mappings.get(id);
+                if (mapping == null || mapping.lastModified != file.lastModified()) {
+                    replaced = mapping;
+                    mapping = new Mapping(file.lastModified());
+                    mappings.put(id, mapping);
+                }
+            }
+            if (replaced != null) {
+                // Unmapped once the sessions still reading the old version have closed their files
+                replaced.release();
+            }
+            synchronized (mapping) {
+                if (mapping.released) {
+                    continue; // Replaced by a newer version meanwhile
+                }
+                if (mapping.mappedReplay == null) {
+                    File mappedFile = new File(getFolder(), id + ".mapped");
+                    if (!mappedFile.exists() || mappedFile.lastModified() < file.lastModified()) {
+                        convert(replayStudio, file, mappedFile);
+                    }
+                    mapping.mappedReplay = MappedReplay.open(mappedFile);
+                }
+                // Cannot fail, the reference of the mapping is only released once it has been marked as released
+                mapping.mappedReplay.retain();
+                return mapping.mappedReplay;
+            }
+        }
+    }
+
+    private void convert(ReplayStudio replayStudio, File file, File mappedFile) throws IOException {
+        logger.info("Converting " + file + " to " + mappedFile);
+        long start = System.currentTimeMillis();
+        ZipReplayFile replayFile = new ZipReplayFile(replayStudio, file);
+        try (ReplayInputStream in = replayFile.getPacketData()) {
+            MappedReplay.write(in, mappedFile);
+        } finally {
+            replayFile.close();
+        }
+        logger.info("Converted " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * The current version of a mapped replay. Holds a reference to its {@link MappedReplay} until it is replaced.
+     */
+    private static class Mapping {
+        private final long lastModified;
+        /**
+         * Guarded by {@code this}.
+         */
+        private MappedReplay mappedReplay;
+        /**
+         * Whether this mapping has been replaced by a newer version. Guarded by {@code this}.
+         */
+        private boolean released;
+
+        private Mapping(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        private synchronized void release() {
+            released = true;
+            if (mappedReplay != null) {
+                mappedReplay.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.replaymod.replayserver.selectors;
+
+import com.replaymod.replayserver.index.SeekIndex;
+import com.replaymod.replayserver.index.SeekIndexCache;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Histogram;
+import com.replaymod.replayserver.metrics.Metrics;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+
+import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory index of all replays ({@code .mcpr} files) in a folder, so replay ids can be resolved without touching
+ * the disk.
+ *
+ * The folder is scanned once on startup and then watched for changes. New and modified replays are indexed in the
+ * background: their metadata is read and their seek index is built and stored next to them (where
+ * {@link FileReplayDatabase#getIndexFile(String)} expects it), so {@link SeekIndexCache} only has to read it.
+ * Replays are available as soon as they have been seen, their metadata once they have been indexed.
+ *
+ * The index and the number of requests for each replay are persisted in the {@code .replaylibrary} file in the
+ * folder, so only replays which changed while the server was not running have to be indexed again.
+ * Optionally, the most requested replays are read once on startup to get them into the page cache, configured with
+ * the {@code replaylibrary.warmup} system property (number of replays, defaults to 0).
+ */
+public class ReplayLibrary {
+    private static final Logger logger = Logger.getLogger(ReplayLibrary.class.getName());
+    private static final Counter INDEXED = Metrics.counter("replayserver_library_indexed_total",
+            "Number of replays indexed by the replay library");
+    private static final Histogram INDEX_TIME = Metrics.histogram("replayserver_library_index_milliseconds",
+            "Time it took to index a single replay");
+
+    private static final int MAGIC = 0x52534c42; // RSLB
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".mcpr";
+    private static final String INDEX_FILE = ".replaylibrary";
+
+    /**
+     * Time in milliseconds a replay file has to remain unchanged before it is indexed, so files which are still being
+     * copied are not indexed repeatedly.
+     */
+    private static final long INDEX_DELAY = 2000;
+    /**
+     * Time in seconds between two saves of the index, if it has changed.
+     */
+    private static final long SAVE_INTERVAL = 60;
+    private static final int WARM_UP = Integer.getInteger("replaylibrary.warmup", 0);
+
+    /**
+     * Libraries by absolute folder. Guarded by the class.
+     */
+    private static final Map<File, ReplayLibrary> instances = new HashMap<>();
+
+    private final File folder;
+    private final File indexFile;
+    private final Map<String, ReplayInfo> replays = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    /**
+     * Scheduled indexing of replays which have changed.
+     */
+    private final Map<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ReplayLibrary");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private WatchService watchService;
+    /**
+     * Whether the index has changed since it has last been saved.
+     */
+    private volatile boolean dirty;
+
+    private ReplayLibrary(File folder) {
+        this.folder = folder;
+        this.indexFile = new File(folder, INDEX_FILE);
+    }
+
+    /**
+     * Returns the library of the specified folder, scanning it and starting to watch it on first use.
+     * @param folder The folder
+     * @return The library
+     */
+    public static synchronized ReplayLibrary get(File folder) {
+        File key = folder.getAbsoluteFile();
+        ReplayLibrary library = instances.get(key);
+        if (library == null) {
+            library = new ReplayLibrary(key);
+            library.start();
+            instances.put(key, library);
+        }
+        return library;
+    }
+
+    private void start() {
+        long start = System.currentTimeMillis();
+        load();
+        // Start watching before scanning, so no change can slip through in between
+        try {
+            watchService = folder.toPath().getFileSystem().newWatchService();
+            folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread thread = new Thread(this::watch, "ReplayLibraryWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to watch " + folder + ", changes will not be picked up", e);
+        }
+        scan();
+        logger.info("Found " + replays.size() + " replays in " + folder + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        executor.scheduleWithFixedDelay(this::save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "ReplayLibrarySave"));
+        if (WARM_UP > 0) {
+            executor.execute(() -> warmUp(WARM_UP));
+        }
+    }
+
+    /**
+     * Returns the replay with the specified id.
+     * @param id Unique id of the replay, i.e. its file name
+     * @return The replay or {@code null} if there is no such replay
+     */
+    public ReplayInfo get(String id) {
+        return replays.get(id);
+    }
+
+    /**
+     * Returns all replays in this library.
+     * @return Unmodifiable view of all replays, updated as replays are added and removed
+     */
+    public Collection<ReplayInfo> getReplays() {
+        return Collections.unmodifiableCollection(replays.values());
+    }
+
+    /**
+     * Adds a listener which is called with the id of each replay which has been modified or removed, so anything
+     * derived from its previous content can be discarded.
+     * Listeners are called from the threads of this library and must not block.
+     * @param listener The listener
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    private void changed(String id) {
+        for (Consumer<String> listener : changeListeners) {
+            listener.accept(id);
+        }
+    }
+
+    /**
+     * Records a request for the specified replay, see {@link #getMostRequested(int)}.
+     * @param id Unique id of the replay
+     */
+    public void recordRequest(String id) {
+        requests.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+        dirty = true;
+    }
+
+    /**
+     * Returns the ids of the replays which have been requested most often.
+     * @param count Maximum number of ids to return
+     * @return The ids, most requested first
+     */
+    public List<String> getMostRequested(int count) {
+        return requests.entrySet().stream()
+                .filter(entry -> replays.containsKey(entry.getKey()))
+                .sorted(Comparator.comparingInt((Map.Entry<String, AtomicInteger> entry) -> entry.getValue().get())
+                        .reversed())
+                .limit(count)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isReplay(String name) {
+        return name.endsWith(EXTENSION) && !name.startsWith(".");
+    }
+
+    /**
+     * Adds all replays in the folder and removes the ones which no longer exist.
+     */
+    private void scan() {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            logger.warning("Failed to list replays in " + folder);
+            return;
+        }
+        Set<String> found = new HashSet<>();
+        for (File file : files) {
+            if (isReplay(file.getName()) && file.isFile()) {
+                found.add(file.getName());
+                update(file.getName(), file);
+            }
+        }
+        for (String id : replays.keySet()) {
+            if (!found.contains(id)) {
+                remove(id);
+            }
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events have been lost, fall back to comparing the whole folder
+                    executor.execute(this::scan);
+                    continue;
+                }
+                String id = ((Path) event.context()).getFileName().toString();
+                if (!isReplay(id)) {
+                    continue;
+                }
+                File file = new File(folder, id);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE || !file.isFile()) {
+                    remove(id);
+                } else {
+                    update(id, file);
+                }
+            }
+            if (!key.reset()) {
+                logger.warning("Replay folder " + folder + " is no longer accessible, changes will not be picked up");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds or updates a replay, scheduling it to be indexed if it is new or has changed.
+     */
+    private void update(String id, File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        ReplayInfo info = replays.get(id);
+        if (info == null || info.size != size || info.lastModified != lastModified) {
+            boolean modified = info != null;
+            info = new ReplayInfo(id, size, lastModified);
+            replays.put(id, info);
+            dirty = true;
+            if (modified) {
+                changed(id);
+            }
+        }
+        if (!info.isIndexed()) {
+            scheduleIndex(id);
+        }
+    }
+
+    private void remove(String id) {
+        if (replays.remove(id) != null) {
+            logger.fine(() -> "Replay " + id + " has been removed");
+            dirty = true;
+            changed(id);
+        }
+        ScheduledFuture<?> future = pending.remove(id);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void scheduleIndex(String id) {
+        ScheduledFuture<?> previous = pending.put(id,
+                executor.schedule(() -> index(id), INDEX_DELAY, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void index(String id) {
+        pending.remove(id);
+        ReplayInfo info = replays.get(id);
+        File file = new File(folder, id);
+        if (info == null || info.isIndexed()) {
+            return;
+        }
+        if (System.currentTimeMillis() - file.lastModified() < INDEX_DELAY) {
+            scheduleIndex(id); // Still being written
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        ReplayStudio replayStudio = new ReplayStudio();
+        replayStudio.setWrappingEnabled(false); // Server does not support wrapping
+        try {
+            ZipReplayFile replayFile = new ZipReplayFile(replayStudio, file);
+            try {
+                ReplayMetaData metaData = replayFile.getMetaData();
+                SeekIndex seekIndex = null;
+                File seekIndexFile = new File(folder, id + ".idx");
+                if (seekIndexFile.exists() && seekIndexFile.lastModified() >= file.lastModified()) {
+                    try {
+                        seekIndex = SeekIndex.read(seekIndexFile);
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Failed to read seek index " + seekIndexFile + ", rebuilding", e);
+                    }
+                }
+                if (seekIndex == null) {
+                    seekIndex = SeekIndex.build(replayFile, SeekIndexCache.INTERVAL);
+                    seekIndex.write(seekIndexFile);
+                }
+                int duration = metaData.getDuration() > 0 ? metaData.getDuration() : seekIndex.getDuration();
+                String mcVersion = metaData.getMcVersion() != null ? metaData.getMcVersion() : "";
+                ReplayInfo indexed = new ReplayInfo(id, info.size, info.lastModified, duration, mcVersion,
+                        seekIndex.getPacketCount(), seekIndex.getKeyframes().size());
+                // Only replace the entry if the replay has not changed in the meantime
+                if (replays.replace(id, info, indexed)) {
+                    dirty = true;
+                    INDEXED.increment();
+                    INDEX_TIME.record(System.currentTimeMillis() - start);
+                    logger.fine(() -> "Indexed " + id + " (" + indexed.packetCount + " packets, "
+                            + indexed.keyframeCount + " keyframes) in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            } finally {
+                replayFile.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to index replay " + id, e);
+        }
+    }
+
+    /**
+     * Reads the most requested replays and their seek index, so they are in the page cache for the first sessions.
+     * @param count Number of replays
+     */
+    private void warmUp(int count) {
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        byte[] buf = new byte[1024 * 1024];
+        List<String> ids = getMostRequested(count);
+        for (String id : ids) {
+            // Mapped replays are read from their converted file, see MappedReplayDatabase
+            for (String name : new String[]{id, id + ".mapped", id + ".idx"}) {
+                File file = new File(folder, name);
+                if (!file.isFile()) {
+                    continue;
+                }
+                try (InputStream in = new FileInputStream(file)) {
+                    int read;
+                    while ((read = in.read(buf)) != -1) {
+                        bytes += read;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to warm up " + file, e);
+                }
+            }
+        }
+        long total = bytes;
+        logger.info(() -> "Warmed up " + ids.size() + " replays (" + total + " bytes) in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(indexFile))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a replay library index: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported replay library index version " + version + ": " + indexFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ReplayInfo info = new ReplayInfo(in.readUTF(), in.readLong(), in.readLong(), in.readInt(),
+                        in.readUTF(), in.readInt(), in.readInt());
+                int requestCount = in.readInt();
+                replays.put(info.id, info);
+                if (requestCount > 0) {
+                    requests.put(info.id, new AtomicInteger(requestCount));
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + indexFile + ", indexing all replays", e);
+            replays.clear();
+            requests.clear();
+        }
+    }
+
+    private synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        List<ReplayInfo> infos = new ArrayList<>(replays.values());
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(infos.size());
+                for (ReplayInfo info : infos) {
+                    out.writeUTF(info.id);
+                    out.writeLong(info.size);
+                    out.writeLong(info.lastModified);
+                    out.writeInt(info.duration);
+                    out.writeUTF(info.mcVersion);
+                    out.writeInt(info.packetCount);
+                    out.writeInt(info.keyframeCount);
+                    AtomicInteger requestCount = requests.get(info.id);
+                    out.writeInt(requestCount != null ? requestCount.get() : 0);
+                }
+            }
+            if (!tmpFile.renameTo(indexFile)) {
+                tmpFile.delete();
+                throw new IOException("Failed to move " + tmpFile + " to " + indexFile);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write " + indexFile, e);
+            dirty = true;
+        }
+    }
+
+    /**
+     * A replay in the library.
+     */
+    public static class ReplayInfo {
+        private final String id;
+        private final long size;
+        private final long lastModified;
+        private final int duration;
+        private final String mcVersion;
+        private final int packetCount;
+        private final int keyframeCount;
+
+        private ReplayInfo(String id, long size, long lastModified) {
+            this(id, size, lastModified, -1, "", -1, -1);
+        }
+
+        private ReplayInfo(String id, long size, long lastModified, int duration, String mcVersion, int packetCount,
+                           int keyframeCount) {
+            this.id = id;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.duration = duration;
+            this.mcVersion = mcVersion;
+            this.packetCount = packetCount;
+            this.keyframeCount = keyframeCount;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the size of the replay file.
+         * @return Size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns when the replay file has last been modified.
+         * @return Time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns whether the metadata of this replay has been read.
+         * Until then, only the size and modification time are available.
+         * @return {@code true} if indexed, {@code false} otherwise
+         */
+        public boolean isIndexed() {
+            return packetCount >= 0;
+        }
+
+        /**
+         * Returns the duration of the replay.
+         * @return Duration in milliseconds, -1 if not yet indexed
+         */
+        public int getDuration() {
+            return duration;
+        }
+
+        /**
+         * Returns the Minecraft version the replay has been recorded with.
+         * @return The version, empty if not yet indexed or unknown
+         */
+        public String getMcVersion() {
+            return mcVersion;
+        }
+
+        /**
+         * Returns the number of packets in the replay.
+         * @return Number of packets, -1 if not yet indexed
+         */
+        public int getPacketCount() {
+            return packetCount;
+        }
+
+        /**
+         * Returns the number of keyframes in the seek index of the replay.
+         * @return Number of keyframes, -1 if not yet indexed
+         */
+        public int getKeyframeCount() {
+            return keyframeCount;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.replaymod.replayserver.selectors;
+
+import com.replaymod.replayserver.IReplayDatabase;
+import com.replaymod.replayserver.IUser;
+import com.replaymod.replayserver.io.LiveReplay;
+import com.replaymod.replayserver.io.TailingReplayFile;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A replay database serving replays which are still being recorded from a configurable folder, following their packet
+ * streams like {@code tail -f}, see {@link LiveReplay}.
+ * The replay with id {@code match} consists of the packet stream {@code match.tmcpr}, which is appended to by the
+ * recorder, and optionally {@code match.mcpr} containing its meta data. Moving or deleting the packet stream ends the
+ * recording for all sessions playing it.
+ *
+ * The folder is watched for changes, every write to a packet stream wakes up the sessions waiting for it.
+ * Packet streams are closed once their recording has finished and all sessions playing them have been closed.
+ * The folder is configured with the {@code tailreplaydatabase.folder} system property.
+ */
+public class TailReplayDatabase implements IReplayDatabase {
+    private static final Logger logger = Logger.getLogger(TailReplayDatabase.class.getName());
+    private static final String EXTENSION = ".tmcpr";
+
+    private final File folder;
+    private final WatchService watchService;
+    /**
+     * Packet streams which have been opened by name. Guarded by {@code this}.
+     */
+    private final Map<String, LiveReplay> liveReplays = new HashMap<>();
+
+    public TailReplayDatabase() {
+        folder = new File(System.getProperty("tailreplaydatabase.folder", "live"));
+        if (!folder.exists()) {
+            throw new IllegalArgumentException("Folder does not exists: " + folder.getAbsolutePath());
+        }
+        try {
+            watchService = folder.toPath().getFileSystem().newWatchService();
+            folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to watch " + folder.getAbsolutePath(), e);
+        }
+        Thread thread = new Thread(this::watch, "TailReplayDatabase");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public ReplayFile getReplayFile(IUser user, String id) {
+        ReplayStudio replayStudio = new ReplayStudio();
+        replayStudio.setWrappingEnabled(false); // Server does not support wrapping
+
+        File file = new File(folder, id + EXTENSION);
+        LiveReplay liveReplay;
+        try {
+            liveReplay = getLiveReplay(file);
+        } catch (IOException e) {
+            logger.info("User disconnected due to non existant live replay: " + file.getAbsolutePath());
+            if (user != null) {
+                user.kick(new TextMessage("No such replay: " + id));
+            }
+            return null;
+        }
+
+        try {
+            return new TailingReplayFile(replayStudio, new File(folder, id + ".mcpr"), liveReplay);
+        } catch (IOException e) {
+            liveReplay.release();
+            logger.log(Level.WARNING, "Error creating replay file with id " + id, e);
+            if (user != null) {
+                user.kick(new TextMessage("Replay file corrupted: " + id));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the live replay of the specified packet stream, opening it if necessary.
+     * @param file The packet stream
+     * @return The live replay, retained for the caller
+     */
+    private synchronized LiveReplay getLiveReplay(File file) throws IOException {
+        LiveReplay liveReplay = liveReplays.get(file.getName());
+        if (liveReplay == null || !liveReplay.retain()) {
+            liveReplay = new LiveReplay(file);
+            liveReplay.retain();
+            liveReplays.put(file.getName(), liveReplay);
+        }
+        return liveReplay;
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events have been lost, check all streams
+                    synchronized (this) {
+                        liveReplays.values().forEach(LiveReplay::changed);
+                        liveReplays.values().removeIf(LiveReplay::isFinished);
+                    }
+                    continue;
+                }
+                String name = ((Path) event.context()).getFileName().toString();
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    LiveReplay liveReplay;
+                    synchronized (this) {
+                        liveReplay = liveReplays.remove(name);
+                    }
+                    if (liveReplay != null) {
+                        logger.info("Recording of " + liveReplay.getFile() + " has finished");
+                        liveReplay.finish();
+                    }
+                } else {
+                    LiveReplay liveReplay;
+                    synchronized (this) {
+                        liveReplay = liveReplays.get(name);
+                    }
+                    if (liveReplay != null) {
+                        liveReplay.changed();
+                        if (liveReplay.isFinished()) {
+                            // Stream has become unreadable, a new viewer opens it again
+                            logger.warning("Failed to follow " + liveReplay.getFile());
+                            synchronized (this) {
+                                liveReplays.remove(name, liveReplay);
+                            }
+                        }
+                    }
+                }
+            }
+            if (!key.reset()) {
+                logger.warning("Live replay folder " + folder + " is no longer accessible");
+                synchronized (this) {
+                    liveReplays.values().forEach(LiveReplay::finish);
+                    liveReplays.clear();
+                }
+                return;
+            }
+        }
+    }
+}
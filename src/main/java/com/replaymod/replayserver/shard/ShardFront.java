@@ -0,0 +1,307 @@
+package com.replaymod.replayserver.shard;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.replaymod.replayserver.IReplaySelector;
+import com.replaymod.replayserver.IReplaySession;
+import com.replaymod.replayserver.IUser;
+import com.replaymod.replayserver.ReplayServer;
+import com.replaymod.replayserver.metrics.Counter;
+import com.replaymod.replayserver.metrics.Gauge;
+import com.replaymod.replayserver.metrics.Histogram;
+import com.replaymod.replayserver.metrics.Metrics;
+import com.replaymod.replayserver.selectors.FixedReplaySelector;
+import com.replaymod.replaystudio.util.Location;
+import org.spacehq.mc.protocol.MinecraftConstants;
+import org.spacehq.mc.protocol.ServerLoginHandler;
+import org.spacehq.mc.protocol.data.game.values.MessageType;
+import org.spacehq.mc.protocol.data.message.Message;
+import org.spacehq.mc.protocol.data.message.TextMessage;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerChatPacket;
+import org.spacehq.mc.protocol.packet.ingame.server.ServerDisconnectPacket;
+import org.spacehq.packetlib.Server;
+import org.spacehq.packetlib.Session;
+import org.spacehq.packetlib.SessionFactory;
+import org.spacehq.packetlib.event.server.*;
+import org.spacehq.packetlib.packet.Packet;
+import org.spacehq.packetlib.packet.PacketProtocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Front end of a sharded deployment, accepting all clients and handing each one over to the node which has its
+ * replay hot, so every replay is only read, decoded and cached on few nodes.
+ *
+ * Clients log in on the front, which determines their replay using the same {@link IReplaySelector} as the nodes
+ * ({@code replayserver.selector}). As the node selects the replay again once the client has been handed over,
+ * selectors have to pick the same replay for the same login. Replays are assigned to nodes using a {@link ShardRing}.
+ * Once a replay is watched by more than {@code shard.hotviewers} users (default 100) it is spread over the next node on
+ * the ring, and so on for every multiple of that, up to {@code shard.replicas} nodes (default 3). Out of those, each
+ * client is sent to the one with the fewest users. Nodes which cannot be reached are skipped, their replays move to
+ * the next node on the ring. If handing a client over fails, the node is marked as down and the client is handed over
+ * to the next node instead.
+ *
+ * Nodes are configured with {@code shard.nodes} as a comma separated list of {@code host:port:loadport}, where the
+ * load port is the {@code metrics.port} of the node. Their load is polled every {@code shard.pollinterval} milliseconds
+ * (default 1000), see {@link ShardLoad}.
+ */
+public class ShardFront extends Server implements ServerListener {
+    private static final Gauge SESSIONS = Metrics.gauge("replayserver_shard_front_sessions",
+            "Number of sessions connected to the front, including those which have been handed over");
+    private static final Counter HANDOVERS = Metrics.counter("replayserver_shard_handovers_total",
+            "Number of clients handed over to a node");
+    private static final Counter HANDOVER_FAILURES = Metrics.counter("replayserver_shard_handover_failures_total",
+            "Number of failed attempts to hand a client over to a node");
+    private static final Counter REPLICATED = Metrics.counter("replayserver_shard_replicated_total",
+            "Number of clients handed over to a node other than the owner of their replay");
+    private static final Histogram HANDOVER_LATENCY = Metrics.histogram("replayserver_shard_handover_milliseconds",
+            "Time it took to log in on the node a client has been handed over to");
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ShardRing ring;
+    private final ShardProxy proxy;
+    private final int replicas = Integer.getInteger("shard.replicas", 3);
+    private final int hotViewers = Integer.getInteger("shard.hotviewers", 100);
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ShardLoad");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShardFront(String host, int port, Class<? extends PacketProtocol> protocol, SessionFactory factory) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        super(host, port, protocol, factory);
+
+        String selector = System.getProperty("replayserver.selector", FixedReplaySelector.class.getName());
+        IReplaySelector replaySelector = (IReplaySelector) Class.forName(selector).newInstance();
+        List<ShardNode> nodes = new ArrayList<>();
+        for (String node : System.getProperty("shard.nodes", "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(ShardNode.parse(node));
+            }
+        }
+        ring = new ShardRing(nodes, Integer.getInteger("shard.virtualnodes", 100));
+        proxy = new ShardProxy(Integer.getInteger("shard.proxythreads", 4));
+        Metrics.gauge("replayserver_shard_nodes_up", "Number of nodes which answered the last load poll",
+                () -> ring.getNodes().stream().filter(ShardNode::isUp).count());
+        long pollInterval = Long.getLong("shard.pollinterval", 1000);
+        poller.scheduleWithFixedDelay(this::poll, 0, pollInterval, TimeUnit.MILLISECONDS);
+
+        setGlobalFlag(MinecraftConstants.VERIFY_USERS_KEY, false);
+        // Has to match the nodes, bytes are relayed as they are
+        setGlobalFlag(MinecraftConstants.SERVER_COMPRESSION_THRESHOLD, ReplayServer.COMPRESSION_THRESHOLD);
+
+        setGlobalFlag(MinecraftConstants.SERVER_LOGIN_HANDLER_KEY, (ServerLoginHandler) session -> {
+            FrontUser user = new FrontUser(session);
+            ListenableFuture<String> idFuture = replaySelector.getReplayId(user);
+            idFuture.addListener(() -> {
+                String id = Futures.getUnchecked(idFuture);
+                if (id == null) {
+                    user.kick(new TextMessage("No such replay."));
+                    return;
+                }
+                handOver(user, id, ring.getNodes().size());
+            }, MoreExecutors.directExecutor());
+        });
+
+        addListener(this);
+    }
+
+    /**
+     * Hands the user over to the node its replay is routed to. If that fails, the node is marked as down and the user
+     * is routed again, until it has been tried on as many nodes as there are.
+     * @param user The user
+     * @param id Unique id of the replay of the user
+     * @param attempts Number of nodes which may still be tried
+     */
+    private void handOver(FrontUser user, String id, int attempts) {
+        Session session = user.getSession();
+        ShardNode node = route(id);
+        if (node == null) {
+            logger.warning("No node available for replay " + id);
+            user.kick(new TextMessage("Server is busy, please try again later."));
+            return;
+        }
+        logger.finer(() -> "Handing user " + session + " with replay " + id + " over to " + node);
+        long start = System.currentTimeMillis();
+        ListenableFuture<Void> handOver = proxy.handOver(session, node);
+        handOver.addListener(() -> {
+            try {
+                handOver.get();
+            } catch (Exception e) {
+                if (!session.isConnected()) {
+                    // Client went away, not the node's fault
+                    return;
+                }
+                logger.log(Level.WARNING, "Failed to hand user " + session + " over to " + node, e);
+                HANDOVER_FAILURES.increment();
+                node.down();
+                if (attempts > 1) {
+                    handOver(user, id, attempts - 1);
+                } else {
+                    user.kick(new TextMessage("Server is busy, please try again later."));
+                }
+                return;
+            }
+            HANDOVERS.increment();
+            HANDOVER_LATENCY.record(System.currentTimeMillis() - start);
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Picks the node a user watching the specified replay is handed over to.
+     * @param id Unique id of the replay
+     * @return The node or {@code null} if no node is available
+     */
+    ShardNode route(String id) {
+        List<ShardNode> nodes = ring.getNodes(id, ring.getNodes().size());
+        int viewers = 0;
+        for (ShardNode node : nodes) {
+            viewers += node.getViewers(id);
+        }
+        int spread = Math.min(replicas, 1 + viewers / hotViewers);
+        ShardNode best = null;
+        int candidates = 0;
+        for (ShardNode node : nodes) {
+            if (candidates == spread) {
+                break;
+            }
+            if (!node.isUp()) {
+                continue;
+            }
+            candidates++;
+            if (best == null || node.getSessions() < best.getSessions()) {
+                best = node;
+            }
+        }
+        if (best != null) {
+            best.routed(id);
+            if (best != ring.getOwner(id)) {
+                REPLICATED.increment();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the ring the replays are assigned to nodes with.
+     * @return The ring
+     */
+    public ShardRing getRing() {
+        return ring;
+    }
+
+    private void poll() {
+        for (ShardNode node : ring.getNodes()) {
+            if (node.getLoadPort() <= 0) {
+                continue;
+            }
+            try {
+                node.update(fetchLoad(node));
+            } catch (IOException | IllegalArgumentException e) {
+                if (node.isUp()) {
+                    logger.log(Level.WARNING, "Node " + node + " is unavailable:", e);
+                }
+                node.down();
+            }
+        }
+    }
+
+    private ShardLoad fetchLoad(ShardNode node) throws IOException {
+        URL url = new URL("http", node.getHost(), node.getLoadPort(), "/load");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(1000);
+        try (InputStream in = connection.getInputStream()) {
+            return ShardLoad.parse(new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void serverBound(ServerBoundEvent event) {
+        logger.info("Front bound, sharding over " + ring.getNodes());
+    }
+
+    @Override
+    public void serverClosing(ServerClosingEvent event) {
+        logger.info("Front closing");
+    }
+
+    @Override
+    public void serverClosed(ServerClosedEvent event) {
+        logger.info("Front closed");
+        poller.shutdown();
+        proxy.shutdown();
+    }
+
+    @Override
+    public void sessionAdded(SessionAddedEvent event) {
+        SESSIONS.increment();
+    }
+
+    @Override
+    public void sessionRemoved(SessionRemovedEvent event) {
+        SESSIONS.decrement();
+    }
+
+    /**
+     * A client logged in on the front, only used to select its replay.
+     */
+    private static class FrontUser implements IUser {
+        private final Session session;
+
+        private FrontUser(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void sendPacket(Packet packet) {
+            session.send(packet);
+        }
+
+        @Override
+        public void sendMessage(Message message, MessageType messageType) {
+            sendPacket(new ServerChatPacket(message, messageType));
+        }
+
+        @Override
+        public void kick(Message message) {
+            sendPacket(new ServerDisconnectPacket(message));
+            session.disconnect(message.getFullText(), true);
+        }
+
+        @Override
+        public void teleport(Location location) {
+            throw new UnsupportedOperationException("Users are not in any world until handed over");
+        }
+
+        @Override
+        public IReplaySession getReplaySession() {
+            return null;
+        }
+
+        @Override
+        public Session getSession() {
+            return session;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return session.isConnected();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.replaymod.replayserver.shard;
+
+import org.spacehq.packetlib.Session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Number of users watching each replay on one node.
+ * Nodes keep track of their own load and serve it as plain text on {@code /load} of their metrics server, from where
+ * it is polled by the {@link ShardFront}:
+ * <pre>
+ * sessions 12
+ * replay 10 match42.mcpr
+ * replay 2 match43.mcpr
+ * </pre>
+ */
+public class ShardLoad {
+    /**
+     * Session flag holding the id of the replay a user has been counted for.
+     */
+    public static final String REPLAY_ID_FLAG = "shard_replay_id";
+
+    private final Map<String, Integer> viewers = new ConcurrentHashMap<>();
+
+    /**
+     * Records the user of the specified session starting to watch the specified replay, unless it has already
+     * disconnected. The replay is remembered in the session, so it can be released with {@link #closed(Session)}.
+     * @param session The session of the user
+     * @param id Unique id of the replay
+     */
+    public synchronized void opened(Session session, String id) {
+        // Checked under the same lock as in closed(Session), so either the session is removed before and it is not
+        // counted, or it is removed after and closed(Session) sees the flag
+        if (!session.isConnected()) {
+            return;
+        }
+        session.setFlag(REPLAY_ID_FLAG, id);
+        opened(id);
+    }
+
+    /**
+     * Records the user of the specified session no longer watching its replay, if it has been counted by
+     * {@link #opened(Session, String)}.
+     * @param session The session of the user, which has been removed
+     */
+    public synchronized void closed(Session session) {
+        String id = session.getFlag(REPLAY_ID_FLAG);
+        if (id != null) {
+            session.setFlag(REPLAY_ID_FLAG, null);
+            closed(id);
+        }
+    }
+
+    /**
+     * Records a user starting to watch the specified replay.
+     * @param id Unique id of the replay
+     */
+    public void opened(String id) {
+        viewers.merge(id, 1, Integer::sum);
+    }
+
+    /**
+     * Records a user no longer watching the specified replay.
+     * @param id Unique id of the replay
+     */
+    public void closed(String id) {
+        viewers.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Returns the number of users watching the specified replay.
+     * @param id Unique id of the replay
+     * @return Number of users
+     */
+    public int getViewers(String id) {
+        return viewers.getOrDefault(id, 0);
+    }
+
+    /**
+     * Returns the number of users watching any replay.
+     * @return Number of users
+     */
+    public int getSessions() {
+        return viewers.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Returns the number of users of all replays currently being watched.
+     * @return Unmodifiable view of the number of users by replay id
+     */
+    public Map<String, Integer> getReplays() {
+        return Collections.unmodifiableMap(viewers);
+    }
+
+    /**
+     * Returns this load in the text format read by {@link #parse(String)}.
+     * @return The report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions ").append(getSessions()).append('\n');
+        viewers.forEach((id, count) -> sb.append("replay ").append(count).append(' ').append(id).append('\n'));
+        return sb.toString();
+    }
+
+    /**
+     * Parses a load reported by a node.
+     * @param report The report as returned by {@link #report()}
+     * @return The load
+     */
+    public static ShardLoad parse(String report) {
+        ShardLoad load = new ShardLoad();
+        for (String line : report.split("\n")) {
+            if (line.startsWith("replay ")) {
+                // Ids may contain spaces, so they come last
+                int end = line.indexOf(' ', 7);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Invalid line in load report: " + line);
+                }
+                load.viewers.put(line.substring(end + 1), Integer.parseInt(line.substring(7, end)));
+            }
+        }
+        return load;
+    }
+}
@@ -0,0 +1,126 @@
+package com.replaymod.replayserver.shard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A replay server instance in a sharded deployment, as seen by the {@link ShardFront}.
+ * Its load is known from the last {@link ShardLoad} it has reported plus everyone routed to it since then.
+ */
+public class ShardNode {
+    /**
+     * Time in milliseconds after which a node which does not report its load is tried again once a hand over to it
+     * failed.
+     */
+    private static final long RETRY_INTERVAL = Long.getLong("shard.retryinterval", 10000);
+
+    private final String host;
+    private final int port;
+    private final int loadPort;
+    /**
+     * Number of users routed to this node since its last report, per replay.
+     */
+    private final Map<String, Integer> routed = new ConcurrentHashMap<>();
+    private final AtomicInteger routedSessions = new AtomicInteger();
+    private volatile ShardLoad load = new ShardLoad();
+    private volatile boolean up = true;
+    private volatile long downSince;
+
+    /**
+     * @param host Host the node is bound to
+     * @param port Port the node is bound to
+     * @param loadPort Port of the metrics server of the node, which also serves its load, or {@code 0} if the node
+     *                 does not report its load
+     */
+    public ShardNode(String host, int port, int loadPort) {
+        this.host = host;
+        this.port = port;
+        this.loadPort = loadPort;
+    }
+
+    /**
+     * Parses a node in the form {@code host:port} or {@code host:port:loadport}.
+     * @param spec The node
+     * @return The node
+     */
+    public static ShardNode parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Expected host:port[:loadport] but got " + spec);
+        }
+        return new ShardNode(parts[0], Integer.parseInt(parts[1]), parts.length > 2 ? Integer.parseInt(parts[2]) : 0);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getLoadPort() {
+        return loadPort;
+    }
+
+    /**
+     * Returns whether the node is believed to be reachable, i.e. it answered the last time its load was polled and
+     * no hand over to it has failed since. Nodes which do not report their load are considered up again
+     * {@code shard.retryinterval} milliseconds (default 10000) after they have been marked as down.
+     * @return {@code true} if users may be routed to this node
+     */
+    public boolean isUp() {
+        return up || loadPort <= 0 && System.currentTimeMillis() - downSince >= RETRY_INTERVAL;
+    }
+
+    /**
+     * Returns the estimated number of users on this node.
+     * @return Number of users
+     */
+    public int getSessions() {
+        return load.getSessions() + routedSessions.get();
+    }
+
+    /**
+     * Returns the estimated number of users watching the specified replay on this node.
+     * @param id Unique id of the replay
+     * @return Number of users
+     */
+    public int getViewers(String id) {
+        return load.getViewers(id) + routed.getOrDefault(id, 0);
+    }
+
+    /**
+     * Records that a user has been routed to this node.
+     * @param id Unique id of the replay the user is going to watch
+     */
+    void routed(String id) {
+        routed.merge(id, 1, Integer::sum);
+        routedSessions.incrementAndGet();
+    }
+
+    /**
+     * Replaces the load of this node with the one it has just reported.
+     * @param load The reported load
+     */
+    void update(ShardLoad load) {
+        this.load = load;
+        this.routed.clear();
+        this.routedSessions.set(0);
+        this.up = true;
+    }
+
+    /**
+     * Marks this node as unreachable until it reports its load again.
+     */
+    void down() {
+        downSince = System.currentTimeMillis();
+        up = false;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,402 @@
+package com.replaymod.replayserver.shard;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.replaymod.replayserver.io.ChannelAccess;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.ReferenceCountUtil;
+import org.spacehq.mc.auth.data.GameProfile;
+import org.spacehq.mc.protocol.MinecraftConstants;
+import org.spacehq.packetlib.Session;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Hands clients which have logged in on the {@link ShardFront} over to a node.
+ * The proxy logs in on the node on behalf of the client and from then on relays raw bytes in both directions, so
+ * the front never decodes, compresses or even frames a single packet of the replay.
+ *
+ * This works because, once logged in, both connections use the same compression threshold. Should the node negotiate
+ * a different one than the front, the client is told using the set compression packet of the game state.
+ */
+public class ShardProxy {
+    private static final int HANDSHAKE = 0x00;
+    private static final int LOGIN_START = 0x00;
+    private static final int LOGIN_DISCONNECT = 0x00;
+    private static final int LOGIN_SUCCESS = 0x02;
+    private static final int LOGIN_SET_COMPRESSION = 0x03;
+    private static final int GAME_SET_COMPRESSION = 0x46;
+    private static final int STATE_LOGIN = 2;
+    /**
+     * Time in milliseconds after which connecting to a node fails.
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final EventLoopGroup group;
+
+    /**
+     * @param threads Number of threads relaying data between clients and nodes
+     */
+    public ShardProxy(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        group = new NioEventLoopGroup(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ShardProxy-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connects the specified client to the specified node.
+     * Must only be called once the client has logged in and before it has been sent any packet of the game state.
+     * @param client The client, must have logged in with {@link MinecraftConstants#PROFILE_KEY}
+     * @param node The node
+     * @return Future completed once the client is connected to the node, failed if the node could not be reached or
+     * rejected the login. While the future has not completed, the client may still be kicked through its session.
+     */
+    public ListenableFuture<Void> handOver(Session client, ShardNode node) {
+        SettableFuture<Void> future = SettableFuture.create();
+        Channel clientChannel = ChannelAccess.getChannel(client);
+        if (clientChannel == null) {
+            future.setException(new IllegalStateException("Cannot access channel of " + client));
+            return future;
+        }
+        GameProfile profile = client.getFlag(MinecraftConstants.PROFILE_KEY);
+        int clientThreshold = client.getCompressionThreshold();
+        new Bootstrap().group(group).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast("login",
+                                new NodeLogin(node, profile.getName(), clientChannel, clientThreshold, future));
+                        channel.pipeline().addLast("relay", new Relay(null));
+                    }
+                })
+                .connect(node.getHost(), node.getPort())
+                .addListener((ChannelFuture connected) -> {
+                    if (!connected.isSuccess()) {
+                        future.setException(connected.cause());
+                        return;
+                    }
+                    clientChannel.closeFuture().addListener(closed -> connected.channel().close());
+                });
+        return future;
+    }
+
+    /**
+     * Stops relaying, closing all connections to nodes.
+     */
+    public void shutdown() {
+        group.shutdownGracefully();
+    }
+
+    private static int readVarInt(ByteBuf buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.readByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Reads a var int which may not have been received completely.
+     * @return The value or {@code -1} if more bytes are needed, in which case the reader index is unchanged
+     */
+    private static int tryReadVarInt(ByteBuf buf) {
+        int value = 0;
+        int shift = 0;
+        for (int i = buf.readerIndex(); i < buf.writerIndex() && shift < 35; i++) {
+            byte b = buf.getByte(i);
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                buf.readerIndex(i + 1);
+                return value;
+            }
+        }
+        if (shift >= 35) {
+            throw new DecoderException("Var int too long");
+        }
+        return -1;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuf buf) {
+        byte[] bytes = new byte[readVarInt(buf)];
+        buf.readBytes(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Frames an encoded packet.
+     * @param packet The encoded packet, released by this method
+     * @param threshold Compression threshold of the connection, packets are never compressed but have to be marked as
+     *                  uncompressed if compression is enabled
+     * @return The framed packet
+     */
+    private static ByteBuf frame(ChannelHandlerContext ctx, ByteBuf packet, int threshold) {
+        int length = packet.readableBytes() + (threshold >= 0 ? 1 : 0);
+        ByteBuf frame = ctx.alloc().buffer(length + 5);
+        writeVarInt(frame, length);
+        if (threshold >= 0) {
+            writeVarInt(frame, 0);
+        }
+        frame.writeBytes(packet);
+        packet.release();
+        return frame;
+    }
+
+    /**
+     * Logs in on a node and, once logged in, splices the connections of client and node.
+     */
+    private static class NodeLogin extends ByteToMessageDecoder {
+        private final ShardNode node;
+        private final String name;
+        private final Channel clientChannel;
+        private final int clientThreshold;
+        private final SettableFuture<Void> future;
+        private int threshold = -1;
+        private Inflater inflater;
+
+        private NodeLogin(ShardNode node, String name, Channel clientChannel, int clientThreshold,
+                          SettableFuture<Void> future) {
+            this.node = node;
+            this.name = name;
+            this.clientChannel = clientChannel;
+            this.clientThreshold = clientThreshold;
+            this.future = future;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ByteBuf handshake = ctx.alloc().buffer();
+            writeVarInt(handshake, HANDSHAKE);
+            writeVarInt(handshake, MinecraftConstants.PROTOCOL_VERSION);
+            writeString(handshake, node.getHost());
+            handshake.writeShort(node.getPort());
+            writeVarInt(handshake, STATE_LOGIN);
+            ctx.write(frame(ctx, handshake, -1));
+
+            ByteBuf loginStart = ctx.alloc().buffer();
+            writeVarInt(loginStart, LOGIN_START);
+            writeString(loginStart, name);
+            ctx.writeAndFlush(frame(ctx, loginStart, -1));
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            int start = in.readerIndex();
+            int length = tryReadVarInt(in);
+            if (length == -1 || in.readableBytes() < length) {
+                in.readerIndex(start);
+                return;
+            }
+            ByteBuf packet = in.readSlice(length);
+            if (threshold >= 0) {
+                int uncompressed = readVarInt(packet);
+                if (uncompressed != 0) {
+                    packet = inflate(packet, uncompressed);
+                }
+            }
+            int id = readVarInt(packet);
+            if (id == LOGIN_SET_COMPRESSION) {
+                threshold = readVarInt(packet);
+            } else if (id == LOGIN_SUCCESS) {
+                splice(ctx);
+            } else if (id == LOGIN_DISCONNECT) {
+                future.setException(new IOException("Node " + node + " rejected login: " + readString(packet)));
+                ctx.close();
+            } else {
+                future.setException(new IOException("Unexpected packet " + id + " while logging in on " + node));
+                ctx.close();
+            }
+        }
+
+        private ByteBuf inflate(ByteBuf compressed, int length) throws DataFormatException {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            byte[] input = new byte[compressed.readableBytes()];
+            compressed.readBytes(input);
+            inflater.setInput(input);
+            byte[] output = new byte[length];
+            try {
+                if (inflater.inflate(output) != length) {
+                    throw new DecoderException("Expected " + length + " bytes");
+                }
+            } finally {
+                inflater.reset();
+            }
+            return Unpooled.wrappedBuffer(output);
+        }
+
+        private void splice(ChannelHandlerContext ctx) {
+            Channel nodeChannel = ctx.channel();
+            Relay nodeRelay = ctx.pipeline().get(Relay.class);
+            clientChannel.eventLoop().execute(() -> {
+                if (!clientChannel.isActive()) {
+                    future.setException(new IOException("Client disconnected"));
+                    nodeChannel.close();
+                    return;
+                }
+                // The client waits for the first packet of the game, so nothing is in flight from either side
+                ChannelPipeline pipeline = clientChannel.pipeline();
+                pipeline.addAfter(ChannelAccess.CODEC, "relay", new Relay(nodeChannel));
+                pipeline.remove(ChannelAccess.CODEC);
+                if (pipeline.get(ChannelAccess.COMPRESSION) != null) {
+                    pipeline.remove(ChannelAccess.COMPRESSION);
+                }
+                // Bytes the sizer has received but not yet framed are passed on to the relay
+                pipeline.remove(ChannelAccess.SIZER);
+                if (threshold != clientThreshold) {
+                    ChannelHandlerContext relayContext = pipeline.context("relay");
+                    ByteBuf setCompression = relayContext.alloc().buffer();
+                    writeVarInt(setCompression, GAME_SET_COMPRESSION);
+                    writeVarInt(setCompression, threshold);
+                    relayContext.write(frame(relayContext, setCompression, clientThreshold));
+                }
+                nodeChannel.eventLoop().execute(() -> nodeRelay.setPeer(clientChannel));
+                future.set(null);
+            });
+            // Bytes following the login are passed on to the relay, which holds them until the client is ready
+            ctx.pipeline().remove(this);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            future.setException(new IOException("Node " + node + " closed the connection"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        protected void handlerRemoved0(ChannelHandlerContext ctx) {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            future.setException(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Passes everything received on one channel to the other one, reading only as fast as the other one is writing.
+     * Packets written by PacketLib (e.g. keep alives of the front) are dropped, the client is kept alive by the node.
+     */
+    private static class Relay extends ChannelDuplexHandler {
+        private final List<Object> pending = new ArrayList<>();
+        private Channel peer;
+
+        private Relay(Channel peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * Sets the channel to relay to, must be called from the event loop of this relay.
+         * @param peer The channel
+         */
+        private void setPeer(Channel peer) {
+            this.peer = peer;
+            pending.forEach(peer::write);
+            pending.clear();
+            peer.flush();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (peer == null) {
+                pending.add(msg);
+                return;
+            }
+            peer.write(msg, peer.voidPromise());
+            if (!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (peer != null) {
+                peer.flush();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (peer != null && ctx.channel().isWritable()) {
+                peer.config().setAutoRead(true);
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                super.write(ctx, msg, promise);
+            } else {
+                ReferenceCountUtil.release(msg);
+                promise.trySuccess();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            pending.forEach(ReferenceCountUtil::release);
+            pending.clear();
+            if (peer != null) {
+                peer.close();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.replaymod.replayserver.shard;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning replay ids to nodes.
+ * Each node is placed on the ring many times, a replay belongs to the first node following the hash of its id and
+ * is replicated to the nodes following that one. Adding or removing a node only moves the replays of that node.
+ */
+public class ShardRing {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final List<ShardNode> nodes;
+    private final TreeMap<Long, ShardNode> ring = new TreeMap<>();
+
+    /**
+     * @param nodes All nodes
+     * @param virtualNodes Number of times each node is placed on the ring, more spread the replays more evenly
+     */
+    public ShardRing(List<ShardNode> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (ShardNode node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    private static long hash(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Returns all nodes.
+     * @return Unmodifiable list of nodes
+     */
+    public List<ShardNode> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the node owning the specified replay.
+     * @param id Unique id of the replay
+     * @return The node
+     */
+    public ShardNode getOwner(String id) {
+        Map.Entry<Long, ShardNode> entry = ring.ceilingEntry(hash(id));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns the nodes responsible for the specified replay, starting with its owner followed by the nodes it is
+     * replicated to or which take over if the ones before them are unavailable.
+     * @param id Unique id of the replay
+     * @param count Maximum number of nodes
+     * @return Distinct nodes in ring order
+     */
+    public List<ShardNode> getNodes(String id, int count) {
+        count = Math.min(count, nodes.size());
+        Set<ShardNode> result = new LinkedHashSet<>();
+        long hash = hash(id);
+        for (ShardNode node : ring.tailMap(hash).values()) {
+            if (result.size() == count) {
+                break;
+            }
+            result.add(node);
+        }
+        for (ShardNode node : ring.headMap(hash).values()) {
+            if (result.size() == count) {
+                break;
+            }
+            result.add(node);
+        }
+        return new ArrayList<>(result);
+    }
+}